@@ -0,0 +1,119 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import com.google.firebase.database.DataSnapshot;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Count of the children of a query, and the sum, average, minimum and maximum of a numeric field
+ * of the children, maintained incrementally from child events.
+ *
+ * <p>Children whose field is missing or not a number are counted, but don't contribute to the
+ * other aggregates.
+ */
+final class Aggregator {
+  // Field of the children to aggregate, or null to aggregate the values of the children.
+  private final String field;
+
+  // The aggregated value of every child, or null for children without a numeric value.
+  private final Map<String, Number> values = new HashMap<>();
+  // Multiset of the numeric values, so that the minimum and maximum survive removals.
+  private final TreeMap<Double, Integer> sortedValues = new TreeMap<>();
+  // Exact sum of the integral values.
+  private long integralSum = 0;
+  // Sum of the other values. Subtracting doubles accumulates rounding errors, so it is recomputed
+  // when one of them is removed instead.
+  private double nonIntegralSum = 0;
+  private int numericCount = 0;
+  // Number of numeric values that are not integers; aggregates are integral while there are none.
+  private int nonIntegralCount = 0;
+
+  private Aggregator(String field) {
+    this.field = field;
+  }
+
+  /** Returns the aggregator described by {@code arguments}, or null if there is none. */
+  static Aggregator fromArguments(Map<String, Object> arguments) {
+    if (arguments == null) return null;
+    return new Aggregator((String) arguments.get("field"));
+  }
+
+  /** Adds or updates the child. */
+  void put(DataSnapshot child) {
+    remove(child.getKey());
+    Object value = field != null ? child.child(field).getValue() : child.getValue();
+    Number number = null;
+    if (value instanceof Number) {
+      number = (Number) value;
+      double doubleValue = number.doubleValue();
+      numericCount++;
+      if (isIntegral(number)) {
+        integralSum += number.longValue();
+      } else {
+        nonIntegralCount++;
+        nonIntegralSum += doubleValue;
+      }
+      Integer count = sortedValues.get(doubleValue);
+      sortedValues.put(doubleValue, count == null ? 1 : count + 1);
+    }
+    values.put(child.getKey(), number);
+  }
+
+  void remove(String key) {
+    if (!values.containsKey(key)) return;
+    Number removed = values.remove(key);
+    if (removed == null) return;
+    numericCount--;
+    if (isIntegral(removed)) {
+      integralSum -= removed.longValue();
+    } else {
+      nonIntegralCount--;
+      nonIntegralSum = 0;
+      for (Number value : values.values()) {
+        if (value != null && !isIntegral(value)) nonIntegralSum += value.doubleValue();
+      }
+    }
+    double number = removed.doubleValue();
+    int count = sortedValues.get(number);
+    if (count == 1) {
+      sortedValues.remove(number);
+    } else {
+      sortedValues.put(number, count - 1);
+    }
+  }
+
+  void clear() {
+    values.clear();
+    sortedValues.clear();
+    integralSum = 0;
+    nonIntegralSum = 0;
+    numericCount = 0;
+    nonIntegralCount = 0;
+  }
+
+  Map<String, Object> getResult() {
+    Map<String, Object> result = new HashMap<>();
+    result.put("count", values.size());
+    result.put("numericCount", numericCount);
+    double sum = integralSum + nonIntegralSum;
+    result.put("sum", nonIntegralCount == 0 ? (Object) integralSum : (Object) sum);
+    result.put("average", numericCount > 0 ? sum / numericCount : null);
+    result.put("min", numericCount > 0 ? toNumber(sortedValues.firstKey()) : null);
+    result.put("max", numericCount > 0 ? toNumber(sortedValues.lastKey()) : null);
+    return result;
+  }
+
+  // Integral aggregates are sent as integers, as they would be read from the database.
+  private Object toNumber(double value) {
+    return nonIntegralCount == 0 ? (Object) Math.round(value) : (Object) value;
+  }
+
+  private static boolean isIntegral(Number value) {
+    return value instanceof Long || value instanceof Integer;
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiles the set, update and remove operations of a write batch into a single root-level
+ * update, so that the batch is written atomically with one {@code updateChildren} call.
+ */
+final class BatchWrite {
+  private BatchWrite() {}
+
+  static Map<String, Object> compile(List<Map<String, Object>> operations) {
+    // Sorted so that all paths below a given path form a contiguous range of keys.
+    TreeMap<String, Object> updates = new TreeMap<>();
+    for (Map<String, Object> operation : operations) {
+      String type = (String) operation.get("type");
+      String path = normalizePath((String) operation.get("path"));
+      switch (type) {
+        case "set":
+          {
+            Object value = operation.get("value");
+            Object priority = operation.get("priority");
+            if (priority != null) {
+              Map<String, Object> valueWithPriority = new HashMap<>();
+              valueWithPriority.put(".value", value);
+              valueWithPriority.put(".priority", priority);
+              value = valueWithPriority;
+            }
+            write(updates, path, value);
+            break;
+          }
+        case "update":
+          {
+            Object value = operation.get("value");
+            if (!(value instanceof Map)) {
+              throw new IllegalArgumentException("Batch updates must be maps of children.");
+            }
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+              write(
+                  updates,
+                  path + "/" + normalizePath(String.valueOf(entry.getKey())),
+                  entry.getValue());
+            }
+            break;
+          }
+        case "remove":
+          write(updates, path, null);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown batch operation: " + type);
+      }
+    }
+    return updates;
+  }
+
+  private static String normalizePath(String path) {
+    int start = 0;
+    int end = path != null ? path.length() : 0;
+    while (start < end && path.charAt(start) == '/') start++;
+    while (end > start && path.charAt(end - 1) == '/') end--;
+    if (start == end) {
+      throw new IllegalArgumentException("Batch operations can't write to the root location.");
+    }
+    return path.substring(start, end);
+  }
+
+  // Records a write of value at path. updateChildren doesn't accept overlapping paths, so a write
+  // replaces any earlier writes below its path, and a write below an already written path is
+  // merged into the value written there.
+  private static void write(TreeMap<String, Object> updates, String path, Object value) {
+    // '0' is the character after '/', so this is the range of all paths below path.
+    updates.subMap(path + "/", path + "0").clear();
+    int separator = path.indexOf('/');
+    while (separator != -1) {
+      String ancestor = path.substring(0, separator);
+      if (updates.containsKey(ancestor)) {
+        String[] relativePath = path.substring(separator + 1).split("/");
+        updates.put(ancestor, setChild(updates.get(ancestor), relativePath, 0, value));
+        return;
+      }
+      separator = path.indexOf('/', separator + 1);
+    }
+    updates.put(path, value);
+  }
+
+  // Returns a copy of node with the value at path[depth..] replaced. Maps along the path are
+  // copied so that values passed in from Dart are never modified.
+  private static Object setChild(Object node, String[] path, int depth, Object value) {
+    if (depth == path.length) return value;
+    if (node instanceof Map && ((Map<?, ?>) node).containsKey(".value")) {
+      // A value set with a priority. Its children are merged into the value itself, and the
+      // priority is kept alongside them, as the database keeps it when a child is written.
+      Object priority = ((Map<?, ?>) node).get(".priority");
+      Object merged = setChild(((Map<?, ?>) node).get(".value"), path, depth, value);
+      if (merged != null && priority != null) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> mergedMap = (Map<String, Object>) merged;
+        mergedMap.put(".priority", priority);
+      }
+      return merged;
+    }
+    Map<String, Object> copy = new HashMap<>();
+    if (node instanceof Map) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) node).entrySet()) {
+        copy.put(String.valueOf(entry.getKey()), entry.getValue());
+      }
+    } else if (node instanceof List) {
+      // Lists are stored as children keyed by index.
+      List<?> list = (List<?>) node;
+      for (int i = 0; i < list.size(); i++) {
+        if (list.get(i) != null) copy.put(String.valueOf(i), list.get(i));
+      }
+    }
+    Object child = setChild(copy.get(path[depth]), path, depth + 1, value);
+    if (child == null) {
+      copy.remove(path[depth]);
+    } else {
+      copy.put(path[depth], child);
+    }
+    return copy.isEmpty() ? null : copy;
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keys of the children of a query in query order, maintained from its child events so that each
+ * event can be sent with the positions of the child it affects.
+ *
+ * <p>Children are usually added after the last one, as when a query is first loaded, so the last
+ * position is checked before the keys are searched.
+ */
+final class ChildIndex {
+  private final List<String> keys = new ArrayList<>();
+
+  /** Adds the child after {@code previousChildName} and returns its index. */
+  int add(String key, String previousChildName) {
+    int index = previousChildName == null ? 0 : indexOf(previousChildName) + 1;
+    keys.add(index, key);
+    return index;
+  }
+
+  /** Removes the child and returns the index it had, or -1 if it isn't indexed. */
+  int remove(String key) {
+    int index = indexOf(key);
+    if (index >= 0) keys.remove(index);
+    return index;
+  }
+
+  int indexOf(String key) {
+    int last = keys.size() - 1;
+    if (last >= 0 && keys.get(last).equals(key)) return last;
+    return keys.indexOf(key);
+  }
+}
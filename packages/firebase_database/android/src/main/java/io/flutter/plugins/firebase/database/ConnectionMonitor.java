@@ -0,0 +1,163 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.ValueEventListener;
+import io.flutter.plugin.common.EventChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the connection health of a database to Dart over an event channel.
+ *
+ * <p>While Dart listens, the monitored database's {@code .info/connected} and {@code
+ * .info/serverTimeOffset} are observed, and, if a probe path is given, a server timestamp is
+ * written to it every probe interval to measure the write round trip. The number of outstanding
+ * writes and the round trip of the last completed write are tracked for all writes made through
+ * the plugin. Changes are sent as a single event per main thread message.
+ */
+final class ConnectionMonitor implements EventChannel.StreamHandler {
+  private final Handler handler;
+  private final DatabaseInstances instances;
+  private EventChannel.EventSink events;
+
+  private DatabaseReference connectedReference;
+  private DatabaseReference serverTimeOffsetReference;
+  private DatabaseReference probeReference;
+  private long probeIntervalMillis;
+
+  private Boolean connected;
+  private Long serverTimeOffsetMillis;
+  private Long probeLatencyMillis;
+  private Long writeLatencyMillis;
+  private int outstandingWrites = 0;
+  private boolean sendScheduled = false;
+
+  private final ValueEventListener connectedListener =
+      new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot snapshot) {
+          connected = snapshot.getValue(Boolean.class);
+          changed();
+        }
+
+        @Override
+        public void onCancelled(DatabaseError error) {}
+      };
+
+  private final ValueEventListener serverTimeOffsetListener =
+      new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot snapshot) {
+          Object offset = snapshot.getValue();
+          serverTimeOffsetMillis = offset instanceof Number ? ((Number) offset).longValue() : null;
+          changed();
+        }
+
+        @Override
+        public void onCancelled(DatabaseError error) {}
+      };
+
+  private final Runnable probeCallback =
+      new Runnable() {
+        @Override
+        public void run() {
+          final DatabaseReference reference = probeReference;
+          final long start = SystemClock.elapsedRealtime();
+          reference.setValue(
+              ServerValue.TIMESTAMP,
+              new DatabaseReference.CompletionListener() {
+                @Override
+                public void onComplete(DatabaseError error, DatabaseReference ref) {
+                  // Results of probes of an earlier listen are ignored.
+                  if (reference != probeReference || error != null) return;
+                  probeLatencyMillis = SystemClock.elapsedRealtime() - start;
+                  changed();
+                }
+              });
+          handler.postDelayed(this, probeIntervalMillis);
+        }
+      };
+
+  private final Runnable sendCallback =
+      new Runnable() {
+        @Override
+        public void run() {
+          sendScheduled = false;
+          if (events == null) return;
+          Map<String, Object> event = new HashMap<>();
+          event.put("connected", connected);
+          event.put("serverTimeOffsetMillis", serverTimeOffsetMillis);
+          event.put("probeLatencyMillis", probeLatencyMillis);
+          event.put("writeLatencyMillis", writeLatencyMillis);
+          event.put("outstandingWrites", outstandingWrites);
+          events.success(event);
+        }
+      };
+
+  ConnectionMonitor(Handler handler, DatabaseInstances instances) {
+    this.handler = handler;
+    this.instances = instances;
+  }
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    this.events = events;
+    @SuppressWarnings("unchecked")
+    Map<String, Object> listenArguments = (Map<String, Object>) arguments;
+    DatabaseReference root = instances.getRootReference(instances.resolve(listenArguments, null));
+    connectedReference = root.child(".info/connected");
+    connectedReference.addValueEventListener(connectedListener);
+    serverTimeOffsetReference = root.child(".info/serverTimeOffset");
+    serverTimeOffsetReference.addValueEventListener(serverTimeOffsetListener);
+    String probePath = listenArguments != null ? (String) listenArguments.get("probePath") : null;
+    if (probePath != null) {
+      String key = instances.resolve(listenArguments, probePath);
+      probeReference = instances.getRootReference(key).child(probePath);
+      probeIntervalMillis = ((Number) listenArguments.get("probeIntervalMillis")).longValue();
+      handler.post(probeCallback);
+    }
+    changed();
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    connectedReference.removeEventListener(connectedListener);
+    serverTimeOffsetReference.removeEventListener(serverTimeOffsetListener);
+    handler.removeCallbacks(probeCallback);
+    handler.removeCallbacks(sendCallback);
+    sendScheduled = false;
+    probeReference = null;
+    connected = null;
+    serverTimeOffsetMillis = null;
+    probeLatencyMillis = null;
+    events = null;
+  }
+
+  /** Records the start of a write, returning the time to pass to {@link #writeCompleted}. */
+  long writeStarted() {
+    outstandingWrites++;
+    changed();
+    return SystemClock.elapsedRealtime();
+  }
+
+  void writeCompleted(long startTime) {
+    outstandingWrites--;
+    writeLatencyMillis = SystemClock.elapsedRealtime() - startTime;
+    changed();
+  }
+
+  private void changed() {
+    if (events == null || sendScheduled) return;
+    sendScheduled = true;
+    handler.post(sendCallback);
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the database that a method call addresses from the "app" and "databaseURL" in its
+ * arguments, and caches the resolved databases and their root references by instance key.
+ *
+ * <p>Each database can have shard routes, which map path prefixes to the URLs of other databases
+ * of the same app. Locations below a routed prefix are read and written in the database it maps
+ * to, so that data can be spread across several databases while Dart addresses just one. The
+ * longest matching prefix wins.
+ */
+final class DatabaseInstances {
+  /** Thrown when a call addresses a Firebase app that hasn't been configured. */
+  static final class UnknownAppException extends RuntimeException {
+    UnknownAppException(String app, IllegalStateException cause) {
+      super("No Firebase app named " + app + " is configured", cause);
+    }
+  }
+
+  private static final class Instance {
+    final FirebaseDatabase database;
+    // Created on first use, since persistence can't be configured once a reference exists.
+    DatabaseReference root;
+
+    Instance(FirebaseDatabase database) {
+      this.database = database;
+    }
+  }
+
+  private final Map<String, Instance> instances = new HashMap<>();
+  // Database URLs by path prefix, by the instance key of the database they were set for.
+  private final Map<String, Map<String, String>> shardRoutes = new HashMap<>();
+
+  private static String getKey(String app, String databaseURL) {
+    return (app != null ? app : "") + "|" + (databaseURL != null ? databaseURL : "");
+  }
+
+  /**
+   * Returns the key of the instance that the path of the call's arguments is routed to.
+   *
+   * @throws UnknownAppException if the call addresses an app that hasn't been configured.
+   */
+  String resolve(Map<String, Object> arguments) {
+    return resolve(arguments, arguments != null ? (String) arguments.get("path") : null);
+  }
+
+  /** Returns the key of the instance that {@code path} of the call's database is routed to. */
+  String resolve(Map<String, Object> arguments, String path) {
+    String app = arguments != null ? (String) arguments.get("app") : null;
+    String databaseURL = arguments != null ? (String) arguments.get("databaseURL") : null;
+    Map<String, String> routes = shardRoutes.get(getKey(app, databaseURL));
+    if (routes != null && path != null) {
+      String normalizedPath = trimSlashes(path);
+      String longestPrefix = null;
+      for (String prefix : routes.keySet()) {
+        if ((normalizedPath.equals(prefix) || normalizedPath.startsWith(prefix + "/"))
+            && (longestPrefix == null || prefix.length() > longestPrefix.length())) {
+          longestPrefix = prefix;
+        }
+      }
+      if (longestPrefix != null) databaseURL = routes.get(longestPrefix);
+    }
+    String key = getKey(app, databaseURL);
+    if (!instances.containsKey(key)) {
+      FirebaseApp firebaseApp;
+      try {
+        firebaseApp = app != null ? FirebaseApp.getInstance(app) : FirebaseApp.getInstance();
+      } catch (IllegalStateException e) {
+        throw new UnknownAppException(app != null ? app : "[DEFAULT]", e);
+      }
+      FirebaseDatabase database =
+          databaseURL != null
+              ? FirebaseDatabase.getInstance(firebaseApp, databaseURL)
+              : FirebaseDatabase.getInstance(firebaseApp);
+      instances.put(key, new Instance(database));
+    }
+    return key;
+  }
+
+  DatabaseReference getRootReference(String key) {
+    Instance instance = instances.get(key);
+    if (instance.root == null) {
+      instance.root = instance.database.getReference();
+    }
+    return instance.root;
+  }
+
+  /**
+   * Returns the database addressed by the call's arguments followed by the databases its shard
+   * routes lead to, for calls that configure or control the connection.
+   */
+  List<FirebaseDatabase> getDatabases(Map<String, Object> arguments) {
+    List<FirebaseDatabase> databases = new ArrayList<>();
+    databases.add(instances.get(resolve(arguments, null)).database);
+    String app = arguments != null ? (String) arguments.get("app") : null;
+    String databaseURL = arguments != null ? (String) arguments.get("databaseURL") : null;
+    Map<String, String> routes = shardRoutes.get(getKey(app, databaseURL));
+    if (routes != null) {
+      for (String prefix : routes.keySet()) {
+        FirebaseDatabase database = instances.get(resolve(arguments, prefix)).database;
+        if (!databases.contains(database)) databases.add(database);
+      }
+    }
+    return databases;
+  }
+
+  /** Replaces the shard routes of the call's database with {@code routes}. */
+  void setShardRoutes(Map<String, Object> arguments, Map<String, String> routes) {
+    String app = arguments != null ? (String) arguments.get("app") : null;
+    String databaseURL = arguments != null ? (String) arguments.get("databaseURL") : null;
+    String key = getKey(app, databaseURL);
+    if (routes == null || routes.isEmpty()) {
+      shardRoutes.remove(key);
+      return;
+    }
+    Map<String, String> normalizedRoutes = new HashMap<>();
+    for (Map.Entry<String, String> route : routes.entrySet()) {
+      normalizedRoutes.put(trimSlashes(route.getKey()), route.getValue());
+    }
+    shardRoutes.put(key, normalizedRoutes);
+  }
+
+  private static String trimSlashes(String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') start++;
+    while (end > start && path.charAt(end - 1) == '/') end--;
+    return path.substring(start, end);
+  }
+}
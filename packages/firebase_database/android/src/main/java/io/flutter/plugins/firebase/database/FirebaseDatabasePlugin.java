@@ -4,11 +4,17 @@
 
 package io.flutter.plugins.firebase.database;
 
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.TaskCompletionSource;
-import com.google.android.gms.tasks.Tasks;
+import android.view.Choreographer;
 import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
@@ -19,16 +25,23 @@ import com.google.firebase.database.MutableData;
 import com.google.firebase.database.Query;
 import com.google.firebase.database.Transaction;
 import com.google.firebase.database.ValueEventListener;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.Set;
+import java.util.TreeMap;
 
 /** FirebaseDatabasePlugin */
 public class FirebaseDatabasePlugin implements MethodCallHandler {
@@ -36,6 +49,9 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
   private static final String TAG = "FirebaseDatabasePlugin";
 
   private final MethodChannel channel;
+  private final BinaryMessenger messenger;
+  private final Context context;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
   private static final String EVENT_TYPE_CHILD_ADDED = "_EventType.childAdded";
   private static final String EVENT_TYPE_CHILD_REMOVED = "_EventType.childRemoved";
   private static final String EVENT_TYPE_CHILD_CHANGED = "_EventType.childChanged";
@@ -45,25 +61,182 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
   // Handles are ints used as indexes into the sparse array of active observers
   private int nextHandle = 0;
   private final SparseArray<EventObserver> observers = new SparseArray<>();
+  // The token of the Dart isolate that created each handle.
+  private final SparseArray<String> observerIsolates = new SparseArray<>();
+
+  // Native listeners are shared by all handles observing the same query, keyed by the query
+  // signature and listener kind, so identical Query#observe calls attach a single SDK listener.
+  private final Map<String, EventObserver> sharedObservers = new HashMap<>();
+
+  // When batching is enabled, events are buffered here and delivered to Dart as a single
+  // "Events" call once per frame, or as soon as maxBatchSize events are pending.
+  private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+  private boolean batchEvents = false;
+  private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private boolean flushScheduled = false;
+  private final List<Map<String, Object>> pendingEvents = new ArrayList<>();
+  private final Choreographer.FrameCallback flushCallback =
+      new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          flushScheduled = false;
+          flushEvents();
+        }
+      };
+
+  // Built queries keyed by query signature, so that repeated calls with the same path and
+  // parameters don't rebuild the query.
+  private static final int QUERY_CACHE_SIZE = 100;
+  private final LruCache<String, Query> queryCache = new LruCache<>(QUERY_CACHE_SIZE);
+  // Databases addressed by app name and database URL, with their shard routes.
+  private final DatabaseInstances instances = new DatabaseInstances();
+
+  // Latest value snapshots by query signature, for one-time reads that prefer cached values.
+  private final ReadCache readCache = new ReadCache();
+  // Query signatures that are being read again after a read was answered from readCache.
+  private final Set<String> revalidatingQueries = new HashSet<>();
+
+  // Queries kept synced by Query#keepSynced, within a budget.
+  private final SyncedQueries syncedQueries = new SyncedQueries();
+  // The SDK's default persistence cache size, used to report cache pressure.
+  private static final long DEFAULT_PERSISTENCE_CACHE_SIZE_BYTES = 10 * 1024 * 1024;
+  private long persistenceCacheSizeBytes = DEFAULT_PERSISTENCE_CACHE_SIZE_BYTES;
+
+  // Converts observed snapshots off the main thread.
+  private final SnapshotPipeline snapshotPipeline = new SnapshotPipeline(mainHandler);
+
+  // Reads and writes the files of JSON exports and imports, apart from snapshot conversions.
+  private final SnapshotPipeline fileTransfers = new SnapshotPipeline(mainHandler);
+
+  // Streams value snapshots to handles that observe them in chunks.
+  private final SnapshotStreamer snapshotStreamer = new SnapshotStreamer(mainHandler);
+
+  // Holds back writes made with DatabaseReference#set's coalesce, keeping the latest per path.
+  private final WriteCoalescer writeCoalescer;
+
+  // Streams the connection health of a database, and tracks the writes made through the plugin.
+  private final ConnectionMonitor connectionMonitor;
 
   public static void registerWith(PluginRegistry.Registrar registrar) {
     final MethodChannel channel =
         new MethodChannel(registrar.messenger(), "plugins.flutter.io/firebase_database");
-    channel.setMethodCallHandler(new FirebaseDatabasePlugin(channel));
+    final EventChannel snapshotChannel =
+        new EventChannel(registrar.messenger(), "plugins.flutter.io/firebase_database_snapshots");
+    FirebaseDatabasePlugin instance =
+        new FirebaseDatabasePlugin(channel, registrar.messenger(), registrar.context());
+    channel.setMethodCallHandler(instance);
+    snapshotChannel.setStreamHandler(instance.snapshotStreamer);
+    final EventChannel connectionChannel =
+        new EventChannel(registrar.messenger(), "plugins.flutter.io/firebase_database_connection");
+    connectionChannel.setStreamHandler(instance.connectionMonitor);
+    final Activity activity = registrar.activity();
+    if (activity != null) {
+      activity
+          .getApplication()
+          .registerActivityLifecycleCallbacks(instance.new ActivityObserver(activity));
+    }
   }
 
-  private FirebaseDatabasePlugin(MethodChannel channel) {
+  // Detaches all observers and stops the background threads when the activity hosting the Flutter
+  // view is destroyed, since nothing on the Dart side can remove them anymore.
+  private class ActivityObserver implements Application.ActivityLifecycleCallbacks {
+    private final Activity activity;
+
+    ActivityObserver(Activity activity) {
+      this.activity = activity;
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+    @Override
+    public void onActivityStarted(Activity activity) {}
+
+    @Override
+    public void onActivityResumed(Activity activity) {}
+
+    @Override
+    public void onActivityPaused(Activity activity) {}
+
+    @Override
+    public void onActivityStopped(Activity activity) {}
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+      if (activity == this.activity) {
+        removeAllObservers();
+        snapshotPipeline.shutdown();
+        fileTransfers.shutdown();
+        activity.getApplication().unregisterActivityLifecycleCallbacks(this);
+      }
+    }
+  }
+
+  private void removeAllObservers() {
+    for (int i = 0; i < observers.size(); i++) {
+      observers.valueAt(i).removeSubscription(observers.keyAt(i));
+    }
+    observers.clear();
+    observerIsolates.clear();
+    pendingEvents.clear();
+  }
+
+  // Removes the observers created by isolates other than the one with the given token. Events are
+  // only delivered to the isolate listening on this plugin's channel, so such observers belong to
+  // an isolate that was replaced, such as before a hot restart, and can't be removed from Dart
+  // anymore. Other engines register plugin instances of their own, whose observers are kept.
+  private void removeStaleObservers(String isolateToken) {
+    List<Integer> staleHandles = new ArrayList<>();
+    for (int i = 0; i < observers.size(); i++) {
+      int handle = observers.keyAt(i);
+      if (!isolateToken.equals(observerIsolates.get(handle))) staleHandles.add(handle);
+    }
+    for (int handle : staleHandles) {
+      observers.get(handle).removeSubscription(handle);
+      observers.delete(handle);
+      observerIsolates.delete(handle);
+      discardPendingEvents(handle);
+    }
+  }
+
+  private FirebaseDatabasePlugin(
+      MethodChannel channel, BinaryMessenger messenger, Context context) {
     this.channel = channel;
+    this.messenger = messenger;
+    this.context = context;
+    this.connectionMonitor = new ConnectionMonitor(mainHandler, instances);
+    this.writeCoalescer = new WriteCoalescer(mainHandler, connectionMonitor);
   }
 
   private DatabaseReference getReference(Map<String, Object> arguments) {
+    DatabaseReference root = instances.getRootReference(instances.resolve(arguments));
     String path = (String) arguments.get("path");
-    DatabaseReference reference = FirebaseDatabase.getInstance().getReference();
-    if (path != null) reference = reference.child(path);
-    return reference;
+    return path != null ? root.child(path) : root;
+  }
+
+  // Relative file paths of exports and imports are relative to the app's files directory.
+  private File getFile(Map<String, Object> arguments) {
+    File file = new File((String) arguments.get("file"));
+    return file.isAbsolute() ? file : new File(context.getFilesDir(), file.getPath());
   }
 
   private Query getQuery(Map<String, Object> arguments) {
+    return getQuery(getQueryKey(arguments), arguments);
+  }
+
+  private Query getQuery(String key, Map<String, Object> arguments) {
+    Query query = queryCache.get(key);
+    if (query == null) {
+      query = buildQuery(arguments);
+      queryCache.put(key, query);
+    }
+    return query;
+  }
+
+  private Query buildQuery(Map<String, Object> arguments) {
     Query query = getReference(arguments);
     @SuppressWarnings("unchecked")
     Map<String, Object> parameters = (Map<String, Object>) arguments.get("parameters");
@@ -139,15 +312,50 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
     return query;
   }
 
+  private void dispatchEvent(Map<String, Object> event) {
+    if (!batchEvents) {
+      channel.invokeMethod("Event", event);
+      return;
+    }
+    pendingEvents.add(event);
+    if (pendingEvents.size() >= maxBatchSize) {
+      flushEvents();
+    } else if (!flushScheduled) {
+      flushScheduled = true;
+      Choreographer.getInstance().postFrameCallback(flushCallback);
+    }
+  }
+
+  private void flushEvents() {
+    if (pendingEvents.isEmpty()) return;
+    List<Map<String, Object>> events = new ArrayList<>(pendingEvents);
+    pendingEvents.clear();
+    channel.invokeMethod("Events", events);
+  }
+
+  // Drops buffered events for a handle that is being removed, so that Dart never receives events
+  // for a stream it has already closed.
+  private void discardPendingEvents(int handle) {
+    Iterator<Map<String, Object>> iterator = pendingEvents.iterator();
+    while (iterator.hasNext()) {
+      if ((int) iterator.next().get("handle") == handle) {
+        iterator.remove();
+      }
+    }
+  }
+
   private class DefaultCompletionListener implements DatabaseReference.CompletionListener {
     private final Result result;
+    private final long startTime;
 
     DefaultCompletionListener(Result result) {
       this.result = result;
+      this.startTime = connectionMonitor.writeStarted();
     }
 
     @Override
     public void onComplete(DatabaseError error, DatabaseReference ref) {
+      connectionMonitor.writeCompleted(startTime);
       if (error != null) {
         result.error(String.valueOf(error.getCode()), error.getMessage(), error.getDetails());
       } else {
@@ -156,25 +364,723 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
     }
   }
 
-  private class EventObserver implements ChildEventListener, ValueEventListener {
-    private String requestedEventType;
-    private int handle;
+  // Returns the key of the shared listener for a query. Child listeners that index children are
+  // kept apart from the others, since their index has to be built from their first event on, and
+  // value listeners that send shallow values are shared only with ones that convert alike.
+  private static String getObserverKey(
+      String queryKey, boolean observesValue, boolean indexesChildren, ShallowSnapshot shallow) {
+    if (observesValue) {
+      return queryKey + "#value" + (shallow != null ? "#" + shallow.getSignature() : "");
+    }
+    return queryKey + (indexesChildren ? "#indexedChild" : "#child");
+  }
+
+  private static Map<String, Object> createSnapshotMap(DataSnapshot snapshot) {
+    return createSnapshotMap(snapshot, null);
+  }
+
+  private static Map<String, Object> createSnapshotMap(
+      DataSnapshot snapshot, ShallowSnapshot shallow) {
+    Map<String, Object> snapshotMap = new HashMap<>();
+    snapshotMap.put("key", snapshot.getKey());
+    snapshotMap.put("value", shallow != null ? shallow.convert(snapshot) : snapshot.getValue());
+    return snapshotMap;
+  }
+
+  // Converts the snapshot read for the query, caches it and replies with it if result is non-null.
+  // Shallow values are neither cached nor counted as the size of the query's value.
+  private void replyWithSnapshot(
+      final DataSnapshot snapshot,
+      final String queryKey,
+      final ShallowSnapshot shallow,
+      final Result result) {
+    final boolean cacheable = shallow == null && readCache.isEnabled();
+    final boolean synced = shallow == null && syncedQueries.contains(queryKey);
+    snapshotPipeline.submit(
+        new SnapshotPipeline.Conversion<ReadCache.Entry>() {
+          @Override
+          public ReadCache.Entry convert() {
+            return new ReadCache.Entry(createSnapshotMap(snapshot, shallow), cacheable || synced);
+          }
+
+          @Override
+          public void deliver(ReadCache.Entry entry) {
+            if (cacheable) readCache.put(queryKey, entry);
+            if (synced) syncedQueries.recordBytes(queryKey, entry.bytes, true);
+            if (result != null) result.success(entry.snapshotMap);
+          }
+
+          @Override
+          public void fail(RuntimeException e) {
+            if (result != null) result.error("snapshot_failed", e.getMessage(), null);
+          }
+        });
+  }
+
+  /**
+   * Reads the value of a query once, failing with a "timeout" error if it takes too long. Without
+   * a result, the value is only read into the read cache.
+   */
+  private class SingleValueRead implements ValueEventListener, Runnable {
+    private final Query query;
+    private final String queryKey;
+    private final ShallowSnapshot shallow;
+    private final int timeoutMillis;
+    private final Result result;
+    private boolean completed = false;
+
+    SingleValueRead(
+        Query query, String queryKey, ShallowSnapshot shallow, int timeoutMillis, Result result) {
+      this.query = query;
+      this.queryKey = queryKey;
+      this.shallow = shallow;
+      this.timeoutMillis = timeoutMillis;
+      this.result = result;
+    }
+
+    void start() {
+      query.addListenerForSingleValueEvent(this);
+      if (timeoutMillis > 0) {
+        mainHandler.postDelayed(this, timeoutMillis);
+      }
+    }
+
+    @Override
+    public void onDataChange(DataSnapshot snapshot) {
+      if (completed) return;
+      completed = true;
+      mainHandler.removeCallbacks(this);
+      revalidatingQueries.remove(queryKey);
+      replyWithSnapshot(snapshot, queryKey, shallow, result);
+    }
 
-    EventObserver(String requestedEventType, int handle) {
-      this.requestedEventType = requestedEventType;
+    @Override
+    public void onCancelled(DatabaseError error) {
+      if (completed) return;
+      completed = true;
+      mainHandler.removeCallbacks(this);
+      revalidatingQueries.remove(queryKey);
+      if (result != null) {
+        result.error(String.valueOf(error.getCode()), error.getMessage(), error.getDetails());
+      }
+    }
+
+    // Called when the timeout expires. The SDK doesn't allow removing a single value listener, so
+    // a value that arrives later is ignored.
+    @Override
+    public void run() {
+      if (completed) return;
+      completed = true;
+      result.error("timeout", "Query#once timed out after " + timeoutMillis + "ms", null);
+    }
+  }
+
+  /**
+   * Runs a transaction whose update function lives on the Dart side, without blocking the
+   * database's run loop while Dart computes the update.
+   *
+   * <p>Each attempt is a separate SDK transaction that never waits: it commits the update Dart
+   * last computed if the current value still equals the value it was computed from, and otherwise
+   * aborts right away. Dart first computes the update from the current value of the location, and
+   * then from the value seen by each aborted attempt; a new attempt is started once Dart replies.
+   */
+  private class DartTransaction implements Transaction.Handler {
+    // Same limit as the SDK's own transaction retries.
+    private static final int MAX_ATTEMPTS = 25;
+
+    private final DatabaseReference reference;
+    private final Object transactionKey;
+    private final int timeout;
+    // When positive, the snapshot the transaction completes with is streamed in chunks of this
+    // many children instead of being sent with the result.
+    private final int chunkSize;
+    private final Result result;
+
+    // Set on the main thread before an attempt is started, read on the database thread.
+    private volatile boolean hasUpdate = false;
+    private volatile Object expectedValue;
+    private volatile Object updatedValue;
+
+    // Set on the database thread when an attempt aborts, read on the main thread.
+    private volatile String currentKey;
+    private volatile Object currentValue;
+
+    private int attempts = 0;
+    private long dartTimeMillis = 0;
+    private boolean started = false;
+    private boolean finished = false;
+
+    // Keeps the location synced while the transaction runs, so that each attempt starts from the
+    // server value rather than from a stale local guess it would keep aborting on. Its first value
+    // is sent to Dart before the first attempt, so that attempt can commit right away instead of
+    // aborting to learn the current value.
+    private final ValueEventListener syncListener =
+        new ValueEventListener() {
+          @Override
+          public void onDataChange(DataSnapshot snapshot) {
+            if (started || finished) return;
+            started = true;
+            currentKey = snapshot.getKey();
+            currentValue = snapshot.getValue();
+            requestUpdate(snapshot);
+          }
+
+          @Override
+          public void onCancelled(DatabaseError error) {
+            if (finished) return;
+            finish(error, false, null, "databaseError");
+          }
+        };
+
+    DartTransaction(
+        DatabaseReference reference,
+        Object transactionKey,
+        int timeout,
+        int chunkSize,
+        Result result) {
+      this.reference = reference;
+      this.transactionKey = transactionKey;
+      this.timeout = timeout;
+      this.chunkSize = chunkSize;
+      this.result = result;
+    }
+
+    void start() {
+      reference.addValueEventListener(syncListener);
+    }
+
+    @Override
+    public Transaction.Result doTransaction(MutableData mutableData) {
+      Object value = mutableData.getValue();
+      if (hasUpdate && TransactionOperations.valuesEqual(value, expectedValue)) {
+        mutableData.setValue(updatedValue);
+        return Transaction.success(mutableData);
+      }
+      currentKey = mutableData.getKey();
+      currentValue = value;
+      return Transaction.abort();
+    }
+
+    @Override
+    public void onComplete(DatabaseError error, boolean committed, DataSnapshot snapshot) {
+      if (error != null) {
+        finish(error, false, snapshot, "databaseError");
+      } else if (committed) {
+        finish(null, true, snapshot, null);
+      } else if (attempts >= MAX_ATTEMPTS) {
+        Log.e(TAG, "Transaction at " + reference.toString() + " exceeded the maximum attempts.");
+        finish(null, false, snapshot, "maxAttempts");
+      } else {
+        requestUpdate(snapshot);
+      }
+    }
+
+    // Sends the value seen by the last attempt to the Dart side, and starts a new attempt with
+    // the update it returns.
+    private void requestUpdate(final DataSnapshot snapshot) {
+      final int attempt = ++attempts;
+      final Object value = currentValue;
+      final long startTime = SystemClock.elapsedRealtime();
+      final Runnable timeoutCallback =
+          new Runnable() {
+            @Override
+            public void run() {
+              if (finished || attempt != attempts) return;
+              Log.e(TAG, "Transaction at " + reference.toString() + " timed out.");
+              dartTimeMillis += SystemClock.elapsedRealtime() - startTime;
+              finish(null, false, snapshot, "timeout");
+            }
+          };
+
+      Map<String, Object> snapshotMap = new HashMap<>();
+      snapshotMap.put("key", currentKey);
+      snapshotMap.put("value", value);
+      Map<String, Object> doTransactionMap = new HashMap<>();
+      doTransactionMap.put("transactionKey", transactionKey);
+      doTransactionMap.put("snapshot", snapshotMap);
+
+      channel.invokeMethod(
+          "DoTransaction",
+          doTransactionMap,
+          new MethodChannel.Result() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void success(Object updatedSnapshotMap) {
+              if (finished) return;
+              mainHandler.removeCallbacks(timeoutCallback);
+              dartTimeMillis += SystemClock.elapsedRealtime() - startTime;
+              expectedValue = value;
+              updatedValue = ((Map<String, Object>) updatedSnapshotMap).get("value");
+              hasUpdate = true;
+              reference.runTransaction(DartTransaction.this);
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+              if (finished) return;
+              mainHandler.removeCallbacks(timeoutCallback);
+              Log.e(
+                  TAG,
+                  "Unable to commit Snapshot update. Transaction failed."
+                      + "\nError code: "
+                      + errorCode
+                      + "\nError message: "
+                      + errorMessage
+                      + "\nError details: "
+                      + errorDetails);
+              dartTimeMillis += SystemClock.elapsedRealtime() - startTime;
+              finish(null, false, snapshot, "dartError");
+            }
+
+            @Override
+            public void notImplemented() {
+              if (finished) return;
+              mainHandler.removeCallbacks(timeoutCallback);
+              Log.e(TAG, "DoTransaction not implemented on Dart side.");
+              dartTimeMillis += SystemClock.elapsedRealtime() - startTime;
+              finish(null, false, snapshot, "dartError");
+            }
+          });
+      mainHandler.postDelayed(timeoutCallback, timeout);
+    }
+
+    private void finish(
+        DatabaseError error, boolean committed, DataSnapshot snapshot, String abortReason) {
+      finished = true;
+      reference.removeEventListener(syncListener);
+      Map<String, Object> metricsMap = new HashMap<>();
+      metricsMap.put("attempts", attempts);
+      metricsMap.put("dartTimeMillis", dartTimeMillis);
+      metricsMap.put("abortReason", abortReason);
+      boolean streamed = chunkSize > 0 && snapshot != null;
+      Map<String, Object> completionMap =
+          createTransactionCompletionMap(error, committed, streamed ? null : snapshot);
+      completionMap.put("transactionKey", transactionKey);
+      completionMap.put("metrics", metricsMap);
+      if (!streamed) {
+        // Invoke transaction completion on the Dart side.
+        result.success(completionMap);
+        return;
+      }
+      // The chunks follow the result, so Dart knows their handle before they arrive.
+      int handle = nextHandle++;
+      completionMap.put("chunkHandle", handle);
+      result.success(completionMap);
+      snapshotStreamer.send(handle, snapshot, chunkSize);
+    }
+  }
+
+  private static Map<String, Object> createTransactionCompletionMap(
+      DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+    Map<String, Object> completionMap = new HashMap<>();
+    if (databaseError != null) {
+      Map<String, Object> errorMap = new HashMap<>();
+      errorMap.put("code", databaseError.getCode());
+      errorMap.put("message", databaseError.getMessage());
+      errorMap.put("details", databaseError.getDetails());
+      completionMap.put("error", errorMap);
+    }
+    completionMap.put("committed", committed);
+    if (dataSnapshot != null) {
+      Map<String, Object> snapshotMap = new HashMap<>();
+      snapshotMap.put("key", dataSnapshot.getKey());
+      snapshotMap.put("value", dataSnapshot.getValue());
+      completionMap.put("snapshot", snapshotMap);
+    }
+    return completionMap;
+  }
+
+  // Canonical signature of the query described by the arguments. Parameter order and numeric
+  // representation don't affect the signature; string values are length-prefixed so that they
+  // can't be confused with the separators.
+  private String getQueryKey(Map<String, Object> arguments) {
+    String path = (String) arguments.get("path");
+    StringBuilder key = new StringBuilder(instances.resolve(arguments));
+    key.append('/').append(path != null ? path : "");
+    @SuppressWarnings("unchecked")
+    Map<String, Object> parameters = (Map<String, Object>) arguments.get("parameters");
+    if (parameters == null) return key.toString();
+    for (Map.Entry<String, Object> entry : new TreeMap<>(parameters).entrySet()) {
+      Object value = entry.getValue();
+      if (value == null) continue;
+      key.append('|').append(entry.getKey()).append('=');
+      if (value instanceof Boolean) {
+        key.append('b').append(value);
+      } else if (value instanceof Number) {
+        key.append('n').append(((Number) value).doubleValue());
+      } else {
+        String string = value.toString();
+        key.append('s').append(string.length()).append(':').append(string);
+      }
+    }
+    return key.toString();
+  }
+
+  // Appends to changes the (path, value) pairs that turn oldValue into newValue. Maps are compared
+  // key by key; any other value is replaced as a whole. A null value marks a removed path.
+  private static void diffValues(
+      List<String> path, Object oldValue, Object newValue, List<Map<String, Object>> changes) {
+    if (oldValue instanceof Map && newValue instanceof Map) {
+      Map<?, ?> oldMap = (Map<?, ?>) oldValue;
+      Map<?, ?> newMap = (Map<?, ?>) newValue;
+      for (Object key : oldMap.keySet()) {
+        if (!newMap.containsKey(key)) {
+          diffValues(childPath(path, key), oldMap.get(key), null, changes);
+        }
+      }
+      for (Map.Entry<?, ?> entry : newMap.entrySet()) {
+        Object key = entry.getKey();
+        diffValues(childPath(path, key), oldMap.get(key), entry.getValue(), changes);
+      }
+    } else if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+      Map<String, Object> change = new HashMap<>();
+      change.put("path", path);
+      change.put("value", newValue);
+      changes.add(change);
+    }
+  }
+
+  private static List<String> childPath(List<String> path, Object key) {
+    List<String> childPath = new ArrayList<>(path);
+    childPath.add(String.valueOf(key));
+    return childPath;
+  }
+
+  private class Subscription implements FlowControl.Sink {
+    final int handle;
+    final String eventType;
+    // Lifecycle statistics reported by FirebaseDatabase#listActiveObservers. Events and bytes are
+    // counted when they are sent to this handle, before any are dropped by flow control.
+    final long createdTime = SystemClock.elapsedRealtime();
+    int eventCount = 0;
+    long bytesSent = 0;
+    // Set while the current state of the query is being replayed to a handle that joined an
+    // already attached listener; live events are not delivered to it until then.
+    boolean pending;
+
+    // When positive, value events are sent as changes against the last value sent to this handle,
+    // with the full value re-sent every resyncInterval events.
+    private final int resyncInterval;
+    private Object lastValue;
+    private int eventsSinceResync = -1;
+
+    // Limits how fast events are delivered to this handle, or null to deliver them right away.
+    private final FlowControl flowControl;
+
+    // When positive, value snapshots are streamed to this handle in chunks of this many children
+    // instead of being sent as events.
+    private final int chunkSize;
+
+    // Channel of this handle's own that events are sent over instead of the method channel, or
+    // null. Its events are neither flow controlled, sent as deltas, nor batched per frame;
+    // Query#observe rejects the first two.
+    private final QueryEventChannel eventChannel;
+
+    // Aggregates of the children of the query sent to this handle instead of child events, or null.
+    // At most one aggregate event is sent per main thread message.
+    private final Aggregator aggregator;
+    private boolean aggregateScheduled = false;
+    private final Runnable aggregateCallback =
+        new Runnable() {
+          @Override
+          public void run() {
+            aggregateScheduled = false;
+            eventCount++;
+            Map<String, Object> event = new HashMap<>();
+            event.put("handle", handle);
+            event.put("aggregate", aggregator.getResult());
+            dispatchEvent(event);
+          }
+        };
+
+    Subscription(int handle, Map<String, Object> arguments) {
       this.handle = handle;
+      this.eventType = (String) arguments.get("eventType");
+      Object resyncInterval = arguments.get("deltaResyncInterval");
+      this.resyncInterval = resyncInterval != null ? (int) resyncInterval : 0;
+      @SuppressWarnings("unchecked")
+      Map<String, Object> flowControl = (Map<String, Object>) arguments.get("flowControl");
+      this.flowControl = FlowControl.fromArguments(flowControl, mainHandler, this);
+      Object chunkSize = arguments.get("chunkSize");
+      this.chunkSize = chunkSize != null ? (int) chunkSize : 0;
+      @SuppressWarnings("unchecked")
+      Map<String, Object> aggregate = (Map<String, Object>) arguments.get("aggregate");
+      this.aggregator = Aggregator.fromArguments(aggregate);
+      this.eventChannel =
+          Boolean.TRUE.equals(arguments.get("dedicatedChannel"))
+              ? new QueryEventChannel(
+                  messenger,
+                  handle,
+                  !EVENT_TYPE_VALUE.equals(eventType),
+                  Boolean.TRUE.equals(arguments.get("childIndices")))
+              : null;
+    }
+
+    boolean aggregates() {
+      return aggregator != null;
+    }
+
+    /** Sends the aggregates of the children once the current main thread message is handled. */
+    void aggregateChanged() {
+      if (aggregateScheduled) return;
+      aggregateScheduled = true;
+      mainHandler.post(aggregateCallback);
+    }
+
+    boolean streamsSnapshots() {
+      return chunkSize > 0;
+    }
+
+    void stream(DataSnapshot snapshot) {
+      eventCount++;
+      snapshotStreamer.send(handle, snapshot, chunkSize);
+    }
+
+    void send(Map<String, Object> snapshotMap, String previousChildName) {
+      send(snapshotMap, previousChildName, -1, -1);
+    }
+
+    // Indices are only sent when they are not negative.
+    void send(
+        Map<String, Object> snapshotMap, String previousChildName, int oldIndex, int newIndex) {
+      eventCount++;
+      if (eventChannel != null) {
+        eventChannel.send(snapshotMap, previousChildName, oldIndex, newIndex);
+        return;
+      }
+      Map<String, Object> arguments = new HashMap<>();
+      arguments.put("handle", handle);
+      arguments.put("snapshot", snapshotMap);
+      arguments.put("previousSiblingKey", previousChildName);
+      if (oldIndex >= 0) arguments.put("oldIndex", oldIndex);
+      if (newIndex >= 0) arguments.put("newIndex", newIndex);
+      if (flowControl != null) {
+        flowControl.offer(arguments);
+      } else {
+        deliver(arguments);
+      }
+    }
+
+    // Deltas are computed at delivery time, so events dropped by flow control never leave the Dart
+    // side with a value the changes don't apply to.
+    @Override
+    public void deliver(Map<String, Object> event) {
+      if (resyncInterval > 0) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> snapshotMap = (Map<String, Object>) event.get("snapshot");
+        List<Map<String, Object>> changes = createDelta(snapshotMap.get("value"));
+        if (changes != null) {
+          Map<String, Object> keyMap = new HashMap<>();
+          keyMap.put("key", snapshotMap.get("key"));
+          event.put("snapshot", keyMap);
+          event.put("changes", changes);
+        }
+      }
+      dispatchEvent(event);
+    }
+
+    void cancel() {
+      if (flowControl != null) flowControl.cancel();
+      if (streamsSnapshots()) snapshotStreamer.cancel(handle);
+      if (aggregates()) mainHandler.removeCallbacks(aggregateCallback);
+      if (eventChannel != null) eventChannel.close();
     }
 
-    private void sendEvent(String eventType, DataSnapshot snapshot, String previousChildName) {
-      if (eventType.equals(requestedEventType)) {
-        Map<String, Object> arguments = new HashMap<>();
-        Map<String, Object> snapshotMap = new HashMap<>();
-        snapshotMap.put("key", snapshot.getKey());
-        snapshotMap.put("value", snapshot.getValue());
-        arguments.put("handle", handle);
-        arguments.put("snapshot", snapshotMap);
-        arguments.put("previousSiblingKey", previousChildName);
-        channel.invokeMethod("Event", arguments);
+    // Returns the changes from the last value sent to this handle to the given value, or null if
+    // the full value should be sent instead.
+    private List<Map<String, Object>> createDelta(Object value) {
+      Object previousValue = lastValue;
+      lastValue = value;
+      if (eventsSinceResync < 0 || ++eventsSinceResync >= resyncInterval) {
+        eventsSinceResync = 0;
+        return null;
+      }
+      if (!(previousValue instanceof Map) || !(value instanceof Map)) {
+        return null;
+      }
+      List<Map<String, Object>> changes = new ArrayList<>();
+      diffValues(new ArrayList<String>(), previousValue, value, changes);
+      return changes;
+    }
+  }
+
+  private class EventObserver implements ChildEventListener, ValueEventListener {
+    private final String queryKey;
+    private final String key;
+    private final Query query;
+    private final boolean observesValue;
+    final List<Subscription> subscriptions = new ArrayList<>();
+    // Latest snapshot of a value listener, which one-time reads of the query can be served from.
+    private DataSnapshot lastSnapshot;
+    // Positions of the children of a child listener that sends child indices, or null.
+    private final ChildIndex childIndex;
+    // Conversion of a value listener that sends shallow values, or null.
+    private final ShallowSnapshot shallow;
+
+    EventObserver(
+        String queryKey,
+        Query query,
+        boolean observesValue,
+        boolean indexesChildren,
+        ShallowSnapshot shallow) {
+      this.queryKey = queryKey;
+      this.key = getObserverKey(queryKey, observesValue, indexesChildren, shallow);
+      this.childIndex = indexesChildren ? new ChildIndex() : null;
+      this.shallow = shallow;
+      this.query = query;
+      this.observesValue = observesValue;
+    }
+
+    void addSubscription(final Subscription subscription) {
+      subscriptions.add(subscription);
+      if (subscriptions.size() == 1) {
+        if (observesValue) {
+          query.addValueEventListener(this);
+        } else {
+          query.addChildEventListener(this);
+        }
+        // Aggregates have to be sent even when the query has no children, and a child listener
+        // raises no event to tell, so they always start from a read of the current state.
+        if (!subscription.aggregates()) return;
+      }
+
+      // The SDK only raises initial events for newly attached listeners, so the current state of
+      // the query is read back from the SDK's in-memory view and replayed to the new handle.
+      subscription.pending = true;
+      query.addListenerForSingleValueEvent(
+          new ValueEventListener() {
+            @Override
+            public void onDataChange(final DataSnapshot snapshot) {
+              if (!subscriptions.contains(subscription)) return;
+              subscription.pending = false;
+              if (subscription.aggregates()) {
+                subscription.aggregator.clear();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                  subscription.aggregator.put(child);
+                }
+                subscription.aggregateChanged();
+              } else if (subscription.streamsSnapshots()) {
+                subscription.stream(snapshot);
+              } else if (observesValue
+                  || EVENT_TYPE_CHILD_ADDED.equals(subscription.eventType)) {
+                snapshotPipeline.submit(
+                    new SnapshotPipeline.Conversion<List<Map<String, Object>>>() {
+                      @Override
+                      public List<Map<String, Object>> convert() {
+                        List<Map<String, Object>> snapshotMaps = new ArrayList<>();
+                        if (observesValue) {
+                          snapshotMaps.add(createSnapshotMap(snapshot, shallow));
+                        } else {
+                          for (DataSnapshot child : snapshot.getChildren()) {
+                            snapshotMaps.add(createSnapshotMap(child));
+                          }
+                        }
+                        return snapshotMaps;
+                      }
+
+                      @Override
+                      public void deliver(List<Map<String, Object>> snapshotMaps) {
+                        if (!subscriptions.contains(subscription)) return;
+                        String previousChildName = null;
+                        for (int i = 0; i < snapshotMaps.size(); i++) {
+                          Map<String, Object> snapshotMap = snapshotMaps.get(i);
+                          int newIndex = childIndex != null ? i : -1;
+                          subscription.send(snapshotMap, previousChildName, -1, newIndex);
+                          previousChildName = (String) snapshotMap.get("key");
+                        }
+                      }
+
+                      @Override
+                      public void fail(RuntimeException e) {
+                        Log.e(TAG, "Could not convert the snapshot of " + queryKey, e);
+                      }
+                    });
+              }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError error) {
+              subscription.pending = false;
+            }
+          });
+    }
+
+    void removeSubscription(int handle) {
+      Iterator<Subscription> iterator = subscriptions.iterator();
+      while (iterator.hasNext()) {
+        Subscription subscription = iterator.next();
+        if (subscription.handle == handle) {
+          subscription.cancel();
+          iterator.remove();
+        }
+      }
+      if (subscriptions.isEmpty()) {
+        if (observesValue) {
+          query.removeEventListener((ValueEventListener) this);
+        } else {
+          query.removeEventListener((ChildEventListener) this);
+        }
+        sharedObservers.remove(key);
+      }
+    }
+
+    private void sendEvent(
+        String eventType,
+        final DataSnapshot snapshot,
+        final String previousChildName,
+        final int oldIndex,
+        final int newIndex) {
+      final List<Subscription> targets = new ArrayList<>();
+      for (Subscription subscription : subscriptions) {
+        if (subscription.pending || !eventType.equals(subscription.eventType)) continue;
+        if (subscription.streamsSnapshots()) {
+          subscription.stream(snapshot);
+        } else {
+          targets.add(subscription);
+        }
+      }
+      final boolean cacheable = observesValue && shallow == null && readCache.isEnabled();
+      final boolean synced = shallow == null && syncedQueries.contains(queryKey);
+      if (targets.isEmpty() && !cacheable && !synced) return;
+      // The snapshot is converted once, off the main thread, however many handles it is delivered
+      // to. Handles removed while it was converted don't receive it.
+      snapshotPipeline.submit(
+          new SnapshotPipeline.Conversion<ReadCache.Entry>() {
+            @Override
+            public ReadCache.Entry convert() {
+              // Always measured, for the bytes delivered to each handle.
+              return new ReadCache.Entry(createSnapshotMap(snapshot, shallow), true);
+            }
+
+            @Override
+            public void deliver(ReadCache.Entry entry) {
+              if (cacheable) readCache.put(queryKey, entry);
+              if (synced) syncedQueries.recordBytes(queryKey, entry.bytes, observesValue);
+              for (Subscription subscription : targets) {
+                if (subscriptions.contains(subscription)) {
+                  subscription.bytesSent += entry.bytes;
+                  subscription.send(entry.snapshotMap, previousChildName, oldIndex, newIndex);
+                }
+              }
+            }
+
+            @Override
+            public void fail(RuntimeException e) {
+              Log.e(TAG, "Could not convert the snapshot of " + queryKey, e);
+            }
+          });
+    }
+
+    // Only the aggregated field of the child is read, so this stays on the main thread.
+    private void updateAggregates(DataSnapshot child, boolean removed) {
+      for (Subscription subscription : subscriptions) {
+        if (subscription.pending || !subscription.aggregates()) continue;
+        if (removed) {
+          subscription.aggregator.remove(child.getKey());
+        } else {
+          subscription.aggregator.put(child);
+        }
+        subscription.aggregateChanged();
       }
     }
 
@@ -183,59 +1089,94 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
 
     @Override
     public void onChildAdded(DataSnapshot snapshot, String previousChildName) {
-      sendEvent(EVENT_TYPE_CHILD_ADDED, snapshot, previousChildName);
+      int newIndex = childIndex != null ? childIndex.add(snapshot.getKey(), previousChildName) : -1;
+      updateAggregates(snapshot, false);
+      sendEvent(EVENT_TYPE_CHILD_ADDED, snapshot, previousChildName, -1, newIndex);
     }
 
     @Override
     public void onChildRemoved(DataSnapshot snapshot) {
-      sendEvent(EVENT_TYPE_CHILD_REMOVED, snapshot, null);
+      int oldIndex = childIndex != null ? childIndex.remove(snapshot.getKey()) : -1;
+      updateAggregates(snapshot, true);
+      sendEvent(EVENT_TYPE_CHILD_REMOVED, snapshot, null, oldIndex, -1);
     }
 
     @Override
     public void onChildChanged(DataSnapshot snapshot, String previousChildName) {
-      sendEvent(EVENT_TYPE_CHILD_CHANGED, snapshot, previousChildName);
+      int index = childIndex != null ? childIndex.indexOf(snapshot.getKey()) : -1;
+      updateAggregates(snapshot, false);
+      sendEvent(EVENT_TYPE_CHILD_CHANGED, snapshot, previousChildName, index, index);
     }
 
     @Override
     public void onChildMoved(DataSnapshot snapshot, String previousChildName) {
-      sendEvent(EVENT_TYPE_CHILD_MOVED, snapshot, previousChildName);
+      int oldIndex = -1;
+      int newIndex = -1;
+      if (childIndex != null) {
+        oldIndex = childIndex.remove(snapshot.getKey());
+        newIndex = childIndex.add(snapshot.getKey(), previousChildName);
+      }
+      sendEvent(EVENT_TYPE_CHILD_MOVED, snapshot, previousChildName, oldIndex, newIndex);
     }
 
     @Override
     public void onDataChange(DataSnapshot snapshot) {
-      sendEvent(EVENT_TYPE_VALUE, snapshot, null);
+      lastSnapshot = snapshot;
+      sendEvent(EVENT_TYPE_VALUE, snapshot, null, -1, -1);
     }
   }
 
   @Override
-  public void onMethodCall(final MethodCall call, final Result result) {
+  public void onMethodCall(MethodCall call, Result result) {
+    try {
+      handleMethodCall(call, result);
+    } catch (DatabaseInstances.UnknownAppException e) {
+      // Raised while resolving the call's database, before anything was done or replied.
+      result.error("unknown_app", e.getMessage(), null);
+    }
+  }
+
+  private void handleMethodCall(final MethodCall call, final Result result) {
     switch (call.method) {
       case "FirebaseDatabase#goOnline":
         {
-          FirebaseDatabase.getInstance().goOnline();
+          Map<String, Object> arguments = call.arguments();
+          for (FirebaseDatabase database : instances.getDatabases(arguments)) {
+            database.goOnline();
+          }
           result.success(null);
           break;
         }
 
       case "FirebaseDatabase#goOffline":
         {
-          FirebaseDatabase.getInstance().goOffline();
+          Map<String, Object> arguments = call.arguments();
+          for (FirebaseDatabase database : instances.getDatabases(arguments)) {
+            database.goOffline();
+          }
           result.success(null);
           break;
         }
 
       case "FirebaseDatabase#purgeOutstandingWrites":
         {
-          FirebaseDatabase.getInstance().purgeOutstandingWrites();
+          writeCoalescer.flush();
+          Map<String, Object> arguments = call.arguments();
+          for (FirebaseDatabase database : instances.getDatabases(arguments)) {
+            database.purgeOutstandingWrites();
+          }
           result.success(null);
           break;
         }
 
       case "FirebaseDatabase#setPersistenceEnabled":
         {
-          Boolean isEnabled = (Boolean) call.arguments;
+          Map<String, Object> arguments = call.arguments();
+          boolean isEnabled = (Boolean) arguments.get("enabled");
           try {
-            FirebaseDatabase.getInstance().setPersistenceEnabled(isEnabled);
+            for (FirebaseDatabase database : instances.getDatabases(arguments)) {
+              database.setPersistenceEnabled(isEnabled);
+            }
             result.success(true);
           } catch (DatabaseException e) {
             // Database is already in use, e.g. after hot reload/restart.
@@ -246,9 +1187,13 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
 
       case "FirebaseDatabase#setPersistenceCacheSizeBytes":
         {
-          long cacheSize = (Integer) call.arguments;
+          Map<String, Object> arguments = call.arguments();
+          long cacheSize = ((Number) arguments.get("cacheSize")).longValue();
           try {
-            FirebaseDatabase.getInstance().setPersistenceCacheSizeBytes(cacheSize);
+            for (FirebaseDatabase database : instances.getDatabases(arguments)) {
+              database.setPersistenceCacheSizeBytes(cacheSize);
+            }
+            persistenceCacheSizeBytes = cacheSize;
             result.success(true);
           } catch (DatabaseException e) {
             // Database is already in use, e.g. after hot reload/restart.
@@ -257,12 +1202,141 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
           break;
         }
 
+      case "FirebaseDatabase#setShardRoutes":
+        {
+          Map<String, Object> arguments = call.arguments();
+          @SuppressWarnings("unchecked")
+          Map<String, String> routes = (Map<String, String>) arguments.get("routes");
+          instances.setShardRoutes(arguments, routes);
+          result.success(null);
+          break;
+        }
+
+      case "FirebaseDatabase#removeStaleObservers":
+        {
+          Map<String, Object> arguments = call.arguments();
+          removeStaleObservers((String) arguments.get("isolateToken"));
+          result.success(null);
+          break;
+        }
+
+      case "FirebaseDatabase#listActiveObservers":
+        {
+          long now = SystemClock.elapsedRealtime();
+          List<Map<String, Object>> activeObservers = new ArrayList<>();
+          for (int i = 0; i < observers.size(); i++) {
+            EventObserver observer = observers.valueAt(i);
+            for (Subscription subscription : observer.subscriptions) {
+              if (subscription.handle != observers.keyAt(i)) continue;
+              Map<String, Object> activeObserver = new HashMap<>();
+              activeObserver.put("handle", subscription.handle);
+              activeObserver.put("query", observer.queryKey);
+              activeObserver.put("eventType", subscription.eventType);
+              activeObserver.put("ageMillis", now - subscription.createdTime);
+              activeObserver.put("eventCount", subscription.eventCount);
+              activeObserver.put("bytesDelivered", subscription.bytesSent);
+              activeObserver.put("listenerCount", observer.subscriptions.size());
+              activeObservers.add(activeObserver);
+            }
+          }
+          result.success(activeObservers);
+          break;
+        }
+
+      case "FirebaseDatabase#setEventBatchingEnabled":
+        {
+          Map<String, Object> arguments = call.arguments();
+          boolean enabled = (Boolean) arguments.get("enabled");
+          if (!enabled) {
+            // Deliver anything still buffered before switching back to per-event delivery.
+            flushEvents();
+          }
+          batchEvents = enabled;
+          if (arguments.get("maxBatchSize") != null) {
+            maxBatchSize = (int) arguments.get("maxBatchSize");
+          }
+          result.success(null);
+          break;
+        }
+
+      case "FirebaseDatabase#getQueryCacheStats":
+        {
+          Map<String, Object> stats = new HashMap<>();
+          stats.put("hits", queryCache.hitCount());
+          stats.put("misses", queryCache.missCount());
+          stats.put("size", queryCache.size());
+          stats.put("maxSize", queryCache.maxSize());
+          result.success(stats);
+          break;
+        }
+
+      case "FirebaseDatabase#setReadCacheSettings":
+        {
+          Map<String, Object> arguments = call.arguments();
+          readCache.configure(
+              (int) arguments.get("maxEntries"),
+              ((Number) arguments.get("maxBytes")).longValue(),
+              ((Number) arguments.get("timeToLiveMillis")).longValue());
+          result.success(null);
+          break;
+        }
+
+      case "FirebaseDatabase#setWriteCoalescingInterval":
+        {
+          writeCoalescer.setFlushInterval(((Number) call.arguments).longValue());
+          result.success(null);
+          break;
+        }
+
+      case "FirebaseDatabase#getReadCacheStats":
+        {
+          result.success(readCache.getStats());
+          break;
+        }
+
+      case "FirebaseDatabase#commitBatch":
+        {
+          Map<String, Object> arguments = call.arguments();
+          @SuppressWarnings("unchecked")
+          List<Map<String, Object>> operations =
+              (List<Map<String, Object>>) arguments.get("operations");
+          Map<String, Object> updates;
+          try {
+            updates = BatchWrite.compile(operations);
+          } catch (IllegalArgumentException e) {
+            result.error("invalid_batch", e.getMessage(), null);
+            break;
+          }
+          // A multi-path update is only atomic within one database.
+          String instanceKey = instances.resolve(arguments, null);
+          boolean crossesShards = false;
+          for (int i = 0; i < operations.size(); i++) {
+            String key = instances.resolve(arguments, (String) operations.get(i).get("path"));
+            crossesShards |= i > 0 && !key.equals(instanceKey);
+            instanceKey = key;
+          }
+          if (crossesShards) {
+            result.error("invalid_batch", "Batch writes to locations in different shards", null);
+            break;
+          }
+          writeCoalescer.flush();
+          instances
+              .getRootReference(instanceKey)
+              .updateChildren(updates, new DefaultCompletionListener(result));
+          break;
+        }
+
       case "DatabaseReference#set":
         {
           Map<String, Object> arguments = call.arguments();
           Object value = arguments.get("value");
           Object priority = arguments.get("priority");
           DatabaseReference reference = getReference(arguments);
+          if (Boolean.TRUE.equals(arguments.get("coalesce"))) {
+            writeCoalescer.set(reference, value, priority, result);
+            break;
+          }
+          writeCoalescer.flush();
           if (priority != null) {
             reference.setValue(value, priority, new DefaultCompletionListener(result));
           } else {
@@ -277,6 +1351,7 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
           @SuppressWarnings("unchecked")
           Map<String, Object> value = (Map<String, Object>) arguments.get("value");
           DatabaseReference reference = getReference(arguments);
+          writeCoalescer.flush();
           reference.updateChildren(value, new DefaultCompletionListener(result));
           break;
         }
@@ -286,109 +1361,169 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
           Map<String, Object> arguments = call.arguments();
           Object priority = arguments.get("priority");
           DatabaseReference reference = getReference(arguments);
+          writeCoalescer.flush();
           reference.setPriority(priority, new DefaultCompletionListener(result));
           break;
         }
 
       case "DatabaseReference#runTransaction":
         {
-          final Map<String, Object> arguments = call.arguments();
-          final DatabaseReference reference = getReference(arguments);
-
-          // Initiate native transaction.
-          reference.runTransaction(
-              new Transaction.Handler() {
-                @Override
-                public Transaction.Result doTransaction(MutableData mutableData) {
-                  // Tasks are used to allow native execution of doTransaction to wait while Snapshot is
-                  // processed by logic on the Dart side.
-                  final TaskCompletionSource<Map<String, Object>> updateMutableDataTCS =
-                      new TaskCompletionSource<>();
-                  final Task<Map<String, Object>> updateMutableDataTCSTask =
-                      updateMutableDataTCS.getTask();
-
-                  Map<String, Object> doTransactionMap = new HashMap<>();
-                  doTransactionMap.put("transactionKey", arguments.get("transactionKey"));
-
-                  final Map<String, Object> snapshotMap = new HashMap<>();
-                  snapshotMap.put("key", mutableData.getKey());
-                  snapshotMap.put("value", mutableData.getValue());
-                  doTransactionMap.put("snapshot", snapshotMap);
-
-                  // Return snapshot to Dart side for update.
-                  channel.invokeMethod(
-                      "DoTransaction",
-                      doTransactionMap,
-                      new MethodChannel.Result() {
-                        @Override
-                        @SuppressWarnings("unchecked")
-                        public void success(Object result) {
-                          updateMutableDataTCS.setResult((Map<String, Object>) result);
-                        }
+          Map<String, Object> arguments = call.arguments();
+          writeCoalescer.flush();
+          Object chunkSize = arguments.get("chunkSize");
+          new DartTransaction(
+                  getReference(arguments),
+                  arguments.get("transactionKey"),
+                  (int) arguments.get("transactionTimeout"),
+                  chunkSize != null ? (int) chunkSize : 0,
+                  result)
+              .start();
+          break;
+        }
 
-                        @Override
-                        public void error(
-                            String errorCode, String errorMessage, Object errorDetails) {
-                          String exceptionMessage =
-                              "Error code: "
-                                  + errorCode
-                                  + "\nError message: "
-                                  + errorMessage
-                                  + "\nError details: "
-                                  + errorDetails;
-                          updateMutableDataTCS.setException(new Exception(exceptionMessage));
-                        }
+      case "DatabaseReference#exportToFile":
+        {
+          Map<String, Object> arguments = call.arguments();
+          final File file = getFile(arguments);
+          getReference(arguments)
+              .addListenerForSingleValueEvent(
+                  new ValueEventListener() {
+                    @Override
+                    public void onDataChange(final DataSnapshot snapshot) {
+                      fileTransfers.submit(
+                          new SnapshotPipeline.Conversion<Object>() {
+                            @Override
+                            public Object convert() {
+                              try {
+                                return JsonTransfer.export(snapshot, file);
+                              } catch (IOException e) {
+                                return e;
+                              }
+                            }
 
-                        @Override
-                        public void notImplemented() {
-                          updateMutableDataTCS.setException(
-                              new Exception("DoTransaction not implemented on Dart side."));
-                        }
-                      });
-
-                  try {
-                    // Wait for updated snapshot from the Dart side.
-                    Map<String, Object> updatedSnapshotMap =
-                        Tasks.await(
-                            updateMutableDataTCSTask,
-                            (int) arguments.get("transactionTimeout"),
-                            TimeUnit.MILLISECONDS);
-                    // Set value of MutableData to value returned from the Dart side.
-                    mutableData.setValue(updatedSnapshotMap.get("value"));
-                  } catch (ExecutionException | InterruptedException | TimeoutException e) {
-                    Log.e(TAG, "Unable to commit Snapshot update. Transaction failed.", e);
-                    if (e instanceof TimeoutException) {
-                      Log.e(TAG, "Transaction at " + reference.toString() + " timed out.");
+                            @Override
+                            public void deliver(Object bytes) {
+                              if (bytes instanceof IOException) {
+                                String message = ((IOException) bytes).getMessage();
+                                result.error("export_failed", message, null);
+                                return;
+                              }
+                              Map<String, Object> export = new HashMap<>();
+                              export.put("file", file.getAbsolutePath());
+                              export.put("bytes", bytes);
+                              result.success(export);
+                            }
+
+                            @Override
+                            public void fail(RuntimeException e) {
+                              result.error("export_failed", e.getMessage(), null);
+                            }
+                          });
                     }
-                    return Transaction.abort();
-                  }
-                  return Transaction.success(mutableData);
-                }
 
-                @Override
-                public void onComplete(
-                    DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
-                  Map<String, Object> completionMap = new HashMap<>();
-                  completionMap.put("transactionKey", arguments.get("transactionKey"));
-                  if (databaseError != null) {
-                    Map<String, Object> errorMap = new HashMap<>();
-                    errorMap.put("code", databaseError.getCode());
-                    errorMap.put("message", databaseError.getMessage());
-                    errorMap.put("details", databaseError.getDetails());
-                    completionMap.put("error", errorMap);
-                  }
-                  completionMap.put("committed", committed);
-                  if (dataSnapshot != null) {
-                    Map<String, Object> snapshotMap = new HashMap<>();
-                    snapshotMap.put("key", dataSnapshot.getKey());
-                    snapshotMap.put("value", dataSnapshot.getValue());
-                    completionMap.put("snapshot", snapshotMap);
-                  }
-
-                  // Invoke transaction completion on the Dart side.
-                  result.success(completionMap);
-                }
-              });
+                    @Override
+                    public void onCancelled(DatabaseError error) {
+                      result.error(
+                          String.valueOf(error.getCode()), error.getMessage(), error.getDetails());
+                    }
+                  });
+          break;
+        }
+
+      case "DatabaseReference#importFromFile":
+        {
+          Map<String, Object> arguments = call.arguments();
+          final Object importKey = arguments.get("importKey");
+          writeCoalescer.flush();
+          new JsonTransfer.Import(
+                  fileTransfers,
+                  getReference(arguments),
+                  getFile(arguments),
+                  (int) arguments.get("batchSize"),
+                  new JsonTransfer.Import.Listener() {
+                    @Override
+                    public void onProgress(long writtenValues, long bytesRead, long totalBytes) {
+                      Map<String, Object> progress = new HashMap<>();
+                      progress.put("importKey", importKey);
+                      progress.put("writtenValues", writtenValues);
+                      progress.put("bytesRead", bytesRead);
+                      progress.put("totalBytes", totalBytes);
+                      channel.invokeMethod("ImportProgress", progress);
+                    }
+
+                    @Override
+                    public void onComplete(long writtenValues) {
+                      result.success(writtenValues);
+                    }
+
+                    @Override
+                    public void onError(String code, String message) {
+                      result.error(code, message, null);
+                    }
+                  })
+              .start();
+          break;
+        }
+
+      case "DatabaseReference#runTransactionOperation":
+        {
+          Map<String, Object> arguments = call.arguments();
+          writeCoalescer.flush();
+          @SuppressWarnings("unchecked")
+          final Map<String, Object> operation = (Map<String, Object>) arguments.get("operation");
+          getReference(arguments)
+              .runTransaction(
+                  new Transaction.Handler() {
+                    @Override
+                    public Transaction.Result doTransaction(MutableData mutableData) {
+                      return TransactionOperations.apply(operation, mutableData);
+                    }
+
+                    @Override
+                    public void onComplete(
+                        DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                      result.success(
+                          createTransactionCompletionMap(databaseError, committed, dataSnapshot));
+                    }
+                  });
+          break;
+        }
+
+      case "Query#once":
+        {
+          Map<String, Object> arguments = call.arguments();
+          String queryKey = getQueryKey(arguments);
+          Query query = getQuery(queryKey, arguments);
+          @SuppressWarnings("unchecked")
+          ShallowSnapshot shallow =
+              ShallowSnapshot.fromArguments((Map<String, Object>) arguments.get("shallow"));
+          syncedQueries.touch(queryKey);
+          if (Boolean.TRUE.equals(arguments.get("cacheFirst"))) {
+            // Any value listener of the query has the latest snapshot, whatever it converts it to.
+            EventObserver observer =
+                sharedObservers.get(getObserverKey(queryKey, true, false, null));
+            if (observer != null && observer.lastSnapshot != null) {
+              replyWithSnapshot(observer.lastSnapshot, queryKey, shallow, result);
+              break;
+            }
+            ReadCache.Entry entry =
+                shallow == null && readCache.isEnabled() ? readCache.get(queryKey) : null;
+            if (entry != null) {
+              // Stale while revalidate: reply with the cached value right away, and read the
+              // query again so that the next read gets the current value.
+              Map<String, Object> snapshotMap = new HashMap<>(entry.snapshotMap);
+              snapshotMap.put("cacheAgeMillis", entry.ageMillis());
+              result.success(snapshotMap);
+              if (revalidatingQueries.add(queryKey)) {
+                new SingleValueRead(query, queryKey, null, 0, null).start();
+              }
+              break;
+            }
+          }
+          Object timeoutMillis = arguments.get("timeoutMillis");
+          new SingleValueRead(
+                  query, queryKey, shallow, timeoutMillis != null ? (int) timeoutMillis : 0, result)
+              .start();
           break;
         }
 
@@ -396,23 +1531,73 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
         {
           Map<String, Object> arguments = call.arguments();
           boolean value = (Boolean) arguments.get("value");
-          getQuery(arguments).keepSynced(value);
+          Object priority = arguments.get("priority");
+          String queryKey = getQueryKey(arguments);
+          syncedQueries.keepSynced(
+              queryKey,
+              getQuery(queryKey, arguments),
+              value,
+              priority != null ? (int) priority : 0);
+          result.success(null);
+          break;
+        }
+
+      case "FirebaseDatabase#setMaxSyncedQueries":
+        {
+          Object maxSyncedQueries = call.arguments;
+          syncedQueries.setMaxQueries(
+              maxSyncedQueries != null ? (int) maxSyncedQueries : Integer.MAX_VALUE);
           result.success(null);
           break;
         }
 
+      case "FirebaseDatabase#getSyncStats":
+        {
+          result.success(syncedQueries.getStats(persistenceCacheSizeBytes));
+          break;
+        }
+
       case "Query#observe":
         {
           Map<String, Object> arguments = call.arguments();
+          // Events sent over a dedicated channel bypass flow control and deltas, so the options
+          // can't be combined.
+          if (Boolean.TRUE.equals(arguments.get("dedicatedChannel"))
+              && (arguments.get("flowControl") != null
+                  || arguments.get("deltaResyncInterval") != null)) {
+            result.error(
+                "invalid_query",
+                "Dedicated channels can't be combined with flow control or value deltas",
+                null);
+            break;
+          }
           String eventType = (String) arguments.get("eventType");
+          boolean observesValue = eventType.equals(EVENT_TYPE_VALUE);
+          String queryKey = getQueryKey(arguments);
+          boolean indexesChildren =
+              !observesValue && Boolean.TRUE.equals(arguments.get("childIndices"));
+          @SuppressWarnings("unchecked")
+          ShallowSnapshot shallow =
+              observesValue
+                  ? ShallowSnapshot.fromArguments((Map<String, Object>) arguments.get("shallow"))
+                  : null;
+          String key = getObserverKey(queryKey, observesValue, indexesChildren, shallow);
+          syncedQueries.touch(queryKey);
+          EventObserver observer = sharedObservers.get(key);
+          if (observer == null) {
+            observer =
+                new EventObserver(
+                    queryKey,
+                    getQuery(queryKey, arguments),
+                    observesValue,
+                    indexesChildren,
+                    shallow);
+            sharedObservers.put(key, observer);
+          }
           int handle = nextHandle++;
-          EventObserver observer = new EventObserver(eventType, handle);
           observers.put(handle, observer);
-          if (eventType.equals(EVENT_TYPE_VALUE)) {
-            getQuery(arguments).addValueEventListener(observer);
-          } else {
-            getQuery(arguments).addChildEventListener(observer);
-          }
+          observerIsolates.put(handle, (String) arguments.get("isolateToken"));
+          observer.addSubscription(new Subscription(handle, arguments));
           result.success(handle);
           break;
         }
@@ -420,16 +1605,13 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
       case "Query#removeObserver":
         {
           Map<String, Object> arguments = call.arguments();
-          Query query = getQuery(arguments);
           int handle = (Integer) arguments.get("handle");
           EventObserver observer = observers.get(handle);
           if (observer != null) {
-            if (observer.requestedEventType.equals(EVENT_TYPE_VALUE)) {
-              query.removeEventListener((ValueEventListener) observer);
-            } else {
-              query.removeEventListener((ChildEventListener) observer);
-            }
+            observer.removeSubscription(handle);
             observers.delete(handle);
+            observerIsolates.delete(handle);
+            discardPendingEvents(handle);
             result.success(null);
             break;
           } else {
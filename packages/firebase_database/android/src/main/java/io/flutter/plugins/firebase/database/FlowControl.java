@@ -0,0 +1,98 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Limits how fast the events of one observer are delivered to Dart.
+ *
+ * <p>At most one event is delivered per interval. Events that arrive faster are either conflated,
+ * so that only the latest one is kept, or held in a bounded queue that drops its oldest event when
+ * full. Every delivered event carries the number of events dropped so far.
+ */
+final class FlowControl {
+  interface Sink {
+    void deliver(Map<String, Object> event);
+  }
+
+  private final Handler handler;
+  private final Sink sink;
+  private final boolean conflate;
+  private final long intervalMicros;
+  private final int maxQueueSize;
+
+  private final ArrayDeque<Map<String, Object>> queue = new ArrayDeque<>();
+  private long lastDeliveryTime = -1;
+  private boolean scheduled = false;
+  private int droppedEvents = 0;
+
+  private final Runnable drainCallback =
+      new Runnable() {
+        @Override
+        public void run() {
+          scheduled = false;
+          drain();
+        }
+      };
+
+  private FlowControl(
+      Handler handler, Sink sink, boolean conflate, long intervalMicros, int maxQueueSize) {
+    this.handler = handler;
+    this.sink = sink;
+    this.conflate = conflate;
+    this.intervalMicros = intervalMicros;
+    this.maxQueueSize = maxQueueSize;
+  }
+
+  /** Returns the flow control described by {@code arguments}, or null if there is none. */
+  static FlowControl fromArguments(Map<String, Object> arguments, Handler handler, Sink sink) {
+    if (arguments == null) return null;
+    return new FlowControl(
+        handler,
+        sink,
+        (Boolean) arguments.get("conflate"),
+        ((Number) arguments.get("intervalMicros")).longValue(),
+        (int) arguments.get("maxQueueSize"));
+  }
+
+  void offer(Map<String, Object> event) {
+    if (conflate && !queue.isEmpty()) {
+      queue.clear();
+      droppedEvents++;
+    } else if (queue.size() >= maxQueueSize) {
+      queue.removeFirst();
+      droppedEvents++;
+    }
+    queue.addLast(event);
+    drain();
+  }
+
+  /** Discards queued events and stops further deliveries. */
+  void cancel() {
+    handler.removeCallbacks(drainCallback);
+    queue.clear();
+  }
+
+  private void drain() {
+    if (scheduled || queue.isEmpty()) return;
+    long now = SystemClock.elapsedRealtimeNanos() / 1000;
+    long wait = lastDeliveryTime < 0 ? 0 : lastDeliveryTime + intervalMicros - now;
+    if (wait > 0) {
+      scheduled = true;
+      // Rounded up, so that deliveries are never closer than the interval.
+      handler.postDelayed(drainCallback, (wait + 999) / 1000);
+      return;
+    }
+    lastDeliveryTime = now;
+    Map<String, Object> event = queue.removeFirst();
+    event.put("droppedEvents", droppedEvents);
+    sink.deliver(event);
+    drain();
+  }
+}
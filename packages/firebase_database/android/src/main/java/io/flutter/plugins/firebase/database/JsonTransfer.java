@@ -0,0 +1,290 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports snapshots to JSON files and imports JSON files into the database, streaming through
+ * {@link JsonWriter} and {@link JsonReader} so that neither the file nor the data is ever held as
+ * a single value.
+ */
+final class JsonTransfer {
+  private JsonTransfer() {}
+
+  /** Writes {@code snapshot} to {@code file} as JSON, returning the size of the file. */
+  static long export(DataSnapshot snapshot, File file) throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent);
+    }
+    JsonWriter writer =
+        new JsonWriter(
+            new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+    try {
+      writeSnapshot(writer, snapshot);
+    } finally {
+      writer.close();
+    }
+    return file.length();
+  }
+
+  private static void writeSnapshot(JsonWriter writer, DataSnapshot snapshot) throws IOException {
+    if (snapshot.hasChildren()) {
+      writer.beginObject();
+      for (DataSnapshot child : snapshot.getChildren()) {
+        writer.name(child.getKey());
+        writeSnapshot(writer, child);
+      }
+      writer.endObject();
+      return;
+    }
+    Object value = snapshot.getValue();
+    if (value instanceof Boolean) {
+      writer.value((Boolean) value);
+    } else if (value instanceof Number) {
+      writer.value((Number) value);
+    } else if (value != null) {
+      writer.value(value.toString());
+    } else {
+      writer.nullValue();
+    }
+  }
+
+  /**
+   * Imports a JSON file into a location as a sequence of multi-path updates of at most batchSize
+   * values each. Each update is read on the pipeline's thread once the previous one has been
+   * acknowledged by the server, so at most one batch is held in memory at a time.
+   *
+   * <p>The file must contain an object. Its values are merged into the location: data at the
+   * location that the file doesn't contain is kept. Arrays are written as children keyed by index.
+   */
+  static final class Import {
+    interface Listener {
+      void onProgress(long writtenValues, long bytesRead, long totalBytes);
+
+      void onComplete(long writtenValues);
+
+      void onError(String code, String message);
+    }
+
+    private final SnapshotPipeline pipeline;
+    private final DatabaseReference reference;
+    private final File file;
+    private final int batchSize;
+    private final Listener listener;
+
+    private FileInputStream input;
+    private JsonReader reader;
+    // Keys of the containers being read, below the top level object.
+    private final List<String> path = new ArrayList<>();
+    // For each container being read, the index of its next element if it is an array, or -1.
+    private final List<Integer> indices = new ArrayList<>();
+    private boolean finished = false;
+    private long writtenValues = 0;
+
+    Import(
+        SnapshotPipeline pipeline,
+        DatabaseReference reference,
+        File file,
+        int batchSize,
+        Listener listener) {
+      this.pipeline = pipeline;
+      this.reference = reference;
+      this.file = file;
+      this.batchSize = batchSize;
+      this.listener = listener;
+    }
+
+    void start() {
+      pipeline.submit(
+          new SnapshotPipeline.Conversion<Object>() {
+            @Override
+            public Object convert() {
+              try {
+                return readBatch();
+              } catch (IOException | RuntimeException e) {
+                return e;
+              }
+            }
+
+            @Override
+            public void deliver(Object result) {
+              if (result instanceof Exception) {
+                close();
+                listener.onError("import_failed", ((Exception) result).getMessage());
+                return;
+              }
+              @SuppressWarnings("unchecked")
+              final Map<String, Object> batch = (Map<String, Object>) result;
+              if (batch.isEmpty()) {
+                close();
+                listener.onComplete(writtenValues);
+                return;
+              }
+              try {
+                reference.updateChildren(
+                    batch,
+                    new DatabaseReference.CompletionListener() {
+                      @Override
+                      public void onComplete(DatabaseError error, DatabaseReference ref) {
+                        if (error != null) {
+                          close();
+                          listener.onError(String.valueOf(error.getCode()), error.getMessage());
+                          return;
+                        }
+                        writtenValues += batch.size();
+                        listener.onProgress(writtenValues, bytesRead(), file.length());
+                        start();
+                      }
+                    });
+              } catch (DatabaseException e) {
+                close();
+                listener.onError("import_failed", e.getMessage());
+              }
+            }
+
+            @Override
+            public void fail(RuntimeException e) {
+              close();
+              listener.onError("import_failed", e.getMessage());
+            }
+          });
+    }
+
+    // Reads up to batchSize values, keyed by their path below the imported location. Returns an
+    // empty batch once the whole file was read.
+    private Map<String, Object> readBatch() throws IOException {
+      Map<String, Object> batch = new HashMap<>();
+      if (reader == null) {
+        input = new FileInputStream(file);
+        reader = new JsonReader(new InputStreamReader(input, "UTF-8"));
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+          throw new IOException("Imported JSON must be an object");
+        }
+        reader.beginObject();
+        indices.add(-1);
+      }
+      while (!finished && batch.size() < batchSize) {
+        int depth = indices.size();
+        if (!reader.hasNext()) {
+          if (indices.get(depth - 1) < 0) {
+            reader.endObject();
+          } else {
+            reader.endArray();
+          }
+          indices.remove(depth - 1);
+          if (path.isEmpty()) {
+            finished = true;
+          } else {
+            path.remove(path.size() - 1);
+          }
+          continue;
+        }
+        int index = indices.get(depth - 1);
+        String key;
+        if (index < 0) {
+          key = reader.nextName();
+          if (!isValidKey(key)) {
+            throw new IOException("invalid key");
+          }
+        } else {
+          key = String.valueOf(index);
+          indices.set(depth - 1, index + 1);
+        }
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BEGIN_OBJECT) {
+          reader.beginObject();
+          path.add(key);
+          indices.add(-1);
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+          reader.beginArray();
+          path.add(key);
+          indices.add(0);
+        } else {
+          batch.put(childPath(key), readLeaf(token));
+        }
+      }
+      return batch;
+    }
+
+    // Keys are joined into paths, so a "/" would write nested data instead of failing like the
+    // characters the SDK rejects.
+    private static boolean isValidKey(String key) {
+      if (key.isEmpty()) return false;
+      for (int i = 0; i < key.length(); i++) {
+        char c = key.charAt(i);
+        if (c < 0x20 || c == 0x7f || ".#$[]/".indexOf(c) >= 0) return false;
+      }
+      return true;
+    }
+
+    private Object readLeaf(JsonToken token) throws IOException {
+      switch (token) {
+        case BOOLEAN:
+          return reader.nextBoolean();
+        case NUMBER:
+          {
+            String number = reader.nextString();
+            if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+              try {
+                return Long.parseLong(number);
+              } catch (NumberFormatException e) {
+                // Too large for a long.
+              }
+            }
+            return Double.parseDouble(number);
+          }
+        case NULL:
+          reader.nextNull();
+          return null;
+        default:
+          return reader.nextString();
+      }
+    }
+
+    private String childPath(String key) {
+      StringBuilder childPath = new StringBuilder();
+      for (String segment : path) {
+        childPath.append(segment).append('/');
+      }
+      return childPath.append(key).toString();
+    }
+
+    // The reader buffers ahead, so this is approximate.
+    private long bytesRead() {
+      try {
+        return input != null ? input.getChannel().position() : 0;
+      } catch (IOException e) {
+        return 0;
+      }
+    }
+
+    private void close() {
+      try {
+        if (reader != null) reader.close();
+      } catch (IOException e) {
+        // The import is over either way.
+      }
+    }
+  }
+}
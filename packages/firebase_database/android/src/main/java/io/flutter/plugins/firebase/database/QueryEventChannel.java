@@ -0,0 +1,87 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the events of a single observer handle over an event channel of its own, rather than
+ * through the plugin's method channel.
+ *
+ * <p>Since the channel identifies the handle, events are positional lists instead of maps: {@code
+ * [key, value]} for value events and {@code [key, value, previousSiblingKey]} for child events,
+ * followed by the old and new index of the child if indices are tracked. Events raised before
+ * Dart listens are held until it does.
+ */
+final class QueryEventChannel implements EventChannel.StreamHandler {
+  private static final String CHANNEL_PREFIX = "plugins.flutter.io/firebase_database/query/";
+
+  private final EventChannel channel;
+  private final boolean childEvents;
+  private final boolean childIndices;
+  private EventChannel.EventSink events;
+  private List<Object> pendingEvents = new ArrayList<>();
+
+  QueryEventChannel(
+      BinaryMessenger messenger, int handle, boolean childEvents, boolean childIndices) {
+    this.channel = new EventChannel(messenger, CHANNEL_PREFIX + handle);
+    this.childEvents = childEvents;
+    this.childIndices = childIndices;
+    channel.setStreamHandler(this);
+  }
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    this.events = events;
+    if (pendingEvents != null) {
+      for (Object event : pendingEvents) {
+        events.success(event);
+      }
+      pendingEvents = null;
+    }
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    events = null;
+  }
+
+  // Indices are sent as null when they are negative.
+  void send(Map<String, Object> snapshotMap, String previousChildName, int oldIndex, int newIndex) {
+    Object key = snapshotMap.get("key");
+    Object value = snapshotMap.get("value");
+    Object event;
+    if (childIndices) {
+      event =
+          Arrays.asList(
+              key,
+              value,
+              previousChildName,
+              oldIndex >= 0 ? oldIndex : null,
+              newIndex >= 0 ? newIndex : null);
+    } else if (childEvents) {
+      event = Arrays.asList(key, value, previousChildName);
+    } else {
+      event = Arrays.asList(key, value);
+    }
+    if (events != null) {
+      events.success(event);
+    } else if (pendingEvents != null) {
+      pendingEvents.add(event);
+    }
+  }
+
+  /** Unregisters the channel; no events are sent after this. */
+  void close() {
+    channel.setStreamHandler(null);
+    events = null;
+    pendingEvents = null;
+  }
+}
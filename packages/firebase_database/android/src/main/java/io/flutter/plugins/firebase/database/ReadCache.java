@@ -0,0 +1,132 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.os.SystemClock;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of the latest value snapshots seen for each query, keyed by query signature, that
+ * one-time reads can be answered from while the value is read again in the background.
+ *
+ * <p>The cache is disabled until it is configured with a positive number of entries. Entries are
+ * evicted least recently used first once either the number of entries or their estimated size in
+ * bytes exceeds its limit, and expire after a time to live.
+ */
+final class ReadCache {
+  /** A converted snapshot with the time it was cached and its estimated size. */
+  static final class Entry {
+    final Map<String, Object> snapshotMap;
+    final int bytes;
+    private long time;
+
+    /** Creates an entry for {@code snapshotMap}, estimating its size only if {@code measure}. */
+    Entry(Map<String, Object> snapshotMap, boolean measure) {
+      this.snapshotMap = snapshotMap;
+      this.bytes = measure ? estimateSize(snapshotMap) : 0;
+    }
+
+    long ageMillis() {
+      return SystemClock.elapsedRealtime() - time;
+    }
+  }
+
+  private int maxEntries = 0;
+  private long maxBytes = 0;
+  private long timeToLiveMillis = 0;
+
+  // In access order, so that iteration starts at the least recently used entry.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+  private int hits = 0;
+  private int misses = 0;
+  private int evictions = 0;
+
+  boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  void configure(int maxEntries, long maxBytes, long timeToLiveMillis) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.timeToLiveMillis = timeToLiveMillis;
+    trim();
+  }
+
+  void put(String key, Entry entry) {
+    if (!isEnabled()) return;
+    entry.time = SystemClock.elapsedRealtime();
+    Entry previous = entries.put(key, entry);
+    if (previous != null) bytes -= previous.bytes;
+    bytes += entry.bytes;
+    trim();
+  }
+
+  /** Returns the entry for the key, or null if there is none or it has expired. */
+  Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.ageMillis() > timeToLiveMillis) {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return entry;
+  }
+
+  Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("evictions", evictions);
+    stats.put("entries", entries.size());
+    stats.put("bytes", bytes);
+    stats.put("maxEntries", maxEntries);
+    stats.put("maxBytes", maxBytes);
+    return stats;
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) bytes -= entry.bytes;
+  }
+
+  private void trim() {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+      bytes -= iterator.next().bytes;
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  // A rough estimate of the memory held by a value, which is only used to bound the cache.
+  private static int estimateSize(Object value) {
+    if (value instanceof Map) {
+      int size = 32;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += 32 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+      }
+      return size;
+    } else if (value instanceof List) {
+      int size = 32;
+      for (Object element : (List<?>) value) {
+        size += 8 + estimateSize(element);
+      }
+      return size;
+    } else if (value instanceof String) {
+      return 40 + 2 * ((String) value).length();
+    } else {
+      return 16;
+    }
+  }
+}
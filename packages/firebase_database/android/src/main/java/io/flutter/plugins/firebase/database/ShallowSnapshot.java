@@ -0,0 +1,55 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import com.google.firebase.database.DataSnapshot;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Converts snapshots into shallow values, which map the keys of the children to {@code true}, to
+ * their number of children, or to the value of one of their fields, without converting anything
+ * else below the children.
+ */
+final class ShallowSnapshot {
+  private final boolean childCounts;
+  private final String field;
+
+  private ShallowSnapshot(boolean childCounts, String field) {
+    this.childCounts = childCounts;
+    this.field = field;
+  }
+
+  /** Returns the shallow conversion described by {@code arguments}, or null if there is none. */
+  static ShallowSnapshot fromArguments(Map<String, Object> arguments) {
+    if (arguments == null) return null;
+    return new ShallowSnapshot(
+        Boolean.TRUE.equals(arguments.get("childCounts")), (String) arguments.get("field"));
+  }
+
+  /** Identifies the conversion, so that listeners converting alike can be shared. */
+  String getSignature() {
+    if (field != null) return "shallow:field:" + field;
+    return childCounts ? "shallow:childCounts" : "shallow";
+  }
+
+  Object convert(DataSnapshot snapshot) {
+    if (!snapshot.hasChildren()) return snapshot.getValue();
+    // Keeps the children in query order.
+    Map<String, Object> value = new LinkedHashMap<>();
+    for (DataSnapshot child : snapshot.getChildren()) {
+      if (field != null) {
+        // Only scalar fields are sent; fields with children would defeat the purpose.
+        DataSnapshot fieldSnapshot = child.child(field);
+        value.put(child.getKey(), fieldSnapshot.hasChildren() ? null : fieldSnapshot.getValue());
+      } else if (childCounts) {
+        value.put(child.getKey(), child.getChildrenCount());
+      } else {
+        value.put(child.getKey(), true);
+      }
+    }
+    return value;
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.os.Handler;
+import android.util.SparseArray;
+import com.google.firebase.database.DataSnapshot;
+import io.flutter.plugin.common.EventChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams snapshots to Dart over an event channel in chunks of children, so that a large snapshot
+ * is never converted into a single value or sent as a single message.
+ *
+ * <p>Each snapshot is sent as a "start" event with its key and number of children, followed by
+ * "children" events of at most chunkSize children each and an "end" event. One chunk is sent per
+ * main thread message, so other work keeps running while a snapshot is streamed.
+ *
+ * <p>Until Dart listens to the event channel, start events are held and streams are paused rather
+ * than dropped, so that no chunk is lost and at most one chunk per snapshot is held in memory.
+ */
+final class SnapshotStreamer implements EventChannel.StreamHandler {
+  private final Handler handler;
+  private EventChannel.EventSink events;
+  private final List<Map<String, Object>> pendingEvents = new ArrayList<>();
+
+  // Snapshots that are still being streamed, by handle.
+  private final SparseArray<Stream> streams = new SparseArray<>();
+
+  SnapshotStreamer(Handler handler) {
+    this.handler = handler;
+  }
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    this.events = events;
+    for (Map<String, Object> event : pendingEvents) {
+      events.success(event);
+    }
+    pendingEvents.clear();
+    // Resumes the streams that were paused while nobody listened.
+    for (int i = 0; i < streams.size(); i++) {
+      Stream stream = streams.valueAt(i);
+      handler.removeCallbacks(stream);
+      handler.post(stream);
+    }
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    for (int i = 0; i < streams.size(); i++) {
+      handler.removeCallbacks(streams.valueAt(i));
+    }
+    streams.clear();
+    pendingEvents.clear();
+    events = null;
+  }
+
+  /**
+   * Starts streaming {@code snapshot} to the handle. A snapshot that is still being streamed to the
+   * handle is abandoned; Dart discards its chunks when the next start event arrives.
+   */
+  void send(int handle, DataSnapshot snapshot, int chunkSize) {
+    cancel(handle);
+    Map<String, Object> start = new HashMap<>();
+    start.put("handle", handle);
+    start.put("type", "start");
+    start.put("key", snapshot.getKey());
+    start.put("childCount", snapshot.getChildrenCount());
+    if (!snapshot.hasChildren()) {
+      start.put("value", snapshot.getValue());
+    }
+    sendEvent(start);
+    Stream stream = new Stream(handle, snapshot.getChildren().iterator(), chunkSize);
+    streams.put(handle, stream);
+    handler.post(stream);
+  }
+
+  /** Stops streaming to the handle, and drops its events that Dart hasn't received yet. */
+  void cancel(int handle) {
+    Stream stream = streams.get(handle);
+    if (stream != null) {
+      handler.removeCallbacks(stream);
+      streams.remove(handle);
+    }
+    Iterator<Map<String, Object>> iterator = pendingEvents.iterator();
+    while (iterator.hasNext()) {
+      if (Integer.valueOf(handle).equals(iterator.next().get("handle"))) iterator.remove();
+    }
+  }
+
+  private void sendEvent(Map<String, Object> event) {
+    if (events != null) {
+      events.success(event);
+    } else {
+      pendingEvents.add(event);
+    }
+  }
+
+  private class Stream implements Runnable {
+    private final int handle;
+    private final Iterator<DataSnapshot> children;
+    private final int chunkSize;
+
+    Stream(int handle, Iterator<DataSnapshot> children, int chunkSize) {
+      this.handle = handle;
+      this.children = children;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void run() {
+      // Paused until Dart listens.
+      if (events == null) return;
+      List<Map<String, Object>> chunk = new ArrayList<>();
+      while (chunk.size() < chunkSize && children.hasNext()) {
+        DataSnapshot child = children.next();
+        Map<String, Object> childMap = new HashMap<>();
+        childMap.put("key", child.getKey());
+        childMap.put("value", child.getValue());
+        chunk.add(childMap);
+      }
+      if (!chunk.isEmpty()) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("handle", handle);
+        event.put("type", "children");
+        event.put("children", chunk);
+        sendEvent(event);
+      }
+      if (children.hasNext()) {
+        handler.post(this);
+        return;
+      }
+      streams.remove(handle);
+      Map<String, Object> end = new HashMap<>();
+      end.put("handle", handle);
+      end.put("type", "end");
+      sendEvent(end);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.os.SystemClock;
+import com.google.firebase.database.Query;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Queries kept synced with {@link Query#keepSynced}, keyed by query signature, within a budget.
+ *
+ * <p>When more than the maximum number of queries are synced, the query with the lowest priority
+ * that was used least recently stops being synced. Queries are used when they are synced, observed
+ * or read. The estimated size of the data received for synced queries is tracked to report
+ * bandwidth and persistence cache pressure.
+ */
+final class SyncedQueries {
+  private static final class Entry {
+    final Query query;
+    int priority;
+    // Sequence number of the last use of the query.
+    long lastUse;
+    // Estimated size of the latest value read for the query, if any.
+    long valueBytes;
+
+    Entry(Query query, int priority) {
+      this.query = query;
+      this.priority = priority;
+    }
+  }
+
+  private int maxQueries = Integer.MAX_VALUE;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private long uses = 0;
+  private int evictions = 0;
+  private long receivedBytes = 0;
+  private long lastStatsBytes = 0;
+  private long lastStatsTime = SystemClock.elapsedRealtime();
+
+  boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  void setMaxQueries(int maxQueries) {
+    this.maxQueries = maxQueries;
+    trim();
+  }
+
+  void keepSynced(String key, Query query, boolean value, int priority) {
+    if (!value) {
+      Entry entry = entries.remove(key);
+      if (entry != null) entry.query.keepSynced(false);
+      return;
+    }
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      entry.priority = priority;
+    } else {
+      entry = new Entry(query, priority);
+      entries.put(key, entry);
+      query.keepSynced(true);
+    }
+    entry.lastUse = ++uses;
+    trim();
+  }
+
+  /** Marks the query as recently used, if it is synced. */
+  void touch(String key) {
+    Entry entry = entries.get(key);
+    if (entry != null) entry.lastUse = ++uses;
+  }
+
+  /** Records data received for the query, if it is synced. */
+  void recordBytes(String key, int bytes, boolean isValue) {
+    Entry entry = entries.get(key);
+    if (entry == null) return;
+    receivedBytes += bytes;
+    if (isValue) entry.valueBytes = bytes;
+  }
+
+  /**
+   * Returns usage statistics. The received bandwidth is averaged over the time since the previous
+   * call, and cache pressure is the estimated size of the synced values relative to {@code
+   * cacheSizeBytes}.
+   */
+  Map<String, Object> getStats(long cacheSizeBytes) {
+    long now = SystemClock.elapsedRealtime();
+    long elapsed = Math.max(now - lastStatsTime, 1);
+    long valueBytes = 0;
+    for (Entry entry : entries.values()) {
+      valueBytes += entry.valueBytes;
+    }
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("syncedQueries", entries.size());
+    stats.put("maxSyncedQueries", maxQueries == Integer.MAX_VALUE ? null : maxQueries);
+    stats.put("evictions", evictions);
+    stats.put("receivedBytes", receivedBytes);
+    stats.put("bytesPerSecond", (receivedBytes - lastStatsBytes) * 1000.0 / elapsed);
+    stats.put("syncedValueBytes", valueBytes);
+    stats.put("cachePressure", (double) valueBytes / cacheSizeBytes);
+    lastStatsBytes = receivedBytes;
+    lastStatsTime = now;
+    return stats;
+  }
+
+  private void trim() {
+    while (entries.size() > maxQueries) {
+      // The least recently used of the queries with the lowest priority.
+      String evictedKey = null;
+      Entry evicted = null;
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry candidate = entry.getValue();
+        if (evicted == null
+            || candidate.priority < evicted.priority
+            || (candidate.priority == evicted.priority && candidate.lastUse < evicted.lastUse)) {
+          evictedKey = entry.getKey();
+          evicted = candidate;
+        }
+      }
+      entries.remove(evictedKey).query.keepSynced(false);
+      evictions++;
+    }
+  }
+}
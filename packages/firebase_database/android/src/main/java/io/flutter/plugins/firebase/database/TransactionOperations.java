@@ -0,0 +1,125 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transaction operations that are evaluated natively inside {@link Transaction.Handler}, without
+ * a round trip to Dart for every attempt.
+ */
+final class TransactionOperations {
+  private TransactionOperations() {}
+
+  /**
+   * Applies the operation described by {@code operation} to {@code data}. Returns {@link
+   * Transaction#abort()} if the operation doesn't apply to the current value.
+   */
+  static Transaction.Result apply(Map<String, Object> operation, MutableData data) {
+    String type = (String) operation.get("type");
+    Object current = data.getValue();
+    switch (type) {
+      case "increment":
+        {
+          Number sum = add(current, (Number) operation.get("delta"));
+          if (sum == null) return Transaction.abort();
+          Number min = (Number) operation.get("min");
+          Number max = (Number) operation.get("max");
+          if (min != null && sum.doubleValue() < min.doubleValue()) return Transaction.abort();
+          if (max != null && sum.doubleValue() > max.doubleValue()) return Transaction.abort();
+          data.setValue(sum);
+          return Transaction.success(data);
+        }
+      case "append":
+        {
+          List<Object> list = new ArrayList<>();
+          if (current instanceof List) {
+            list.addAll((List<?>) current);
+          } else if (current != null) {
+            return Transaction.abort();
+          }
+          list.add(operation.get("value"));
+          Number maxLength = (Number) operation.get("maxLength");
+          if (maxLength != null && list.size() > maxLength.intValue()) {
+            list = list.subList(list.size() - maxLength.intValue(), list.size());
+          }
+          data.setValue(list);
+          return Transaction.success(data);
+        }
+      case "compareAndSet":
+        {
+          if (!valuesEqual(current, operation.get("expected"))) return Transaction.abort();
+          data.setValue(operation.get("value"));
+          return Transaction.success(data);
+        }
+      case "max":
+      case "min":
+        {
+          Number value = (Number) operation.get("value");
+          if (current != null) {
+            if (!(current instanceof Number)) return Transaction.abort();
+            int comparison = Double.compare(value.doubleValue(), ((Number) current).doubleValue());
+            if (type.equals("max") ? comparison <= 0 : comparison >= 0) {
+              // The current value already satisfies the operation; nothing to write.
+              return Transaction.abort();
+            }
+          }
+          data.setValue(value);
+          return Transaction.success(data);
+        }
+      default:
+        throw new IllegalArgumentException("Unknown transaction operation: " + type);
+    }
+  }
+
+  // Returns current + delta, treating a missing value as zero, or null if current isn't a number.
+  // Integral operands produce an integral result.
+  private static Number add(Object current, Number delta) {
+    if (current == null) return delta;
+    if (!(current instanceof Number)) return null;
+    if (isIntegral(current) && isIntegral(delta)) {
+      return ((Number) current).longValue() + delta.longValue();
+    }
+    return ((Number) current).doubleValue() + delta.doubleValue();
+  }
+
+  private static boolean isIntegral(Object value) {
+    return value instanceof Long || value instanceof Integer;
+  }
+
+  // Numbers are compared by value at every level of maps and lists, since the SDK and the Dart side
+  // don't agree on their types.
+  static boolean valuesEqual(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number) {
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    if (a instanceof Map && b instanceof Map) {
+      Map<?, ?> mapA = (Map<?, ?>) a;
+      Map<?, ?> mapB = (Map<?, ?>) b;
+      if (mapA.size() != mapB.size()) return false;
+      for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+        if (!mapB.containsKey(entry.getKey())
+            || !valuesEqual(entry.getValue(), mapB.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a instanceof List && b instanceof List) {
+      List<?> listA = (List<?>) a;
+      List<?> listB = (List<?>) b;
+      if (listA.size() != listB.size()) return false;
+      for (int i = 0; i < listA.size(); i++) {
+        if (!valuesEqual(listA.get(i), listB.get(i))) return false;
+      }
+      return true;
+    }
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.os.Handler;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Holds back writes of rapidly changing values for a flush interval, so that only the latest value
+ * written to each path reaches the SDK.
+ *
+ * <p>A write that is superseded by a later write to the same path before the flush completes its
+ * result with "coalesced". The remaining writes are applied in the order they were made, which
+ * leaves overlapping paths as they would have been without coalescing, and complete their results
+ * when the SDK does.
+ */
+final class WriteCoalescer {
+  private static final String STATUS_COALESCED = "coalesced";
+  private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+  private static final class Write {
+    final DatabaseReference reference;
+    final Object value;
+    final Object priority;
+    final Result result;
+
+    Write(DatabaseReference reference, Object value, Object priority, Result result) {
+      this.reference = reference;
+      this.value = value;
+      this.priority = priority;
+      this.result = result;
+    }
+  }
+
+  private final Handler handler;
+  private final ConnectionMonitor connectionMonitor;
+  private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+  // Latest pending write by path.
+  private final LinkedHashMap<String, Write> writes = new LinkedHashMap<>();
+
+  private final Runnable flushCallback =
+      new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      };
+
+  WriteCoalescer(Handler handler, ConnectionMonitor connectionMonitor) {
+    this.handler = handler;
+    this.connectionMonitor = connectionMonitor;
+  }
+
+  /**
+   * Changes how long writes are held back. Pending writes are flushed after the new interval, or
+   * right away if it is 0.
+   */
+  void setFlushInterval(long flushIntervalMillis) {
+    this.flushIntervalMillis = flushIntervalMillis;
+    if (writes.isEmpty()) return;
+    if (flushIntervalMillis <= 0) {
+      flush();
+    } else {
+      handler.removeCallbacks(flushCallback);
+      handler.postDelayed(flushCallback, flushIntervalMillis);
+    }
+  }
+
+  void set(DatabaseReference reference, Object value, Object priority, Result result) {
+    if (writes.isEmpty()) {
+      handler.postDelayed(flushCallback, flushIntervalMillis);
+    }
+    String path = reference.toString();
+    Write superseded = writes.remove(path);
+    if (superseded != null) superseded.result.success(STATUS_COALESCED);
+    writes.put(path, new Write(reference, value, priority, result));
+  }
+
+  /**
+   * Applies the pending writes now. Called before other writes, so that the SDK receives all writes
+   * in the order they were made.
+   */
+  void flush() {
+    if (writes.isEmpty()) return;
+    handler.removeCallbacks(flushCallback);
+    List<Write> flushed = new ArrayList<>(writes.values());
+    writes.clear();
+    for (final Write write : flushed) {
+      final long startTime = connectionMonitor.writeStarted();
+      DatabaseReference.CompletionListener listener =
+          new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError error, DatabaseReference ref) {
+              connectionMonitor.writeCompleted(startTime);
+              if (error != null) {
+                write.result.error(
+                    String.valueOf(error.getCode()), error.getMessage(), error.getDetails());
+              } else {
+                write.result.success(null);
+              }
+            }
+          };
+      if (write.priority != null) {
+        write.reference.setValue(write.value, write.priority, listener);
+      } else {
+        write.reference.setValue(write.value, listener);
+      }
+    }
+  }
+}
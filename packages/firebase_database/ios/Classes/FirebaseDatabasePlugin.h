@@ -5,7 +5,4 @@
 #import <Flutter/Flutter.h>
 
 @interface FirebaseDatabasePlugin : NSObject<FlutterPlugin>
-
-@property(nonatomic) NSMutableDictionary *updatedSnapshots;
-
 @end
@@ -21,9 +21,62 @@
 }
 @end
 
+// Shard routes set with FirebaseDatabase#setShardRoutes, as database URLs by path prefix, by the
+// key of the database they were set for.
+static NSMutableDictionary<NSString *, NSDictionary<NSString *, NSString *> *> *shardRoutes;
+
+NSString *argumentString(NSDictionary *arguments, NSString *key) {
+  id value = arguments[key];
+  return [value isKindOfClass:[NSString class]] ? value : nil;
+}
+
+NSString *databaseKey(NSDictionary *arguments) {
+  return [NSString stringWithFormat:@"%@|%@", argumentString(arguments, @"app") ?: @"",
+                                    argumentString(arguments, @"databaseURL") ?: @""];
+}
+
+NSString *trimSlashes(NSString *path) {
+  return [path
+      stringByTrimmingCharactersInSet:[NSCharacterSet characterSetWithCharactersInString:@"/"]];
+}
+
+// Returns the database addressed by the app name and database URL in arguments, that path is
+// routed to by the database's shard routes. The longest matching prefix wins.
+FIRDatabase *getDatabase(NSDictionary *arguments, NSString *path) {
+  NSString *app = argumentString(arguments, @"app");
+  NSString *databaseURL = argumentString(arguments, @"databaseURL");
+  NSDictionary<NSString *, NSString *> *routes = shardRoutes[databaseKey(arguments)];
+  if (routes && path) {
+    NSString *trimmedPath = trimSlashes(path);
+    NSString *longestPrefix = nil;
+    for (NSString *prefix in routes) {
+      BOOL matches = [trimmedPath isEqualToString:prefix] ||
+                     [trimmedPath hasPrefix:[prefix stringByAppendingString:@"/"]];
+      if (matches && (!longestPrefix || prefix.length > longestPrefix.length)) {
+        longestPrefix = prefix;
+      }
+    }
+    if (longestPrefix) databaseURL = routes[longestPrefix];
+  }
+  FIRApp *firebaseApp = app ? [FIRApp appNamed:app] : [FIRApp defaultApp];
+  return databaseURL ? [FIRDatabase databaseForApp:firebaseApp URL:databaseURL]
+                     : [FIRDatabase databaseForApp:firebaseApp];
+}
+
+// Returns the database addressed by arguments followed by the databases its shard routes lead to.
+NSArray<FIRDatabase *> *getDatabases(NSDictionary *arguments) {
+  NSMutableArray<FIRDatabase *> *databases =
+      [NSMutableArray arrayWithObject:getDatabase(arguments, nil)];
+  for (NSString *prefix in shardRoutes[databaseKey(arguments)]) {
+    FIRDatabase *database = getDatabase(arguments, prefix);
+    if (![databases containsObject:database]) [databases addObject:database];
+  }
+  return databases;
+}
+
 FIRDatabaseReference *getReference(NSDictionary *arguments) {
   NSString *path = arguments[@"path"];
-  FIRDatabaseReference *ref = [FIRDatabase database].reference;
+  FIRDatabaseReference *ref = getDatabase(arguments, path).reference;
   if ([path length] > 0) ref = [ref child:path];
   return ref;
 }
@@ -118,8 +171,620 @@ id roundDoubles(id value) {
   return value;
 }
 
-@interface FirebaseDatabasePlugin ()
+// Returns the value of the snapshot, or its shallow value as described by the shallow
+// arguments of Query#observe and Query#once.
+id snapshotValue(FIRDataSnapshot *snapshot, NSDictionary *shallow) {
+  if (!shallow || [shallow isEqual:[NSNull null]] || !snapshot.hasChildren) {
+    return roundDoubles(snapshot.value);
+  }
+  NSString *field = shallow[@"field"];
+  BOOL childCounts = [shallow[@"childCounts"] boolValue];
+  NSMutableDictionary *value = [NSMutableDictionary dictionary];
+  for (FIRDataSnapshot *child in snapshot.children) {
+    if (field && ![field isEqual:[NSNull null]]) {
+      FIRDataSnapshot *fieldSnapshot = [child childSnapshotForPath:field];
+      value[child.key] =
+          fieldSnapshot.hasChildren ? [NSNull null] : roundDoubles(fieldSnapshot.value);
+    } else if (childCounts) {
+      value[child.key] = [NSNumber numberWithUnsignedInteger:child.childrenCount];
+    } else {
+      value[child.key] = @YES;
+    }
+  }
+  return value;
+}
+
+// Returns a copy of node with the value at path replaced. Containers along the path are copied so
+// that values passed in from Dart are never modified.
+id setChildValue(id node, NSArray<NSString *> *path, id value) {
+  if (path.count == 0) return value;
+  if ([node isKindOfClass:[NSDictionary class]] && node[@".value"]) {
+    // A value set with a priority. Its children are merged into the value itself, and the priority
+    // is kept alongside them, as the database keeps it when a child is written.
+    id merged = setChildValue(node[@".value"], path, value);
+    id priority = node[@".priority"];
+    if ([merged isKindOfClass:[NSMutableDictionary class]] && priority) {
+      merged[@".priority"] = priority;
+    }
+    return merged;
+  }
+  NSMutableDictionary *copy = [NSMutableDictionary dictionary];
+  if ([node isKindOfClass:[NSDictionary class]]) {
+    [copy addEntriesFromDictionary:node];
+  } else if ([node isKindOfClass:[NSArray class]]) {
+    // Lists are stored as children keyed by index.
+    [node enumerateObjectsUsingBlock:^(id obj, NSUInteger idx, BOOL *stop) {
+      if (![obj isEqual:[NSNull null]]) copy[[NSString stringWithFormat:@"%lu", idx]] = obj;
+    }];
+  }
+  id child =
+      setChildValue(copy[path[0]], [path subarrayWithRange:NSMakeRange(1, path.count - 1)], value);
+  if (!child || [child isEqual:[NSNull null]]) {
+    [copy removeObjectForKey:path[0]];
+  } else {
+    copy[path[0]] = child;
+  }
+  return copy.count > 0 ? copy : [NSNull null];
+}
+
+// Records a write of value at path in a batch update. updateChildValues doesn't accept overlapping
+// paths, so a write replaces any earlier writes below its path, and a write below an already
+// written path is merged into the value written there.
+void addBatchWrite(NSMutableDictionary *updates, NSString *path, id value) {
+  NSString *prefix = [path stringByAppendingString:@"/"];
+  for (NSString *key in [updates allKeys]) {
+    if ([key hasPrefix:prefix]) [updates removeObjectForKey:key];
+  }
+  NSArray<NSString *> *components = [path componentsSeparatedByString:@"/"];
+  for (NSUInteger i = 1; i < components.count; i++) {
+    NSString *ancestor =
+        [[components subarrayWithRange:NSMakeRange(0, i)] componentsJoinedByString:@"/"];
+    if (updates[ancestor]) {
+      NSArray *relativePath = [components subarrayWithRange:NSMakeRange(i, components.count - i)];
+      updates[ancestor] = setChildValue(updates[ancestor], relativePath, value);
+      return;
+    }
+  }
+  updates[path] = value;
+}
+
+// Compiles the operations of a write batch into a single root-level update. Returns nil if an
+// operation writes to the root location, or updates with something other than a map.
+NSDictionary *compileBatch(NSArray<NSDictionary *> *operations) {
+  NSCharacterSet *slashes = [NSCharacterSet characterSetWithCharactersInString:@"/"];
+  NSMutableDictionary *updates = [NSMutableDictionary dictionary];
+  for (NSDictionary *operation in operations) {
+    NSString *type = operation[@"type"];
+    NSString *path = [operation[@"path"] stringByTrimmingCharactersInSet:slashes];
+    if (path.length == 0) return nil;
+    if ([@"set" isEqualToString:type]) {
+      id value = operation[@"value"];
+      id priority = operation[@"priority"];
+      if (priority && ![priority isEqual:[NSNull null]]) {
+        value = @{@".value" : value, @".priority" : priority};
+      }
+      addBatchWrite(updates, path, value);
+    } else if ([@"update" isEqualToString:type]) {
+      NSDictionary *value = operation[@"value"];
+      if (![value isKindOfClass:[NSDictionary class]]) return nil;
+      [value enumerateKeysAndObjectsUsingBlock:^(NSString *key, id obj, BOOL *stop) {
+        NSString *childPath = [key stringByTrimmingCharactersInSet:slashes];
+        addBatchWrite(updates, [NSString stringWithFormat:@"%@/%@", path, childPath], obj);
+      }];
+    } else if ([@"remove" isEqualToString:type]) {
+      addBatchWrite(updates, path, [NSNull null]);
+    }
+  }
+  return updates;
+}
+
+BOOL isIntegralNumber(id value) {
+  return [value isKindOfClass:[NSNumber class]] && !CFNumberIsFloatType((CFNumberRef)value);
+}
+
+// Applies a transaction operation sent by DatabaseReference#runTransactionOperation to currentData
+// without calling back into Dart. Aborts if the operation doesn't apply to the current value.
+FIRTransactionResult *applyTransactionOperation(NSDictionary *operation,
+                                                FIRMutableData *currentData) {
+  NSString *type = operation[@"type"];
+  id current = [currentData.value isEqual:[NSNull null]] ? nil : currentData.value;
+  if ([@"increment" isEqualToString:type]) {
+    if (current && ![current isKindOfClass:[NSNumber class]]) return [FIRTransactionResult abort];
+    NSNumber *delta = operation[@"delta"];
+    NSNumber *sum;
+    if (!current) {
+      sum = delta;
+    } else if (isIntegralNumber(current) && isIntegralNumber(delta)) {
+      sum = @([current longLongValue] + [delta longLongValue]);
+    } else {
+      sum = @([current doubleValue] + [delta doubleValue]);
+    }
+    id min = operation[@"min"];
+    id max = operation[@"max"];
+    if ([min isKindOfClass:[NSNumber class]] && sum.doubleValue < [min doubleValue]) {
+      return [FIRTransactionResult abort];
+    }
+    if ([max isKindOfClass:[NSNumber class]] && sum.doubleValue > [max doubleValue]) {
+      return [FIRTransactionResult abort];
+    }
+    currentData.value = sum;
+  } else if ([@"append" isEqualToString:type]) {
+    if (current && ![current isKindOfClass:[NSArray class]]) return [FIRTransactionResult abort];
+    NSMutableArray *list = current ? [current mutableCopy] : [NSMutableArray array];
+    [list addObject:operation[@"value"]];
+    id maxLength = operation[@"maxLength"];
+    if ([maxLength isKindOfClass:[NSNumber class]]) {
+      NSUInteger limit = [maxLength unsignedIntegerValue];
+      if (list.count > limit) [list removeObjectsInRange:NSMakeRange(0, list.count - limit)];
+    }
+    currentData.value = list;
+  } else if ([@"compareAndSet" isEqualToString:type]) {
+    id expected = [operation[@"expected"] isEqual:[NSNull null]] ? nil : operation[@"expected"];
+    // NSNumber comparison is by value, so ints and doubles that are equal match.
+    if (!(current == expected || [current isEqual:expected])) return [FIRTransactionResult abort];
+    currentData.value = operation[@"value"];
+  } else if ([@"max" isEqualToString:type] || [@"min" isEqualToString:type]) {
+    NSNumber *value = operation[@"value"];
+    if (current) {
+      if (![current isKindOfClass:[NSNumber class]]) return [FIRTransactionResult abort];
+      NSComparisonResult comparison = [value compare:current];
+      if ([@"max" isEqualToString:type] ? comparison != NSOrderedDescending
+                                        : comparison != NSOrderedAscending) {
+        // The current value already satisfies the operation; nothing to write.
+        return [FIRTransactionResult abort];
+      }
+    }
+    currentData.value = value;
+  } else {
+    return [FIRTransactionResult abort];
+  }
+  return [FIRTransactionResult successWithValue:currentData];
+}
+
+// Streams the connection health of a database: .info/connected, .info/serverTimeOffset and, if
+// a probe path is given, the round trip of a server timestamp written there every probe interval.
+// Writes made through the plugin are not tracked on iOS.
+@interface FLTConnectionMonitor : NSObject<FlutterStreamHandler>
+@end
+
+@implementation FLTConnectionMonitor {
+  FlutterEventSink _events;
+  FIRDatabaseReference *_root;
+  FIRDatabaseHandle _connectedHandle;
+  FIRDatabaseHandle _serverTimeOffsetHandle;
+  FIRDatabaseReference *_probeReference;
+  NSTimer *_probeTimer;
+  NSMutableDictionary *_health;
+}
+
+- (FlutterError *)onListenWithArguments:(id)arguments eventSink:(FlutterEventSink)events {
+  _events = events;
+  _health = [@{@"outstandingWrites" : [NSNull null]} mutableCopy];
+  _root = getDatabase(arguments, nil).reference;
+  _connectedHandle = [[_root child:@".info/connected"]
+      observeEventType:FIRDataEventTypeValue
+             withBlock:^(FIRDataSnapshot *snapshot) {
+               [self update:@"connected" value:snapshot.value];
+             }];
+  _serverTimeOffsetHandle = [[_root child:@".info/serverTimeOffset"]
+      observeEventType:FIRDataEventTypeValue
+             withBlock:^(FIRDataSnapshot *snapshot) {
+               [self update:@"serverTimeOffsetMillis" value:roundDoubles(snapshot.value)];
+             }];
+  NSString *probePath = argumentString(arguments, @"probePath");
+  if (probePath) {
+    _probeReference = [getDatabase(arguments, probePath).reference child:probePath];
+    NSTimeInterval interval = [arguments[@"probeIntervalMillis"] doubleValue] / 1000;
+    _probeTimer = [NSTimer scheduledTimerWithTimeInterval:interval
+                                                   target:self
+                                                 selector:@selector(probe)
+                                                 userInfo:nil
+                                                  repeats:YES];
+    [self probe];
+  }
+  return nil;
+}
+
+- (FlutterError *)onCancelWithArguments:(id)arguments {
+  [[_root child:@".info/connected"] removeObserverWithHandle:_connectedHandle];
+  [[_root child:@".info/serverTimeOffset"] removeObserverWithHandle:_serverTimeOffsetHandle];
+  [_probeTimer invalidate];
+  _probeTimer = nil;
+  _probeReference = nil;
+  _events = nil;
+  return nil;
+}
+
+- (void)probe {
+  FIRDatabaseReference *reference = _probeReference;
+  NSDate *start = [NSDate date];
+  [reference setValue:[FIRServerValue timestamp]
+      withCompletionBlock:^(NSError *error, FIRDatabaseReference *ref) {
+        // Results of probes of an earlier listen are ignored.
+        if (reference != self->_probeReference || error) return;
+        long long millis = (long long)(-[start timeIntervalSinceNow] * 1000);
+        [self update:@"probeLatencyMillis" value:[NSNumber numberWithLongLong:millis]];
+      }];
+}
+
+- (void)update:(NSString *)key value:(id)value {
+  if (!_events) return;
+  _health[key] = value ?: [NSNull null];
+  _events([_health copy]);
+}
+@end
+
+// Sends the events of a single observer handle over an event channel of its own, as positional
+// arrays: [key, value] for value events and [key, value, previousSiblingKey] for child events.
+// Events raised before Dart listens are held until it does.
+@interface FLTQueryEventChannel : NSObject<FlutterStreamHandler>
+- (instancetype)initWithMessenger:(NSObject<FlutterBinaryMessenger> *)messenger
+                           handle:(NSNumber *)handle;
+- (void)send:(NSArray *)event;
+- (void)close;
+@end
+
+@implementation FLTQueryEventChannel {
+  FlutterEventChannel *_channel;
+  FlutterEventSink _events;
+  NSMutableArray *_pendingEvents;
+}
+
+- (instancetype)initWithMessenger:(NSObject<FlutterBinaryMessenger> *)messenger
+                           handle:(NSNumber *)handle {
+  self = [super init];
+  if (self) {
+    NSString *name =
+        [NSString stringWithFormat:@"plugins.flutter.io/firebase_database/query/%@", handle];
+    _channel = [FlutterEventChannel eventChannelWithName:name binaryMessenger:messenger];
+    _pendingEvents = [NSMutableArray array];
+    [_channel setStreamHandler:self];
+  }
+  return self;
+}
+
+- (FlutterError *)onListenWithArguments:(id)arguments eventSink:(FlutterEventSink)events {
+  _events = events;
+  for (NSArray *event in _pendingEvents) {
+    _events(event);
+  }
+  _pendingEvents = nil;
+  return nil;
+}
+
+- (FlutterError *)onCancelWithArguments:(id)arguments {
+  _events = nil;
+  return nil;
+}
+
+- (void)send:(NSArray *)event {
+  if (_events) {
+    _events(event);
+  } else {
+    [_pendingEvents addObject:event];
+  }
+}
+
+- (void)close {
+  [_channel setStreamHandler:nil];
+  _events = nil;
+  _pendingEvents = nil;
+}
+@end
+
+// Count of the children of a query, and the sum, average, minimum and maximum of a numeric field
+// of the children (or of their values, if the field is nil), maintained incrementally from child
+// events. Children whose field is missing or not a number are counted, but don't contribute to the
+// other aggregates.
+@interface FLTAggregator : NSObject
+// Handles of the child changed and removed observers. The handle of the child added observer
+// identifies the aggregate.
+@property(nonatomic) FIRDatabaseHandle changedHandle;
+@property(nonatomic) FIRDatabaseHandle removedHandle;
+// Whether the aggregates are about to be sent.
+@property(nonatomic) BOOL scheduled;
+- (instancetype)initWithField:(NSString *)field;
+- (void)putChild:(FIRDataSnapshot *)child;
+- (void)removeChildForKey:(NSString *)key;
+- (NSDictionary *)result;
+@end
+
+@implementation FLTAggregator {
+  NSString *_field;
+  // The aggregated value of every child, or NSNull for children without a numeric value.
+  NSMutableDictionary<NSString *, id> *_values;
+  // The numeric values in ascending order, so that the minimum and maximum survive removals.
+  NSMutableArray<NSNumber *> *_sortedValues;
+  // Exact sum of the integral values.
+  long long _integralSum;
+  // Sum of the other values. Subtracting doubles accumulates rounding errors, so it is recomputed
+  // when one of them is removed instead.
+  double _nonIntegralSum;
+  // Number of numeric values that are not integers; aggregates are integral while there are none.
+  NSUInteger _nonIntegralCount;
+}
+
+static BOOL isIntegral(NSNumber *value) {
+  return !CFNumberIsFloatType((CFNumberRef)value);
+}
+
+- (instancetype)initWithField:(NSString *)field {
+  self = [super init];
+  if (self) {
+    _field = field;
+    _values = [NSMutableDictionary dictionary];
+    _sortedValues = [NSMutableArray array];
+  }
+  return self;
+}
+
+// Adds or updates the child.
+- (void)putChild:(FIRDataSnapshot *)child {
+  [self removeChildForKey:child.key];
+  id value = roundDoubles(_field ? [child childSnapshotForPath:_field].value : child.value);
+  if (![value isKindOfClass:[NSNumber class]] ||
+      CFGetTypeID((CFTypeRef)value) == CFBooleanGetTypeID()) {
+    _values[child.key] = [NSNull null];
+    return;
+  }
+  _values[child.key] = value;
+  if (isIntegral(value)) {
+    _integralSum += [value longLongValue];
+  } else {
+    _nonIntegralCount++;
+    _nonIntegralSum += [value doubleValue];
+  }
+  NSUInteger index = [_sortedValues indexOfObject:value
+                                    inSortedRange:NSMakeRange(0, _sortedValues.count)
+                                          options:NSBinarySearchingInsertionIndex
+                                  usingComparator:^NSComparisonResult(NSNumber *a, NSNumber *b) {
+                                    return [a compare:b];
+                                  }];
+  [_sortedValues insertObject:value atIndex:index];
+}
+
+- (void)removeChildForKey:(NSString *)key {
+  id removed = _values[key];
+  if (!removed) return;
+  [_values removeObjectForKey:key];
+  if ([removed isEqual:[NSNull null]]) return;
+  if (isIntegral(removed)) {
+    _integralSum -= [removed longLongValue];
+  } else {
+    _nonIntegralCount--;
+    _nonIntegralSum = 0;
+    for (id value in [_values objectEnumerator]) {
+      if (![value isEqual:[NSNull null]] && !isIntegral(value)) {
+        _nonIntegralSum += [value doubleValue];
+      }
+    }
+  }
+  NSUInteger index = [_sortedValues indexOfObject:removed
+                                    inSortedRange:NSMakeRange(0, _sortedValues.count)
+                                          options:NSBinarySearchingFirstEqual
+                                  usingComparator:^NSComparisonResult(NSNumber *a, NSNumber *b) {
+                                    return [a compare:b];
+                                  }];
+  [_sortedValues removeObjectAtIndex:index];
+}
+
+- (NSDictionary *)result {
+  NSUInteger numericCount = _sortedValues.count;
+  double sum = _integralSum + _nonIntegralSum;
+  return @{
+    @"count" : [NSNumber numberWithUnsignedInteger:_values.count],
+    @"numericCount" : [NSNumber numberWithUnsignedInteger:numericCount],
+    @"sum" : _nonIntegralCount == 0 ? [NSNumber numberWithLongLong:_integralSum]
+                                    : [NSNumber numberWithDouble:sum],
+    @"average" : numericCount > 0 ? [NSNumber numberWithDouble:sum / numericCount] : [NSNull null],
+    @"min" : numericCount > 0 ? [self toNumber:_sortedValues.firstObject] : [NSNull null],
+    @"max" : numericCount > 0 ? [self toNumber:_sortedValues.lastObject] : [NSNull null],
+  };
+}
+
+// Integral aggregates are sent as integers, as they would be read from the database.
+- (NSNumber *)toNumber:(NSNumber *)value {
+  return _nonIntegralCount == 0 ? [NSNumber numberWithLongLong:[value longLongValue]]
+                                : [NSNumber numberWithDouble:[value doubleValue]];
+}
+@end
+
+// Runs a transaction whose update function lives on the Dart side, without blocking the
+// database's queue while Dart computes the update.
+//
+// Each attempt is a separate SDK transaction that never waits: it commits the update Dart last
+// computed if the current value still equals the value it was computed from, and otherwise aborts
+// right away. Dart first computes the update from the current value of the location, and then from
+// the value seen by each aborted attempt; a new attempt is started once Dart replies. The location
+// is kept synced while the transaction runs, so that attempts start from the server value.
+@interface FLTDartTransaction : NSObject
+- (instancetype)initWithChannel:(FlutterMethodChannel *)channel
+                      reference:(FIRDatabaseReference *)reference
+                 transactionKey:(id)transactionKey
+                  timeoutMillis:(long long)timeoutMillis
+                         result:(FlutterResult)result;
+- (void)start;
+@end
+
+@implementation FLTDartTransaction {
+  FlutterMethodChannel *_channel;
+  FIRDatabaseReference *_reference;
+  id _transactionKey;
+  long long _timeoutMillis;
+  FlutterResult _result;
+  FIRDatabaseHandle _syncHandle;
+  // The last snapshot of the location, which the transaction completes with if it is aborted.
+  FIRDataSnapshot *_snapshot;
+  NSUInteger _attempts;
+  NSTimeInterval _dartTime;
+  BOOL _started;
+  BOOL _finished;
+}
+
+// Same limit as the SDK's own transaction retries.
+static const NSUInteger kMaxTransactionAttempts = 25;
+
+- (instancetype)initWithChannel:(FlutterMethodChannel *)channel
+                      reference:(FIRDatabaseReference *)reference
+                 transactionKey:(id)transactionKey
+                  timeoutMillis:(long long)timeoutMillis
+                         result:(FlutterResult)result {
+  self = [super init];
+  if (self) {
+    _channel = channel;
+    _reference = reference;
+    _transactionKey = transactionKey;
+    _timeoutMillis = timeoutMillis;
+    _result = result;
+  }
+  return self;
+}
+
+- (void)start {
+  _syncHandle = [_reference observeEventType:FIRDataEventTypeValue
+      withBlock:^(FIRDataSnapshot *snapshot) {
+        if (self->_started || self->_finished) return;
+        self->_started = YES;
+        self->_snapshot = snapshot;
+        [self requestUpdateWithKey:snapshot.key value:snapshot.value];
+      }
+      withCancelBlock:^(NSError *error) {
+        if (self->_finished) return;
+        [self finishWithError:error committed:NO abortReason:@"databaseError"];
+      }];
+}
+
+// Sends the value seen by the last attempt to Dart, and starts a new attempt with the update it
+// returns.
+- (void)requestUpdateWithKey:(NSString *)key value:(id)value {
+  NSUInteger attempt = ++_attempts;
+  NSDate *startTime = [NSDate date];
+  __block BOOL replied = NO;
+  [_channel invokeMethod:@"DoTransaction"
+               arguments:@{
+                 @"transactionKey" : _transactionKey,
+                 @"snapshot" : @{
+                   @"key" : key ?: [NSNull null],
+                   @"value" : roundDoubles(value) ?: [NSNull null],
+                 },
+               }
+                  result:^(id _Nullable reply) {
+                    if (self->_finished || attempt != self->_attempts) return;
+                    replied = YES;
+                    self->_dartTime -= [startTime timeIntervalSinceNow];
+                    if ([reply isKindOfClass:[FlutterError class]]) {
+                      FlutterError *flutterError = ((FlutterError *)reply);
+                      NSLog(@"Error code: %@", flutterError.code);
+                      NSLog(@"Error message: %@", flutterError.message);
+                      NSLog(@"Error details: %@", flutterError.details);
+                      [self finishWithError:nil committed:NO abortReason:@"dartError"];
+                    } else if ([reply isEqual:FlutterMethodNotImplemented]) {
+                      NSLog(@"DoTransaction not implemented on the Dart side.");
+                      [self finishWithError:nil committed:NO abortReason:@"dartError"];
+                    } else {
+                      [self runAttemptExpecting:value update:reply[@"value"]];
+                    }
+                  }];
+  dispatch_after(dispatch_time(DISPATCH_TIME_NOW, _timeoutMillis * NSEC_PER_MSEC),
+                 dispatch_get_main_queue(), ^{
+                   if (self->_finished || replied || attempt != self->_attempts) return;
+                   NSLog(@"Transaction at %@ timed out.", self->_reference.URL);
+                   self->_dartTime -= [startTime timeIntervalSinceNow];
+                   [self finishWithError:nil committed:NO abortReason:@"timeout"];
+                 });
+}
+
+// Commits updatedValue if the location still has expectedValue, and otherwise asks Dart for an
+// update of the value the attempt saw.
+- (void)runAttemptExpecting:(id)expectedValue update:(id)updatedValue {
+  id expected = roundDoubles(expectedValue) ?: [NSNull null];
+  __block NSString *currentKey = nil;
+  __block id currentValue = nil;
+  [_reference
+      runTransactionBlock:^FIRTransactionResult *_Nonnull(FIRMutableData *_Nonnull currentData) {
+        id value = roundDoubles(currentData.value) ?: [NSNull null];
+        if ([value isEqual:expected]) {
+          currentData.value = updatedValue;
+          return [FIRTransactionResult successWithValue:currentData];
+        }
+        currentKey = currentData.key;
+        currentValue = currentData.value;
+        return [FIRTransactionResult abort];
+      }
+      andCompletionBlock:^(NSError *_Nullable error, BOOL committed,
+                           FIRDataSnapshot *_Nullable snapshot) {
+        if (self->_finished) return;
+        if (snapshot) self->_snapshot = snapshot;
+        if (error) {
+          [self finishWithError:error committed:NO abortReason:@"databaseError"];
+        } else if (committed) {
+          [self finishWithError:nil committed:YES abortReason:nil];
+        } else if (self->_attempts >= kMaxTransactionAttempts) {
+          NSLog(@"Transaction at %@ exceeded the maximum attempts.", self->_reference.URL);
+          [self finishWithError:nil committed:NO abortReason:@"maxAttempts"];
+        } else {
+          [self requestUpdateWithKey:currentKey value:currentValue];
+        }
+      }];
+}
+
+- (void)finishWithError:(NSError *)error
+              committed:(BOOL)committed
+            abortReason:(NSString *)abortReason {
+  _finished = YES;
+  [_reference removeObserverWithHandle:_syncHandle];
+  NSMutableDictionary *completion = [@{
+    @"transactionKey" : _transactionKey,
+    @"committed" : [NSNumber numberWithBool:committed],
+    @"metrics" : @{
+      @"attempts" : [NSNumber numberWithUnsignedInteger:_attempts],
+      @"dartTimeMillis" : [NSNumber numberWithLongLong:(long long)(_dartTime * 1000)],
+      @"abortReason" : abortReason ?: [NSNull null],
+    },
+  } mutableCopy];
+  if (error) {
+    completion[@"error"] = @{
+      @"code" : [NSNumber numberWithInteger:error.code],
+      @"message" : error.localizedDescription ?: [NSNull null],
+      @"details" : error.domain ?: [NSNull null],
+    };
+  }
+  if (_snapshot) {
+    completion[@"snapshot"] = @{
+      @"key" : _snapshot.key ?: [NSNull null],
+      @"value" : roundDoubles(_snapshot.value) ?: [NSNull null],
+    };
+  }
+  _result(completion);
+}
+@end
+
+@interface FirebaseDatabasePlugin ()<FlutterStreamHandler>
 @property(nonatomic, retain) FlutterMethodChannel *channel;
+@property(nonatomic, retain) NSObject<FlutterBinaryMessenger> *messenger;
+// Channels of the handles observed with Query#observe's dedicatedChannel, by handle.
+@property(nonatomic, retain)
+    NSMutableDictionary<NSNumber *, FLTQueryEventChannel *> *queryChannels;
+@property(nonatomic, retain) FLTConnectionMonitor *connectionMonitor;
+// Aggregates of the handles observed with Query#observe's aggregate, by handle.
+@property(nonatomic, retain) NSMutableDictionary<NSNumber *, FLTAggregator *> *aggregators;
+// Receives the chunks of snapshots observed with Query#observe's chunkSize.
+@property(nonatomic, copy) FlutterEventSink snapshotSink;
+// The snapshots being streamed, by handle, with the enumerator of their remaining children. One
+// chunk is sent per turn of the main run loop, and streams are paused while nobody listens.
+@property(nonatomic, retain) NSMutableDictionary<NSNumber *, NSDictionary *> *snapshotStreams;
+// Start events of snapshots streamed before Dart listened to the snapshot channel.
+@property(nonatomic, retain) NSMutableArray<NSDictionary *> *pendingSnapshotEvents;
+// When batching is enabled, events are buffered here and delivered to Dart as a single
+// "Events" call on the next turn of the main run loop, or as soon as maxBatchSize events
+// are pending.
+@property(nonatomic) BOOL batchEvents;
+@property(nonatomic) NSUInteger maxBatchSize;
+@property(nonatomic) BOOL flushScheduled;
+@property(nonatomic, retain) NSMutableArray<NSDictionary *> *pendingEvents;
+// The query, event type, creation date and isolate token of each observer, by handle, for
+// FirebaseDatabase#listActiveObservers and FirebaseDatabase#removeStaleObservers.
+@property(nonatomic, retain) NSMutableDictionary<NSNumber *, NSDictionary *> *activeObservers;
 @end
 
 @implementation FirebaseDatabasePlugin
@@ -130,7 +795,17 @@ id roundDoubles(id value) {
                                   binaryMessenger:[registrar messenger]];
   FirebaseDatabasePlugin *instance = [[FirebaseDatabasePlugin alloc] init];
   instance.channel = channel;
+  instance.messenger = [registrar messenger];
   [registrar addMethodCallDelegate:instance channel:channel];
+  FlutterEventChannel *snapshotChannel =
+      [FlutterEventChannel eventChannelWithName:@"plugins.flutter.io/firebase_database_snapshots"
+                                binaryMessenger:[registrar messenger]];
+  [snapshotChannel setStreamHandler:instance];
+  FlutterEventChannel *connectionChannel =
+      [FlutterEventChannel eventChannelWithName:@"plugins.flutter.io/firebase_database_connection"
+                                binaryMessenger:[registrar messenger]];
+  instance.connectionMonitor = [[FLTConnectionMonitor alloc] init];
+  [connectionChannel setStreamHandler:instance.connectionMonitor];
 }
 
 - (instancetype)init {
@@ -139,29 +814,221 @@ id roundDoubles(id value) {
     if (![FIRApp defaultApp]) {
       [FIRApp configure];
     }
-    self.updatedSnapshots = [NSMutableDictionary new];
+    self.maxBatchSize = 500;
+    self.pendingEvents = [NSMutableArray array];
+    self.activeObservers = [NSMutableDictionary dictionary];
+    self.queryChannels = [NSMutableDictionary dictionary];
+    self.snapshotStreams = [NSMutableDictionary dictionary];
+    self.aggregators = [NSMutableDictionary dictionary];
+    self.pendingSnapshotEvents = [NSMutableArray array];
   }
   return self;
 }
 
+- (void)addObserver:(FIRDatabaseHandle)handle
+              query:(FIRDatabaseQuery *)query
+          arguments:(NSDictionary *)arguments {
+  self.activeObservers[[NSNumber numberWithUnsignedInteger:handle]] = @{
+    @"query" : query,
+    @"path" : arguments[@"path"] ?: @"",
+    @"eventType" : arguments[@"eventType"],
+    @"created" : [NSDate date],
+    @"isolateToken" : arguments[@"isolateToken"] ?: [NSNull null],
+  };
+}
+
+- (void)sendEvent:(NSDictionary *)event {
+  if (!self.batchEvents) {
+    [self.channel invokeMethod:@"Event" arguments:event];
+    return;
+  }
+  [self.pendingEvents addObject:event];
+  if (self.pendingEvents.count >= self.maxBatchSize) {
+    [self flushEvents];
+  } else if (!self.flushScheduled) {
+    self.flushScheduled = YES;
+    dispatch_async(dispatch_get_main_queue(), ^{
+      self.flushScheduled = NO;
+      [self flushEvents];
+    });
+  }
+}
+
+- (void)flushEvents {
+  if (self.pendingEvents.count == 0) return;
+  NSArray *events = [self.pendingEvents copy];
+  [self.pendingEvents removeAllObjects];
+  [self.channel invokeMethod:@"Events" arguments:events];
+}
+
+- (FlutterError *)onListenWithArguments:(id)arguments eventSink:(FlutterEventSink)events {
+  self.snapshotSink = events;
+  for (NSDictionary *event in self.pendingSnapshotEvents) {
+    events(event);
+  }
+  [self.pendingSnapshotEvents removeAllObjects];
+  // Resumes the streams that were paused while nobody listened.
+  for (NSNumber *handle in self.snapshotStreams) {
+    [self scheduleSnapshotStream:self.snapshotStreams[handle]];
+  }
+  return nil;
+}
+
+- (FlutterError *)onCancelWithArguments:(id)arguments {
+  self.snapshotSink = nil;
+  [self.snapshotStreams removeAllObjects];
+  [self.pendingSnapshotEvents removeAllObjects];
+  return nil;
+}
+
+- (void)sendSnapshotEvent:(NSDictionary *)event {
+  if (self.snapshotSink) {
+    self.snapshotSink(event);
+  } else {
+    [self.pendingSnapshotEvents addObject:event];
+  }
+}
+
+// Stops streaming to the handle, and drops its events that Dart hasn't received yet.
+- (void)cancelSnapshotStreamForHandle:(NSNumber *)handle {
+  [self.snapshotStreams removeObjectForKey:handle];
+  NSPredicate *predicate =
+      [NSPredicate predicateWithBlock:^BOOL(NSDictionary *event, NSDictionary *bindings) {
+        return ![handle isEqual:event[@"handle"]];
+      }];
+  [self.pendingSnapshotEvents filterUsingPredicate:predicate];
+}
+
+// Streams the snapshot as a start event, chunks of at most chunkSize children and an end event.
+// A snapshot that is still being streamed to the handle is abandoned.
+- (void)streamSnapshot:(FIRDataSnapshot *)snapshot
+             forHandle:(NSNumber *)handle
+             chunkSize:(NSUInteger)chunkSize {
+  [self cancelSnapshotStreamForHandle:handle];
+  NSMutableDictionary *start = [@{
+    @"handle" : handle,
+    @"type" : @"start",
+    @"key" : snapshot.key ?: [NSNull null],
+    @"childCount" : [NSNumber numberWithUnsignedInteger:snapshot.childrenCount],
+  } mutableCopy];
+  if (!snapshot.hasChildren) {
+    start[@"value"] = roundDoubles(snapshot.value) ?: [NSNull null];
+  }
+  [self sendSnapshotEvent:start];
+  NSDictionary *stream = @{
+    @"handle" : handle,
+    @"children" : snapshot.children,
+    @"chunkSize" : [NSNumber numberWithUnsignedInteger:chunkSize],
+  };
+  self.snapshotStreams[handle] = stream;
+  [self scheduleSnapshotStream:stream];
+}
+
+- (void)scheduleSnapshotStream:(NSDictionary *)stream {
+  dispatch_async(dispatch_get_main_queue(), ^{
+    [self sendNextChunkOfStream:stream];
+  });
+}
+
+// Sends the next chunk of children of the stream, or its end event once there are none left.
+- (void)sendNextChunkOfStream:(NSDictionary *)stream {
+  NSNumber *handle = stream[@"handle"];
+  // The stream was abandoned, or is paused until Dart listens.
+  if (self.snapshotStreams[handle] != stream || !self.snapshotSink) return;
+  NSEnumerator *children = stream[@"children"];
+  NSUInteger chunkSize = [stream[@"chunkSize"] unsignedIntegerValue];
+  NSMutableArray *chunk = [NSMutableArray arrayWithCapacity:chunkSize];
+  FIRDataSnapshot *child;
+  while (chunk.count < chunkSize && (child = [children nextObject])) {
+    [chunk addObject:@{
+      @"key" : child.key ?: [NSNull null],
+      @"value" : roundDoubles(child.value) ?: [NSNull null],
+    }];
+  }
+  if (chunk.count > 0) {
+    self.snapshotSink(@{@"handle" : handle, @"type" : @"children", @"children" : chunk});
+  }
+  if (chunk.count == chunkSize) {
+    [self scheduleSnapshotStream:stream];
+    return;
+  }
+  [self.snapshotStreams removeObjectForKey:handle];
+  self.snapshotSink(@{@"handle" : handle, @"type" : @"end"});
+}
+
+// Sends the aggregates of the handle once the current turn of the main run loop is over, so that
+// at most one aggregate event is sent per turn.
+- (void)aggregateChangedForHandle:(NSNumber *)handle {
+  FLTAggregator *aggregator = self.aggregators[handle];
+  if (!aggregator || aggregator.scheduled) return;
+  aggregator.scheduled = YES;
+  dispatch_async(dispatch_get_main_queue(), ^{
+    aggregator.scheduled = NO;
+    if (self.aggregators[handle] != aggregator) return;
+    [self sendEvent:@{@"handle" : handle, @"aggregate" : [aggregator result]}];
+  });
+}
+
+// Removes the child changed and removed observers of the aggregate of the handle, if there is one.
+- (void)removeAggregatorForHandle:(NSNumber *)handle query:(FIRDatabaseQuery *)query {
+  FLTAggregator *aggregator = self.aggregators[handle];
+  if (!aggregator) return;
+  [query removeObserverWithHandle:aggregator.changedHandle];
+  [query removeObserverWithHandle:aggregator.removedHandle];
+  [self.aggregators removeObjectForKey:handle];
+}
+
+- (void)discardPendingEventsForHandle:(NSNumber *)handle {
+  NSPredicate *predicate =
+      [NSPredicate predicateWithBlock:^BOOL(NSDictionary *event, NSDictionary *bindings) {
+        return ![handle isEqual:event[@"handle"]];
+      }];
+  [self.pendingEvents filterUsingPredicate:predicate];
+}
+
 - (void)handleMethodCall:(FlutterMethodCall *)call result:(FlutterResult)result {
   void (^defaultCompletionBlock)(NSError *, FIRDatabaseReference *) =
       ^(NSError *error, FIRDatabaseReference *ref) {
         result(error.flutterError);
       };
+  NSString *app = [call.arguments isKindOfClass:[NSDictionary class]]
+                      ? argumentString(call.arguments, @"app")
+                      : nil;
+  if (app && ![FIRApp appNamed:app]) {
+    NSString *message = [NSString stringWithFormat:@"No Firebase app named %@ is configured", app];
+    result([FlutterError errorWithCode:@"unknown_app" message:message details:nil]);
+    return;
+  }
   if ([@"FirebaseDatabase#goOnline" isEqualToString:call.method]) {
-    [[FIRDatabase database] goOnline];
+    for (FIRDatabase *database in getDatabases(call.arguments)) {
+      [database goOnline];
+    }
     result(nil);
   } else if ([@"FirebaseDatabase#goOffline" isEqualToString:call.method]) {
-    [[FIRDatabase database] goOffline];
+    for (FIRDatabase *database in getDatabases(call.arguments)) {
+      [database goOffline];
+    }
     result(nil);
   } else if ([@"FirebaseDatabase#purgeOutstandingWrites" isEqualToString:call.method]) {
-    [[FIRDatabase database] purgeOutstandingWrites];
+    for (FIRDatabase *database in getDatabases(call.arguments)) {
+      [database purgeOutstandingWrites];
+    }
+    result(nil);
+  } else if ([@"FirebaseDatabase#setShardRoutes" isEqualToString:call.method]) {
+    if (!shardRoutes) shardRoutes = [NSMutableDictionary dictionary];
+    NSMutableDictionary<NSString *, NSString *> *routes = [NSMutableDictionary dictionary];
+    NSDictionary<NSString *, NSString *> *newRoutes = call.arguments[@"routes"];
+    for (NSString *prefix in newRoutes) {
+      routes[trimSlashes(prefix)] = newRoutes[prefix];
+    }
+    shardRoutes[databaseKey(call.arguments)] = routes.count > 0 ? routes : nil;
     result(nil);
   } else if ([@"FirebaseDatabase#setPersistenceEnabled" isEqualToString:call.method]) {
-    NSNumber *value = call.arguments;
+    NSNumber *value = call.arguments[@"enabled"];
     @try {
-      [FIRDatabase database].persistenceEnabled = value.boolValue;
+      for (FIRDatabase *database in getDatabases(call.arguments)) {
+        database.persistenceEnabled = value.boolValue;
+      }
       result([NSNumber numberWithBool:YES]);
     } @catch (NSException *exception) {
       if ([@"FIRDatabaseAlreadyInUse" isEqualToString:exception.name]) {
@@ -172,9 +1039,11 @@ id roundDoubles(id value) {
       }
     }
   } else if ([@"FirebaseDatabase#setPersistenceCacheSizeBytes" isEqualToString:call.method]) {
-    NSNumber *value = call.arguments;
+    NSNumber *value = call.arguments[@"cacheSize"];
     @try {
-      [FIRDatabase database].persistenceCacheSizeBytes = value.unsignedIntegerValue;
+      for (FIRDatabase *database in getDatabases(call.arguments)) {
+        database.persistenceCacheSizeBytes = value.unsignedIntegerValue;
+      }
       result([NSNumber numberWithBool:YES]);
     } @catch (NSException *exception) {
       if ([@"FIRDatabaseAlreadyInUse" isEqualToString:exception.name]) {
@@ -184,6 +1053,55 @@ id roundDoubles(id value) {
         @throw;
       }
     }
+  } else if ([@"FirebaseDatabase#setEventBatchingEnabled" isEqualToString:call.method]) {
+    BOOL enabled = [call.arguments[@"enabled"] boolValue];
+    if (!enabled) {
+      // Deliver anything still buffered before switching back to per-event delivery.
+      [self flushEvents];
+    }
+    self.batchEvents = enabled;
+    NSNumber *maxBatchSize = call.arguments[@"maxBatchSize"];
+    if (maxBatchSize) {
+      self.maxBatchSize = maxBatchSize.unsignedIntegerValue;
+    }
+    result(nil);
+  } else if ([@"FirebaseDatabase#getQueryCacheStats" isEqualToString:call.method]) {
+    // Queries are not cached on iOS.
+    result(nil);
+  } else if ([@"FirebaseDatabase#setReadCacheSettings" isEqualToString:call.method] ||
+             [@"FirebaseDatabase#getReadCacheStats" isEqualToString:call.method]) {
+    // There is no read cache on iOS; Query#once always reads the value.
+    result(nil);
+  } else if ([@"FirebaseDatabase#setMaxSyncedQueries" isEqualToString:call.method] ||
+             [@"FirebaseDatabase#getSyncStats" isEqualToString:call.method]) {
+    // Synced queries are not tracked on iOS.
+    result(nil);
+  } else if ([@"FirebaseDatabase#setWriteCoalescingInterval" isEqualToString:call.method]) {
+    // Writes are not coalesced on iOS; DatabaseReference#set ignores coalesce and writes directly.
+    result(nil);
+  } else if ([@"FirebaseDatabase#commitBatch" isEqualToString:call.method]) {
+    NSDictionary *updates = compileBatch(call.arguments[@"operations"]);
+    if (!updates) {
+      result([FlutterError errorWithCode:@"invalid_batch"
+                                 message:@"Batch operations can't write to the root location, "
+                                         @"and batch updates must be maps of children."
+                                 details:nil]);
+      return;
+    }
+    // A multi-path update is only atomic within one database.
+    NSArray<NSDictionary *> *operations = call.arguments[@"operations"];
+    FIRDatabase *database = getDatabase(call.arguments, nil);
+    for (NSUInteger i = 0; i < operations.count; i++) {
+      FIRDatabase *operationDatabase = getDatabase(call.arguments, operations[i][@"path"]);
+      if (i > 0 && operationDatabase != database) {
+        result([FlutterError errorWithCode:@"invalid_batch"
+                                   message:@"Batch writes to locations in different shards"
+                                   details:nil]);
+        return;
+      }
+      database = operationDatabase;
+    }
+    [database.reference updateChildValues:updates withCompletionBlock:defaultCompletionBlock];
   } else if ([@"DatabaseReference#set" isEqualToString:call.method]) {
     [getReference(call.arguments) setValue:call.arguments[@"value"]
                                andPriority:call.arguments[@"priority"]
@@ -195,88 +1113,206 @@ id roundDoubles(id value) {
     [getReference(call.arguments) setPriority:call.arguments[@"priority"]
                           withCompletionBlock:defaultCompletionBlock];
   } else if ([@"DatabaseReference#runTransaction" isEqualToString:call.method]) {
-    [getReference(call.arguments) runTransactionBlock:^FIRTransactionResult *_Nonnull(
-                                      FIRMutableData *_Nonnull currentData) {
-      // Create semaphore to allow native side to wait while snapshot
-      // updates occur on the Dart side.
-      dispatch_semaphore_t semaphore = dispatch_semaphore_create(0);
-
-      NSObject *snapshot =
-          @{@"key" : currentData.key ?: [NSNull null], @"value" : currentData.value};
-
-      __block bool shouldAbort = false;
-
-      [self.channel invokeMethod:@"DoTransaction"
-                       arguments:@{
-                         @"transactionKey" : call.arguments[@"transactionKey"],
-                         @"snapshot" : snapshot
-                       }
-                          result:^(id _Nullable result) {
-                            if ([result isKindOfClass:[FlutterError class]]) {
-                              FlutterError *flutterError = ((FlutterError *)result);
-                              NSLog(@"Error code: %@", flutterError.code);
-                              NSLog(@"Error message: %@", flutterError.message);
-                              NSLog(@"Error details: %@", flutterError.details);
-                              shouldAbort = true;
-                            } else if ([result isEqual:FlutterMethodNotImplemented]) {
-                              NSLog(@"DoTransaction not implemented on the Dart side.");
-                              shouldAbort = true;
-                            } else {
-                              [self.updatedSnapshots setObject:result
-                                                        forKey:call.arguments[@"transactionKey"]];
-                            }
-                            dispatch_semaphore_signal(semaphore);
-                          }];
-
-      // Wait while Dart side updates the snapshot. Incoming transactionTimeout is in milliseconds
-      // so converting to nanoseconds for use with dispatch_semaphore_wait.
-      long result = dispatch_semaphore_wait(
-          semaphore, dispatch_time(DISPATCH_TIME_NOW,
-                                   [call.arguments[@"transactionTimeout"] integerValue] * 1000000));
-
-      if (result == 0 && !shouldAbort) {
-        // Set FIRMutableData value to value returned from the Dart side.
-        currentData.value =
-            [self.updatedSnapshots objectForKey:call.arguments[@"transactionKey"]][@"value"];
-      } else {
-        if (result != 0) {
-          NSLog(@"Transaction at %@ timed out.", [getReference(call.arguments) URL]);
+    [[[FLTDartTransaction alloc]
+          initWithChannel:self.channel
+                reference:getReference(call.arguments)
+           transactionKey:call.arguments[@"transactionKey"]
+            timeoutMillis:[call.arguments[@"transactionTimeout"] longLongValue]
+                   result:result] start];
+  } else if ([@"DatabaseReference#runTransactionOperation" isEqualToString:call.method]) {
+    NSDictionary *operation = call.arguments[@"operation"];
+    [getReference(call.arguments)
+        runTransactionBlock:^FIRTransactionResult *_Nonnull(FIRMutableData *_Nonnull currentData) {
+          return applyTransactionOperation(operation, currentData);
         }
-        return [FIRTransactionResult abort];
-      }
-
-      return [FIRTransactionResult successWithValue:currentData];
-    }
         andCompletionBlock:^(NSError *_Nullable error, BOOL committed,
                              FIRDataSnapshot *_Nullable snapshot) {
-          // Invoke transaction completion on the Dart side.
+          NSObject *errorMap = [NSNull null];
+          if (error) {
+            errorMap = @{
+              @"code" : [NSNumber numberWithInteger:error.code],
+              @"message" : error.localizedDescription ?: [NSNull null],
+              @"details" : error.domain ?: [NSNull null],
+            };
+          }
           result(@{
-            @"transactionKey" : call.arguments[@"transactionKey"],
-            @"error" : error.flutterError ?: [NSNull null],
+            @"error" : errorMap,
             @"committed" : [NSNumber numberWithBool:committed],
-            @"snapshot" : @{@"key" : snapshot.key ?: [NSNull null], @"value" : snapshot.value}
+            @"snapshot" : @{
+              @"key" : snapshot.key ?: [NSNull null],
+              @"value" : roundDoubles(snapshot.value) ?: [NSNull null]
+            }
           });
         }];
   } else if ([@"Query#observe" isEqualToString:call.method]) {
+    id flowControl = call.arguments[@"flowControl"];
+    if (flowControl && ![flowControl isEqual:[NSNull null]]) {
+      // Flow control is only implemented on Android. Failing keeps listeners from receiving
+      // events at a rate they didn't ask for.
+      result([FlutterError errorWithCode:@"unsupported"
+                                 message:@"Flow control is not supported on iOS."
+                                 details:nil]);
+      return;
+    }
+    NSDictionary *aggregate = call.arguments[@"aggregate"];
+    if (aggregate && ![aggregate isEqual:[NSNull null]]) {
+      // Aggregates are maintained from child events, so only changed children are read.
+      NSString *field = [aggregate[@"field"] isEqual:[NSNull null]] ? nil : aggregate[@"field"];
+      FIRDatabaseQuery *query = getQuery(call.arguments);
+      FLTAggregator *aggregator = [[FLTAggregator alloc] initWithField:field];
+      __block NSNumber *handleNumber = nil;
+      FIRDatabaseHandle handle = [query observeEventType:FIRDataEventTypeChildAdded
+                                               withBlock:^(FIRDataSnapshot *snapshot) {
+                                                 [aggregator putChild:snapshot];
+                                                 [self aggregateChangedForHandle:handleNumber];
+                                               }];
+      aggregator.changedHandle = [query observeEventType:FIRDataEventTypeChildChanged
+                                               withBlock:^(FIRDataSnapshot *snapshot) {
+                                                 [aggregator putChild:snapshot];
+                                                 [self aggregateChangedForHandle:handleNumber];
+                                               }];
+      aggregator.removedHandle = [query observeEventType:FIRDataEventTypeChildRemoved
+                                               withBlock:^(FIRDataSnapshot *snapshot) {
+                                                 [aggregator removeChildForKey:snapshot.key];
+                                                 [self aggregateChangedForHandle:handleNumber];
+                                               }];
+      handleNumber = [NSNumber numberWithUnsignedInteger:handle];
+      self.aggregators[handleNumber] = aggregator;
+      // The value event follows the initial child events, and is raised for a query without
+      // children too, so that the initial aggregates are always sent.
+      [query observeSingleEventOfType:FIRDataEventTypeValue
+                            withBlock:^(FIRDataSnapshot *snapshot) {
+                              [self aggregateChangedForHandle:handleNumber];
+                            }];
+      [self addObserver:handle query:query arguments:call.arguments];
+      result(handleNumber);
+      return;
+    }
     FIRDataEventType eventType = parseEventType(call.arguments[@"eventType"]);
-    __block FIRDatabaseHandle handle = [getQuery(call.arguments)
+    NSNumber *chunkSize = call.arguments[@"chunkSize"];
+    if (chunkSize && ![chunkSize isEqual:[NSNull null]]) {
+      FIRDatabaseQuery *query = getQuery(call.arguments);
+      __block FIRDatabaseHandle handle = [query
+          observeEventType:FIRDataEventTypeValue
+                 withBlock:^(FIRDataSnapshot *snapshot) {
+                   [self streamSnapshot:snapshot
+                              forHandle:[NSNumber numberWithUnsignedInteger:handle]
+                              chunkSize:chunkSize.unsignedIntegerValue];
+                 }];
+      [self addObserver:handle query:query arguments:call.arguments];
+      result([NSNumber numberWithUnsignedInteger:handle]);
+      return;
+    }
+    NSDictionary *shallow = call.arguments[@"shallow"];
+    FIRDatabaseQuery *query = getQuery(call.arguments);
+    __block FIRDatabaseHandle handle = [query
                       observeEventType:eventType
         andPreviousSiblingKeyWithBlock:^(FIRDataSnapshot *snapshot, NSString *previousSiblingKey) {
-          [self.channel invokeMethod:@"Event"
-                           arguments:@{
-                             @"handle" : [NSNumber numberWithUnsignedInteger:handle],
-                             @"snapshot" : @{
-                               @"key" : snapshot.key ?: [NSNull null],
-                               @"value" : roundDoubles(snapshot.value) ?: [NSNull null],
-                             },
-                             @"previousSiblingKey" : previousSiblingKey ?: [NSNull null],
-                           }];
+          FLTQueryEventChannel *queryChannel =
+              self.queryChannels[[NSNumber numberWithUnsignedInteger:handle]];
+          if (queryChannel) {
+            id key = snapshot.key ?: [NSNull null];
+            id value = snapshotValue(snapshot, shallow) ?: [NSNull null];
+            [queryChannel send:eventType == FIRDataEventTypeValue
+                                   ? @[ key, value ]
+                                   : @[ key, value, previousSiblingKey ?: [NSNull null] ]];
+            return;
+          }
+          [self sendEvent:@{
+            @"handle" : [NSNumber numberWithUnsignedInteger:handle],
+            @"snapshot" : @{
+              @"key" : snapshot.key ?: [NSNull null],
+              @"value" : snapshotValue(snapshot, shallow) ?: [NSNull null],
+            },
+            @"previousSiblingKey" : previousSiblingKey ?: [NSNull null],
+          }];
         }];
+    [self addObserver:handle query:query arguments:call.arguments];
+    if ([call.arguments[@"dedicatedChannel"] isEqual:@YES]) {
+      NSNumber *handleNumber = [NSNumber numberWithUnsignedInteger:handle];
+      self.queryChannels[handleNumber] =
+          [[FLTQueryEventChannel alloc] initWithMessenger:self.messenger handle:handleNumber];
+    }
     result([NSNumber numberWithUnsignedInteger:handle]);
   } else if ([@"Query#removeObserver" isEqualToString:call.method]) {
     FIRDatabaseHandle handle = [call.arguments[@"handle"] unsignedIntegerValue];
-    [getQuery(call.arguments) removeObserverWithHandle:handle];
+    FIRDatabaseQuery *query = getQuery(call.arguments);
+    [query removeObserverWithHandle:handle];
+    [self removeAggregatorForHandle:call.arguments[@"handle"] query:query];
+    [self.activeObservers removeObjectForKey:call.arguments[@"handle"]];
+    [self.queryChannels[call.arguments[@"handle"]] close];
+    [self.queryChannels removeObjectForKey:call.arguments[@"handle"]];
+    [self discardPendingEventsForHandle:call.arguments[@"handle"]];
+    [self cancelSnapshotStreamForHandle:call.arguments[@"handle"]];
     result(nil);
+  } else if ([@"FirebaseDatabase#removeStaleObservers" isEqualToString:call.method]) {
+    // Events are only delivered to the isolate listening on this plugin's channel, so observers
+    // created by another isolate belong to one that was replaced, such as before a hot restart.
+    // Other engines register plugin instances of their own, whose observers are kept.
+    id isolateToken = call.arguments[@"isolateToken"];
+    NSMutableArray<NSNumber *> *staleHandles = [NSMutableArray array];
+    for (NSNumber *handle in self.activeObservers) {
+      if (![isolateToken isEqual:self.activeObservers[handle][@"isolateToken"]]) {
+        [staleHandles addObject:handle];
+      }
+    }
+    for (NSNumber *handle in staleHandles) {
+      FIRDatabaseQuery *query = self.activeObservers[handle][@"query"];
+      [query removeObserverWithHandle:handle.unsignedIntegerValue];
+      [self removeAggregatorForHandle:handle query:query];
+      [self.activeObservers removeObjectForKey:handle];
+      [self.queryChannels[handle] close];
+      [self.queryChannels removeObjectForKey:handle];
+      [self discardPendingEventsForHandle:handle];
+      [self cancelSnapshotStreamForHandle:handle];
+    }
+    result(nil);
+  } else if ([@"FirebaseDatabase#listActiveObservers" isEqualToString:call.method]) {
+    // Events and bytes aren't counted here.
+    NSMutableArray *activeObservers = [NSMutableArray array];
+    for (NSNumber *handle in self.activeObservers) {
+      NSDictionary *observer = self.activeObservers[handle];
+      NSTimeInterval age = -[observer[@"created"] timeIntervalSinceNow];
+      [activeObservers addObject:@{
+        @"handle" : handle,
+        @"query" : observer[@"path"],
+        @"eventType" : observer[@"eventType"],
+        @"ageMillis" : [NSNumber numberWithLongLong:(long long)(age * 1000)],
+      }];
+    }
+    result(activeObservers);
+  } else if ([@"Query#once" isEqualToString:call.method]) {
+    // Only the first of the value, error and timeout completes the call.
+    __block BOOL completed = NO;
+    NSNumber *timeoutMillis = call.arguments[@"timeoutMillis"];
+    NSDictionary *shallow = call.arguments[@"shallow"];
+    [getQuery(call.arguments) observeSingleEventOfType:FIRDataEventTypeValue
+        withBlock:^(FIRDataSnapshot *snapshot) {
+          if (completed) return;
+          completed = YES;
+          result(@{
+            @"key" : snapshot.key ?: [NSNull null],
+            @"value" : snapshotValue(snapshot, shallow) ?: [NSNull null],
+          });
+        }
+        withCancelBlock:^(NSError *error) {
+          if (completed) return;
+          completed = YES;
+          result(error.flutterError);
+        }];
+    if (timeoutMillis && ![timeoutMillis isEqual:[NSNull null]]) {
+      dispatch_after(
+          dispatch_time(DISPATCH_TIME_NOW, timeoutMillis.longLongValue * NSEC_PER_MSEC),
+          dispatch_get_main_queue(), ^{
+            if (completed) return;
+            completed = YES;
+            result([FlutterError
+                errorWithCode:@"timeout"
+                      message:[NSString stringWithFormat:@"Query#once timed out after %@ms",
+                                                         timeoutMillis]
+                      details:nil]);
+          });
+    }
   } else if ([@"Query#keepSynced" isEqualToString:call.method]) {
     NSNumber *value = call.arguments[@"value"];
     [getQuery(call.arguments) keepSynced:value.boolValue];
@@ -14,4 +14,6 @@ import 'src/utils/push_id_generator.dart';
 part 'src/database_reference.dart';
 part 'src/event.dart';
 part 'src/firebase_database.dart';
+part 'src/flow_control.dart';
 part 'src/query.dart';
+part 'src/write_batch.dart';
@@ -71,15 +71,41 @@ class DatabaseReference extends Query {
   /// Passing null for the new value means all data at this location or any
   /// child location will be deleted.
   Future<Null> set(dynamic value, {dynamic priority}) {
-    return _database._channel.invokeMethod(
+    return _database._invokeMethod(
       'DatabaseReference#set',
       <String, dynamic>{'path': path, 'value': value, 'priority': priority},
     );
   }
 
+  /// Writes [value] like [set], but lets the platform side hold the write back
+  /// so that a later [setCoalesced] to the same location can replace it.
+  ///
+  /// Writes are held back for the interval set with
+  /// [FirebaseDatabase.setWriteCoalescingInterval], and only the latest value
+  /// written to each location in that time is written to the database. This is
+  /// meant for values that change many times a second, such as cursor
+  /// positions or slider values. Other writes apply any held back writes
+  /// first, so writes still take effect in the order they were made.
+  ///
+  /// The returned [Future] completes with [WriteStatus.coalesced] if the write
+  /// was replaced by a later one, and with [WriteStatus.written] once it was
+  /// written otherwise. Writes are not coalesced on iOS.
+  Future<WriteStatus> setCoalesced(dynamic value, {dynamic priority}) async {
+    final String status = await _database._invokeMethod(
+      'DatabaseReference#set',
+      <String, dynamic>{
+        'path': path,
+        'value': value,
+        'priority': priority,
+        'coalesce': true,
+      },
+    );
+    return status == 'coalesced' ? WriteStatus.coalesced : WriteStatus.written;
+  }
+
   /// Update the node with the `value`
   Future<Null> update(Map<String, dynamic> value) {
-    return _database._channel.invokeMethod(
+    return _database._invokeMethod(
       'DatabaseReference#update',
       <String, dynamic>{'path': path, 'value': value},
     );
@@ -110,7 +136,7 @@ class DatabaseReference extends Query {
   /// floating-point numbers. Keys are always stored as strings and are treated
   /// as numbers only when they can be parsed as a 32-bit integer.
   Future<Null> setPriority(dynamic priority) async {
-    return _database._channel.invokeMethod(
+    return _database._invokeMethod(
       'DatabaseReference#setPriority',
       <String, dynamic>{'path': path, 'priority': priority},
     );
@@ -128,11 +154,24 @@ class DatabaseReference extends Query {
 
   /// Performs an optimistic-concurrency transactional update to the data at
   /// this Firebase Database location.
+  ///
+  /// The [transactionHandler] is called with the current value and may be
+  /// called again if the value is changed concurrently. The transaction is
+  /// aborted if a call doesn't complete within [timeout].
+  ///
+  /// If [chunkSize] is given, the snapshot the transaction completes with is
+  /// delivered as [TransactionResult.dataSnapshotChunks], in chunks of at most
+  /// [chunkSize] children like [Query.onValueChunks], instead of as
+  /// [TransactionResult.dataSnapshot]. This is only supported on Android;
+  /// other platforms deliver the whole [TransactionResult.dataSnapshot].
   Future<TransactionResult> runTransaction(
       TransactionHandler transactionHandler,
-      {Duration timeout: const Duration(seconds: 5)}) async {
+      {Duration timeout: const Duration(seconds: 5),
+      int chunkSize}) async {
     assert(timeout.inMilliseconds > 0,
         'Transaction timeout must be more than 0 milliseconds.');
+    assert(chunkSize == null || chunkSize > 0,
+        'chunkSize must be greater than 0.');
 
     final Completer<TransactionResult> completer =
         new Completer<TransactionResult>();
@@ -143,27 +182,123 @@ class DatabaseReference extends Query {
 
     FirebaseDatabase._transactions[transactionKey] = transactionHandler;
 
-    _database._channel
-        .invokeMethod('DatabaseReference#runTransaction', <String, dynamic>{
+    final Map<String, dynamic> arguments = <String, dynamic>{
       'path': path,
       'transactionKey': transactionKey,
       'transactionTimeout': timeout.inMilliseconds
-    }).then((Map<String, dynamic> result) {
-      final DatabaseError databaseError =
-          result['error'] != null ? new DatabaseError._(result['error']) : null;
-      final bool committed = result['committed'];
-      final DataSnapshot dataSnapshot = result['snapshot'] != null
-          ? new DataSnapshot._(result['snapshot'])
-          : null;
-
+    };
+    if (chunkSize != null) {
+      arguments['chunkSize'] = chunkSize;
+      FirebaseDatabase._listenForSnapshotChunks();
+    }
+    _database
+        ._invokeMethod('DatabaseReference#runTransaction', arguments)
+        .then((Map<String, dynamic> result) {
       FirebaseDatabase._transactions.remove(transactionKey);
 
-      completer.complete(
-          new TransactionResult._(databaseError, committed, dataSnapshot));
+      final int chunkHandle = result['chunkHandle'];
+      StreamController<SnapshotChunk> chunks;
+      if (chunkHandle != null) {
+        // The chunks are sent after the result, so they are all received.
+        chunks = new StreamController<SnapshotChunk>();
+        FirebaseDatabase._transactionChunks[chunkHandle] = chunks;
+      }
+      completer
+          .complete(new TransactionResult._fromMap(result, chunks?.stream));
     });
 
     return completer.future;
   }
+
+  /// Performs [operation] as an optimistic-concurrency transactional update
+  /// to the data at this Firebase Database location.
+  ///
+  /// Unlike [runTransaction], the operation is evaluated entirely on the
+  /// platform side, so retries caused by concurrent writes don't need a round
+  /// trip to Dart. If the operation doesn't apply to the current value, the
+  /// transaction is aborted and [TransactionResult.committed] is false.
+  Future<TransactionResult> runTransactionOperation(
+      TransactionOperation operation) async {
+    final Map<String, dynamic> result = await _database._invokeMethod(
+      'DatabaseReference#runTransactionOperation',
+      <String, dynamic>{'path': path, 'operation': operation._data},
+    );
+    return new TransactionResult._fromMap(result);
+  }
+
+  /// Writes the data at this location to [file] as JSON, and completes with
+  /// the absolute path of the file.
+  ///
+  /// A relative [file] is relative to the app's files directory. The data is
+  /// streamed to the file on the platform side without passing through Dart.
+  /// Priorities are not exported. This is only supported on Android.
+  Future<String> exportToFile(String file) async {
+    final Map<String, dynamic> result = await _database._invokeMethod(
+      'DatabaseReference#exportToFile',
+      <String, dynamic>{'path': path, 'file': file},
+    );
+    return result['file'];
+  }
+
+  /// Imports the JSON object in [file] into this location, reporting
+  /// progress after every batch of written values.
+  ///
+  /// A relative [file] is relative to the app's files directory. The file is
+  /// read on the platform side and written as multi-path updates of at most
+  /// [batchSize] values, each one acknowledged by the server before the next
+  /// is read, so memory use doesn't depend on the size of the file. Values
+  /// are merged into the location: data that the file doesn't contain is
+  /// kept. An object key that isn't a valid database key, such as one
+  /// containing `/` or `.`, fails the import with an error. The import starts
+  /// when the returned stream is listened to, and the stream closes when it is
+  /// complete, or after an error. This is only supported on Android.
+  Stream<ImportProgress> importFromFile(String file, {int batchSize: 500}) {
+    assert(batchSize > 0, 'batchSize must be greater than 0.');
+    final int importKey = FirebaseDatabase._nextImportKey++;
+    StreamController<ImportProgress> controller;
+    controller = new StreamController<ImportProgress>(onListen: () {
+      FirebaseDatabase._imports[importKey] = controller;
+      _database._invokeMethod(
+        'DatabaseReference#importFromFile',
+        <String, dynamic>{
+          'path': path,
+          'file': file,
+          'batchSize': batchSize,
+          'importKey': importKey,
+        },
+      ).catchError(controller.addError).whenComplete(() {
+        FirebaseDatabase._imports.remove(importKey);
+        controller.close();
+      });
+    });
+    return controller.stream;
+  }
+}
+
+/// Progress of an import started with [DatabaseReference.importFromFile].
+class ImportProgress {
+  ImportProgress._(Map<String, dynamic> data)
+      : writtenValues = data['writtenValues'],
+        bytesRead = data['bytesRead'],
+        totalBytes = data['totalBytes'];
+
+  /// Number of values written so far.
+  final int writtenValues;
+
+  /// Approximate number of bytes of the file read so far.
+  final int bytesRead;
+
+  /// Size of the file in bytes.
+  final int totalBytes;
+}
+
+/// How a write made with [DatabaseReference.setCoalesced] completed.
+enum WriteStatus {
+  /// The value was written to the database.
+  written,
+
+  /// The write was replaced by a later write to the same location.
+  coalesced,
 }
 
 class ServerValue {
@@ -174,9 +309,131 @@ class ServerValue {
 
 typedef Future<MutableData> TransactionHandler(MutableData mutableData);
 
+/// An update that [DatabaseReference.runTransactionOperation] applies to the
+/// current value of a location without calling back into Dart.
+class TransactionOperation {
+  TransactionOperation._(this._data);
+
+  /// Adds [delta] to the current numeric value, treating a missing value as
+  /// zero.
+  ///
+  /// If [min] or [max] is given, the transaction is aborted when the result
+  /// would fall outside of that bound. The transaction is also aborted if the
+  /// current value is not a number.
+  factory TransactionOperation.increment(num delta, {num min, num max}) {
+    return new TransactionOperation._(<String, dynamic>{
+      'type': 'increment',
+      'delta': delta,
+      'min': min,
+      'max': max,
+    });
+  }
+
+  /// Subtracts [delta] from the current numeric value, treating a missing
+  /// value as zero.
+  ///
+  /// See [TransactionOperation.increment] for the meaning of [min] and [max].
+  factory TransactionOperation.decrement(num delta, {num min, num max}) {
+    return new TransactionOperation.increment(-delta, min: min, max: max);
+  }
+
+  /// Appends [value] to the current list, treating a missing value as an
+  /// empty list.
+  ///
+  /// If [maxLength] is given, the oldest elements are dropped so that the
+  /// list never holds more than [maxLength] elements. The transaction is
+  /// aborted if the current value is not a list.
+  factory TransactionOperation.append(dynamic value, {int maxLength}) {
+    assert(maxLength == null || maxLength > 0);
+    return new TransactionOperation._(<String, dynamic>{
+      'type': 'append',
+      'value': value,
+      'maxLength': maxLength,
+    });
+  }
+
+  /// Replaces the current value with [value] if it is equal to [expected],
+  /// and aborts the transaction otherwise.
+  ///
+  /// A [expected] value of null matches a location without data.
+  factory TransactionOperation.compareAndSet(dynamic expected, dynamic value) {
+    return new TransactionOperation._(<String, dynamic>{
+      'type': 'compareAndSet',
+      'expected': expected,
+      'value': value,
+    });
+  }
+
+  /// Replaces the current numeric value with [value] if [value] is larger.
+  ///
+  /// The transaction is aborted if the current value is already at least
+  /// [value], or if it is not a number.
+  factory TransactionOperation.max(num value) {
+    return new TransactionOperation._(
+        <String, dynamic>{'type': 'max', 'value': value});
+  }
+
+  /// Replaces the current numeric value with [value] if [value] is smaller.
+  ///
+  /// The transaction is aborted if the current value is already at most
+  /// [value], or if it is not a number.
+  factory TransactionOperation.min(num value) {
+    return new TransactionOperation._(
+        <String, dynamic>{'type': 'min', 'value': value});
+  }
+
+  final Map<String, dynamic> _data;
+}
+
 class TransactionResult {
-  const TransactionResult._(this.error, this.committed, this.dataSnapshot);
+  const TransactionResult._(this.error, this.committed, this.dataSnapshot,
+      [this.metrics]);
+
+  TransactionResult._fromMap(Map<String, dynamic> result,
+      [this.dataSnapshotChunks])
+      : error = result['error'] != null
+            ? new DatabaseError._(result['error'])
+            : null,
+        committed = result['committed'],
+        dataSnapshot = result['snapshot'] != null
+            ? new DataSnapshot._(result['snapshot'])
+            : null,
+        metrics = result['metrics'] != null
+            ? new TransactionMetrics._(result['metrics'])
+            : null;
+
   final DatabaseError error;
   final bool committed;
   final DataSnapshot dataSnapshot;
+
+  /// The chunks of the snapshot the transaction completed with, if it was
+  /// started with a `chunkSize` and [dataSnapshot] is null. The stream closes
+  /// after the [SnapshotChunkType.end] chunk.
+  final Stream<SnapshotChunk> dataSnapshotChunks;
+
+  /// Statistics about how the transaction ran, or null if the platform
+  /// doesn't report them.
+  final TransactionMetrics metrics;
+}
+
+/// Statistics about a transaction started with
+/// [DatabaseReference.runTransaction].
+class TransactionMetrics {
+  TransactionMetrics._(Map<String, dynamic> data)
+      : attempts = data['attempts'],
+        timeInDart = new Duration(milliseconds: data['dartTimeMillis']),
+        abortReason = data['abortReason'];
+
+  /// How many times the transaction handler was called.
+  final int attempts;
+
+  /// Total time spent waiting for the transaction handler to return.
+  final Duration timeInDart;
+
+  /// Why the transaction was not committed, or null if it was.
+  ///
+  /// One of `timeout` (the handler didn't return within the transaction
+  /// timeout), `dartError` (the handler threw), `maxAttempts` (the value kept
+  /// changing concurrently) or `databaseError` (see [TransactionResult.error]).
+  final String abortReason;
 }
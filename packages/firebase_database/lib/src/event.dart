@@ -15,24 +15,139 @@ enum _EventType {
 /// `Event` encapsulates a DataSnapshot and possibly also the key of its
 /// previous sibling, which can be used to order the snapshots.
 class Event {
-  Map<String, dynamic> _data;
-  Event._(this._data) : snapshot = new DataSnapshot._(_data['snapshot']);
+  Event._(Map<String, dynamic> data)
+      : snapshot = new DataSnapshot._(data['snapshot']),
+        previousSiblingKey = data['previousSiblingKey'],
+        oldIndex = data['oldIndex'],
+        newIndex = data['newIndex'],
+        droppedEvents = data['droppedEvents'] ?? 0;
+
+  /// Creates an event from the positional payload of a query observed with
+  /// [Query.withDedicatedChannel]: the key and value of the snapshot, followed
+  /// by the previous sibling key and the indices of child events if present.
+  Event._compact(List<dynamic> data)
+      : snapshot = new DataSnapshot._compact(data[0], data[1]),
+        previousSiblingKey = data.length > 2 ? data[2] : null,
+        oldIndex = data.length > 3 ? data[3] : null,
+        newIndex = data.length > 4 ? data[4] : null,
+        droppedEvents = 0;
 
   final DataSnapshot snapshot;
-  String get previousSiblingKey => _data['previousSiblingKey'];
+  final String previousSiblingKey;
+
+  /// The position the child had before a removed, changed or moved event, if
+  /// the query was created with [Query.withChildIndices].
+  final int oldIndex;
+
+  /// The position of the child after an added, changed or moved event, if
+  /// the query was created with [Query.withChildIndices].
+  final int newIndex;
+
+  /// The number of events that were dropped by the query's [FlowControl]
+  /// before this one was delivered.
+  final int droppedEvents;
+}
+
+/// The kind of a [SnapshotChunk].
+enum SnapshotChunkType {
+  /// Starts a new snapshot, discarding any chunks of a previous snapshot that
+  /// didn't reach its end.
+  start,
+
+  /// Carries the next children of the current snapshot, in query order.
+  children,
+
+  /// Ends the current snapshot; all of its children have been delivered.
+  end,
+}
+
+/// Part of a snapshot that is delivered in chunks by [Query.onValueChunks].
+class SnapshotChunk {
+  final Map<String, dynamic> _data;
+  SnapshotChunk._(this._data);
+
+  SnapshotChunkType get type {
+    switch (_data['type']) {
+      case 'start':
+        return SnapshotChunkType.start;
+      case 'children':
+        return SnapshotChunkType.children;
+      default:
+        return SnapshotChunkType.end;
+    }
+  }
+
+  /// The key of the location of the snapshot, for [SnapshotChunkType.start].
+  String get key => _data['key'];
+
+  /// The number of children of the snapshot, for [SnapshotChunkType.start].
+  int get childCount => _data['childCount'];
+
+  /// The value of a snapshot without children, for [SnapshotChunkType.start].
+  dynamic get value => _data['value'];
+
+  /// The children in this chunk, for [SnapshotChunkType.children].
+  List<DataSnapshot> get children {
+    final List<Map<String, dynamic>> children = _data['children'];
+    if (children == null) return const <DataSnapshot>[];
+    return children
+        .map((Map<String, dynamic> child) => new DataSnapshot._(child))
+        .toList();
+  }
+}
+
+/// Aggregates of the children of a query, delivered by [Query.onAggregate].
+///
+/// Children whose field is missing or not a number are included in [count]
+/// only.
+class Aggregate {
+  final Map<String, dynamic> _data;
+  Aggregate._(this._data);
+
+  /// The number of children.
+  int get count => _data['count'];
+
+  /// The number of children with a numeric field.
+  int get numericCount => _data['numericCount'];
+
+  /// The sum of the numeric fields, or 0 if there are none.
+  num get sum => _data['sum'];
+
+  /// The average of the numeric fields, or null if there are none.
+  double get average => _data['average'];
+
+  /// The smallest numeric field, or null if there are none.
+  num get min => _data['min'];
+
+  /// The largest numeric field, or null if there are none.
+  num get max => _data['max'];
 }
 
 /// A DataSnapshot contains data from a Firebase Database location.
 /// Any time you read Firebase data, you receive the data as a DataSnapshot.
 class DataSnapshot {
-  final Map<String, dynamic> _data;
-  DataSnapshot._(this._data);
+  DataSnapshot._(Map<String, dynamic> data)
+      : key = data['key'],
+        value = data['value'],
+        _cacheAgeMillis = data['cacheAgeMillis'];
+
+  DataSnapshot._compact(this.key, this.value) : _cacheAgeMillis = null;
 
   /// The key of the location that generated this DataSnapshot.
-  String get key => _data['key'];
+  final String key;
 
   /// Returns the contents of this data snapshot as native types.
-  dynamic get value => _data['value'];
+  final dynamic value;
+
+  final int _cacheAgeMillis;
+
+  /// How long ago the value was cached, if this snapshot was read from the
+  /// read cache by [Query.once], or null if it was read from the database.
+  Duration get cacheAge {
+    return _cacheAgeMillis != null
+        ? new Duration(milliseconds: _cacheAgeMillis)
+        : null;
+  }
 }
 
 class MutableData {
@@ -12,23 +12,80 @@ class FirebaseDatabase {
     'plugins.flutter.io/firebase_database',
   );
 
+  static const EventChannel _snapshotChannel = const EventChannel(
+    'plugins.flutter.io/firebase_database_snapshots',
+  );
+
+  final EventChannel _connectionChannel = const EventChannel(
+    'plugins.flutter.io/firebase_database_connection',
+  );
+
   static final Map<int, StreamController<Event>> _observers =
       <int, StreamController<Event>>{};
 
+  static final Map<int, StreamController<SnapshotChunk>> _chunkObservers =
+      <int, StreamController<SnapshotChunk>>{};
+
+  // Chunks of the snapshots that transactions completed with, which close
+  // after their end chunk.
+  static final Map<int, StreamController<SnapshotChunk>> _transactionChunks =
+      <int, StreamController<SnapshotChunk>>{};
+
+  static final Map<int, StreamController<Aggregate>> _aggregateObservers =
+      <int, StreamController<Aggregate>>{};
+
+  // Chunks for all observers of [Query.onValueChunks] arrive on one stream,
+  // which is listened to once for all instances.
+  static StreamSubscription<dynamic> _snapshotSubscription;
+
+  // Last value delivered to each observer of [Query.onValueDeltas], which
+  // incoming changes are applied to.
+  static final Map<int, dynamic> _deltaValues = <int, dynamic>{};
+
   static final Map<int, TransactionHandler> _transactions =
       <int, TransactionHandler>{};
 
-  FirebaseDatabase._() {
+  static final Map<int, StreamController<ImportProgress>> _imports =
+      <int, StreamController<ImportProgress>>{};
+  static int _nextImportKey = 0;
+  static bool _removedStaleObservers = false;
+
+  // Identifies the observers created by this isolate on the platform side.
+  static final String _isolateToken = PushIdGenerator.generatePushChildName();
+
+  /// The token that observers created by this isolate are registered with.
+  @visibleForTesting
+  static String get isolateToken => _isolateToken;
+
+  FirebaseDatabase._({this.appName, this.databaseURL}) {
+    // Observers created by an earlier isolate, such as before a hot restart,
+    // can no longer be removed from Dart, so the first instance removes the
+    // observers that weren't created by this isolate.
+    if (!_removedStaleObservers) {
+      _removedStaleObservers = true;
+      _channel.invokeMethod(
+        'FirebaseDatabase#removeStaleObservers',
+        <String, dynamic>{'isolateToken': _isolateToken},
+      ).catchError((_) {}, test: (Object e) => e is MissingPluginException);
+    }
+    // Events and transactions of all instances are dispatched by handle, so
+    // every instance sets the same handler.
     _channel.setMethodCallHandler((MethodCall call) async {
       if (call.method == 'Event') {
-        final Event event = new Event._(call.arguments);
-        _observers[call.arguments['handle']].add(event);
+        _dispatchEvent(call.arguments);
+      } else if (call.method == 'Events') {
+        for (Map<String, dynamic> event in call.arguments) {
+          _dispatchEvent(event);
+        }
       } else if (call.method == 'DoTransaction') {
         final MutableData mutableData =
             new MutableData.private(call.arguments['snapshot']);
         final MutableData updated =
             await _transactions[call.arguments['transactionKey']](mutableData);
         return <String, dynamic>{'value': updated.value};
+      } else if (call.method == 'ImportProgress') {
+        _imports[call.arguments['importKey']]
+            ?.add(new ImportProgress._(call.arguments));
       } else {
         throw new MissingPluginException(
           '${call.method} method not implemented on the Dart side.',
@@ -37,14 +94,130 @@ class FirebaseDatabase {
     });
   }
 
+  static void _dispatchEvent(Map<String, dynamic> data) {
+    final int handle = data['handle'];
+    if (data.containsKey('aggregate')) {
+      // Aggregates may still arrive for a handle that was just removed.
+      _aggregateObservers[handle]?.add(new Aggregate._(data['aggregate']));
+      return;
+    }
+    final List<Map<String, dynamic>> changes = data['changes'];
+    if (changes != null) {
+      data['snapshot']['value'] = _applyChanges(_deltaValues[handle], changes);
+    }
+    if (_deltaValues.containsKey(handle)) {
+      _deltaValues[handle] = data['snapshot']['value'];
+    }
+    final Event event = new Event._(data);
+    _observers[handle].add(event);
+  }
+
+  static void _listenForSnapshotChunks() {
+    _snapshotSubscription ??=
+        _snapshotChannel.receiveBroadcastStream().listen((dynamic data) {
+      final int handle = data['handle'];
+      final SnapshotChunk chunk = new SnapshotChunk._(data);
+      final StreamController<SnapshotChunk> transactionChunks =
+          _transactionChunks[handle];
+      if (transactionChunks != null) {
+        transactionChunks.add(chunk);
+        if (chunk.type == SnapshotChunkType.end) {
+          _transactionChunks.remove(handle);
+          transactionChunks.close();
+        }
+        return;
+      }
+      // Chunks may still arrive for a handle that was just removed.
+      _chunkObservers[handle]?.add(chunk);
+    });
+  }
+
+  /// Returns the result of applying [changes] to [value].
+  ///
+  /// Maps along the changed paths are copied rather than modified, so values
+  /// of previously delivered snapshots never change.
+  static dynamic _applyChanges(
+      dynamic value, List<Map<String, dynamic>> changes) {
+    final Set<Map<dynamic, dynamic>> copies =
+        new Set<Map<dynamic, dynamic>>.identity();
+    Map<dynamic, dynamic> copyOf(dynamic node) {
+      if (node is Map && copies.contains(node)) {
+        return node;
+      }
+      final Map<dynamic, dynamic> copy = node is Map
+          ? new Map<dynamic, dynamic>.from(node)
+          : <dynamic, dynamic>{};
+      copies.add(copy);
+      return copy;
+    }
+
+    final Map<dynamic, dynamic> root = copyOf(value);
+    for (Map<String, dynamic> change in changes) {
+      final List<String> path = change['path'];
+      Map<dynamic, dynamic> parent = root;
+      for (int i = 0; i < path.length - 1; i++) {
+        parent = parent[path[i]] = copyOf(parent[path[i]]);
+      }
+      if (change['value'] == null) {
+        parent.remove(path.last);
+      } else {
+        parent[path.last] = change['value'];
+      }
+    }
+    return root.isEmpty ? null : root;
+  }
+
   static FirebaseDatabase _instance = new FirebaseDatabase._();
 
+  static final Map<String, FirebaseDatabase> _instances =
+      <String, FirebaseDatabase>{};
+
   /// Gets the instance of FirebaseDatabase for the default Firebase app.
   static FirebaseDatabase get instance => _instance;
 
+  /// Gets the instance of FirebaseDatabase for the database at [databaseURL]
+  /// of the Firebase app named [appName].
+  ///
+  /// If [appName] is null, the default app is used, and if [databaseURL] is
+  /// null, the app's default database is used. The platform side resolves and
+  /// caches each database the first time it is used.
+  factory FirebaseDatabase({String appName, String databaseURL}) {
+    if (appName == null && databaseURL == null) {
+      return _instance;
+    }
+    return _instances.putIfAbsent(
+      '$appName|$databaseURL',
+      () => new FirebaseDatabase._(appName: appName, databaseURL: databaseURL),
+    );
+  }
+
+  /// The name of the Firebase app of this instance, or null for the default
+  /// app.
+  final String appName;
+
+  /// The URL of the database of this instance, or null for the app's default
+  /// database.
+  final String databaseURL;
+
+  // Invokes a method on the database of this instance. The default instance
+  // doesn't send an app name or database URL.
+  Future<dynamic> _invokeMethod(String method,
+      [Map<String, dynamic> arguments]) {
+    if (appName != null || databaseURL != null) {
+      arguments =
+          new Map<String, dynamic>.from(arguments ?? <String, dynamic>{})
+            ..['app'] = appName
+            ..['databaseURL'] = databaseURL;
+    }
+    return _channel.invokeMethod(method, arguments);
+  }
+
   /// Gets a DatabaseReference for the root of your Firebase Database.
   DatabaseReference reference() => new DatabaseReference._(this, <String>[]);
 
+  /// Creates a [WriteBatch] for writing to several locations atomically.
+  WriteBatch batch() => new WriteBatch._(this);
+
   /// Attempts to sets the database persistence to [enabled].
   ///
   /// This property must be set before calling methods on database references
@@ -64,9 +237,9 @@ class FirebaseDatabase {
   /// thus be available again when the app is restarted (even when there is no
   /// network connectivity at that time).
   Future<bool> setPersistenceEnabled(bool enabled) {
-    return _channel.invokeMethod(
+    return _invokeMethod(
       'FirebaseDatabase#setPersistenceEnabled',
-      enabled,
+      <String, dynamic>{'enabled': enabled},
     );
   }
 
@@ -88,22 +261,185 @@ class FirebaseDatabase {
   /// on disk may temporarily exceed it at times. Cache sizes smaller than 1 MB
   /// or greater than 100 MB are not supported.
   Future<bool> setPersistenceCacheSizeBytes(int cacheSize) {
-    return _channel.invokeMethod(
+    return _invokeMethod(
       'FirebaseDatabase#setPersistenceCacheSizeBytes',
-      cacheSize,
+      <String, dynamic>{'cacheSize': cacheSize},
+    );
+  }
+
+  /// Routes locations below the path prefixes in [routes] to the databases at
+  /// the URLs they map to, which must belong to the same Firebase app.
+  ///
+  /// This spreads data across several databases while it's still addressed
+  /// through references of this instance. A location is routed by the
+  /// longest prefix that it is at or below, and locations that match no prefix
+  /// stay in the database of this instance. Connection and persistence
+  /// settings of this instance apply to the routed databases as well. A
+  /// [WriteBatch] can only write to locations of a single database.
+  ///
+  /// Routes apply to references used after this call. Pass an empty map to
+  /// remove all routes.
+  Future<Null> setShardRoutes(Map<String, String> routes) {
+    return _invokeMethod(
+      'FirebaseDatabase#setShardRoutes',
+      <String, dynamic>{'routes': routes},
     );
   }
 
+  /// Enables or disables coalesced delivery of observer events.
+  ///
+  /// By default every event is sent from the platform side as a separate
+  /// message. When batching is [enabled], events for all active observers are
+  /// buffered natively and delivered together once per frame, or as soon as
+  /// [maxBatchSize] events are pending. Events are still delivered to each
+  /// stream in the order they occurred.
+  ///
+  /// This greatly reduces the per-event overhead of large bursts, such as the
+  /// initial `onChildAdded` events for a long list, at the cost of up to one
+  /// frame of additional latency.
+  Future<Null> setEventBatchingEnabled(bool enabled, {int maxBatchSize: 500}) {
+    assert(maxBatchSize > 0, 'maxBatchSize must be greater than 0.');
+    return _channel.invokeMethod(
+      'FirebaseDatabase#setEventBatchingEnabled',
+      <String, dynamic>{'enabled': enabled, 'maxBatchSize': maxBatchSize},
+    );
+  }
+
+  /// Sets how long writes made with [DatabaseReference.setCoalesced] are held
+  /// back before the latest value for each location is written.
+  ///
+  /// The default is 100 milliseconds. This has no effect on iOS.
+  Future<Null> setWriteCoalescingInterval(Duration flushInterval) {
+    assert(flushInterval >= Duration.ZERO);
+    return _channel.invokeMethod(
+      'FirebaseDatabase#setWriteCoalescingInterval',
+      flushInterval.inMilliseconds,
+    );
+  }
+
+  /// Returns hit and miss counts of the platform side cache of built queries.
+  ///
+  /// Queries are cached by their path and parameters, so observing or
+  /// syncing the same query repeatedly doesn't rebuild it. The returned
+  /// [Future] completes with null on platforms without a query cache.
+  Future<QueryCacheStats> getQueryCacheStats() async {
+    final Map<String, dynamic> stats =
+        await _channel.invokeMethod('FirebaseDatabase#getQueryCacheStats');
+    return stats != null ? new QueryCacheStats._(stats) : null;
+  }
+
+  /// Configures the platform side cache of value snapshots that [Query.once]
+  /// answers reads with when `cacheFirst` is true.
+  ///
+  /// The cache is filled with every value snapshot read or observed, and is
+  /// disabled while [maxEntries] is 0, which is the default. Once it holds
+  /// more than [maxEntries] values or an estimated [maxBytes] bytes, the least
+  /// recently used values are evicted. Values older than [timeToLive] are
+  /// not used.
+  ///
+  /// The read cache is only supported on Android.
+  Future<Null> setReadCacheSettings({
+    int maxEntries: 100,
+    int maxBytes: 10 * 1024 * 1024,
+    Duration timeToLive: const Duration(minutes: 5),
+  }) {
+    assert(maxEntries >= 0, 'maxEntries must not be negative.');
+    assert(maxBytes >= 0, 'maxBytes must not be negative.');
+    return _channel.invokeMethod(
+      'FirebaseDatabase#setReadCacheSettings',
+      <String, dynamic>{
+        'maxEntries': maxEntries,
+        'maxBytes': maxBytes,
+        'timeToLiveMillis': timeToLive.inMilliseconds,
+      },
+    );
+  }
+
+  /// Returns usage statistics of the read cache configured with
+  /// [setReadCacheSettings].
+  ///
+  /// The returned [Future] completes with null on platforms without a read
+  /// cache.
+  Future<ReadCacheStats> getReadCacheStats() async {
+    final Map<String, dynamic> stats =
+        await _channel.invokeMethod('FirebaseDatabase#getReadCacheStats');
+    return stats != null ? new ReadCacheStats._(stats) : null;
+  }
+
+  /// Limits the number of queries kept synced with [Query.keepSynced] to
+  /// [maxSyncedQueries], or removes the limit if it is null.
+  ///
+  /// Queries beyond the limit are no longer kept synced, starting with the
+  /// lowest priority and least recently used ones. This keeps prefetching from
+  /// growing beyond what the persistence cache and the network can handle.
+  ///
+  /// The limit is only supported on Android.
+  Future<Null> setMaxSyncedQueries(int maxSyncedQueries) {
+    assert(maxSyncedQueries == null || maxSyncedQueries >= 0);
+    return _channel.invokeMethod(
+      'FirebaseDatabase#setMaxSyncedQueries',
+      maxSyncedQueries,
+    );
+  }
+
+  /// Returns statistics of the queries kept synced with [Query.keepSynced].
+  ///
+  /// The returned [Future] completes with null on platforms that don't track
+  /// synced queries.
+  Future<SyncStats> getSyncStats() async {
+    final Map<String, dynamic> stats =
+        await _channel.invokeMethod('FirebaseDatabase#getSyncStats');
+    return stats != null ? new SyncStats._(stats) : null;
+  }
+
+  /// Returns the observers currently registered on the platform side, for all
+  /// instances, to help find streams that were never cancelled.
+  ///
+  /// Observers are also removed when the activity hosting the Flutter view is
+  /// destroyed on Android.
+  Future<List<ActiveObserver>> listActiveObservers() async {
+    final List<Map<String, dynamic>> observers =
+        await _channel.invokeMethod('FirebaseDatabase#listActiveObservers');
+    return observers
+        .map((Map<String, dynamic> data) => new ActiveObserver._(data))
+        .toList();
+  }
+
+  /// Reports the connection health of the database of this instance whenever
+  /// it changes.
+  ///
+  /// Events report whether the client is connected, the estimated offset of
+  /// the server clock, the number of outstanding writes made through this
+  /// plugin and the round trip time of the last one to complete. If
+  /// [probePath] is given, a server timestamp is also written to that location
+  /// every [probeInterval] to measure the write round trip time regularly.
+  ///
+  /// Only one database is monitored at a time; listening to the stream of
+  /// another instance stops reporting for this one. Outstanding writes and
+  /// write round trip times are reported for Android only.
+  Stream<ConnectionHealth> onConnectionHealth({
+    String probePath,
+    Duration probeInterval: const Duration(seconds: 30),
+  }) {
+    assert(probeInterval > Duration.ZERO);
+    return _connectionChannel.receiveBroadcastStream(<String, dynamic>{
+      'app': appName,
+      'databaseURL': databaseURL,
+      'probePath': probePath,
+      'probeIntervalMillis': probeInterval.inMilliseconds,
+    }).map((dynamic data) => new ConnectionHealth._(data));
+  }
+
   /// Resumes our connection to the Firebase Database backend after a previous
   /// [goOffline] call.
   Future<Null> goOnline() {
-    return _channel.invokeMethod('FirebaseDatabase#goOnline');
+    return _invokeMethod('FirebaseDatabase#goOnline');
   }
 
   /// Shuts down our connection to the Firebase Database backend until
   /// [goOnline] is called.
   Future<Null> goOffline() {
-    return _channel.invokeMethod('FirebaseDatabase#goOffline');
+    return _invokeMethod('FirebaseDatabase#goOffline');
   }
 
   /// The Firebase Database client automatically queues writes and sends them to
@@ -117,6 +453,164 @@ class FirebaseDatabase {
   /// affected event listeners, and the client will not (re-)send them to the
   /// Firebase Database backend.
   Future<Null> purgeOutstandingWrites() {
-    return _channel.invokeMethod('FirebaseDatabase#purgeOutstandingWrites');
+    return _invokeMethod('FirebaseDatabase#purgeOutstandingWrites');
   }
 }
+
+/// Usage statistics of the platform side query cache.
+class QueryCacheStats {
+  QueryCacheStats._(Map<String, dynamic> data)
+      : hits = data['hits'],
+        misses = data['misses'],
+        size = data['size'],
+        maxSize = data['maxSize'];
+
+  /// Number of lookups that found an already built query.
+  final int hits;
+
+  /// Number of lookups that had to build a new query.
+  final int misses;
+
+  /// Number of queries currently cached.
+  final int size;
+
+  /// Maximum number of queries that are cached.
+  final int maxSize;
+}
+
+/// Statistics of the queries kept synced with [Query.keepSynced].
+///
+/// Sizes are estimated from the data delivered for synced queries to
+/// observers and reads.
+class SyncStats {
+  SyncStats._(Map<String, dynamic> data)
+      : syncedQueries = data['syncedQueries'],
+        maxSyncedQueries = data['maxSyncedQueries'],
+        evictions = data['evictions'],
+        receivedBytes = data['receivedBytes'],
+        bytesPerSecond = data['bytesPerSecond'],
+        syncedValueBytes = data['syncedValueBytes'],
+        cachePressure = data['cachePressure'];
+
+  /// Number of queries currently kept synced.
+  final int syncedQueries;
+
+  /// Maximum number of queries kept synced, or null if there is no limit.
+  final int maxSyncedQueries;
+
+  /// Number of queries no longer kept synced because of the limit.
+  final int evictions;
+
+  /// Estimated number of bytes received for synced queries.
+  final int receivedBytes;
+
+  /// Estimated bytes per second received for synced queries since the
+  /// previous call to [FirebaseDatabase.getSyncStats].
+  final double bytesPerSecond;
+
+  /// Estimated size of the latest values of the synced queries.
+  final int syncedValueBytes;
+
+  /// [syncedValueBytes] relative to the persistence cache size.
+  final double cachePressure;
+}
+
+/// An observer reported by [FirebaseDatabase.listActiveObservers].
+class ActiveObserver {
+  ActiveObserver._(Map<String, dynamic> data)
+      : handle = data['handle'],
+        query = data['query'],
+        eventType = data['eventType'].replaceFirst('_EventType.', ''),
+        age = new Duration(milliseconds: data['ageMillis']),
+        eventCount = data['eventCount'],
+        bytesDelivered = data['bytesDelivered'],
+        listenerCount = data['listenerCount'];
+
+  /// The handle of the observer.
+  final int handle;
+
+  /// A description of the observed query: its path, and on Android also its
+  /// database and parameters.
+  final String query;
+
+  /// The type of the observed events, such as `value`, `childAdded` or
+  /// `aggregate`.
+  final String eventType;
+
+  /// Time since the observer was created.
+  final Duration age;
+
+  /// Number of events sent to the observer, or null on iOS.
+  final int eventCount;
+
+  /// Estimated number of bytes of snapshots sent to the observer, or null on
+  /// iOS.
+  final int bytesDelivered;
+
+  /// Number of observers sharing the platform listener of this observer,
+  /// including this one, or null on iOS.
+  final int listenerCount;
+}
+
+/// Connection health reported by [FirebaseDatabase.onConnectionHealth].
+class ConnectionHealth {
+  ConnectionHealth._(Map<String, dynamic> data)
+      : connected = data['connected'],
+        serverTimeOffset = _millis(data['serverTimeOffsetMillis']),
+        probeLatency = _millis(data['probeLatencyMillis']),
+        writeLatency = _millis(data['writeLatencyMillis']),
+        outstandingWrites = data['outstandingWrites'];
+
+  static Duration _millis(int millis) =>
+      millis != null ? new Duration(milliseconds: millis) : null;
+
+  /// Whether the client is connected to the database, or null until known.
+  final bool connected;
+
+  /// Estimated difference between the server clock and the local clock, or
+  /// null until known.
+  final Duration serverTimeOffset;
+
+  /// Round trip time of the last probe write, or null if there was none.
+  final Duration probeLatency;
+
+  /// Round trip time of the last write to complete, or null if there was
+  /// none.
+  final Duration writeLatency;
+
+  /// Number of writes that were not yet acknowledged by the server.
+  final int outstandingWrites;
+}
+
+/// Usage statistics of the platform side read cache.
+class ReadCacheStats {
+  ReadCacheStats._(Map<String, dynamic> data)
+      : hits = data['hits'],
+        misses = data['misses'],
+        evictions = data['evictions'],
+        entries = data['entries'],
+        bytes = data['bytes'],
+        maxEntries = data['maxEntries'],
+        maxBytes = data['maxBytes'];
+
+  /// Number of reads that were answered with a cached value.
+  final int hits;
+
+  /// Number of reads that found no cached value, or only an expired one.
+  final int misses;
+
+  /// Number of values evicted to stay within [maxEntries] and [maxBytes].
+  final int evictions;
+
+  /// Number of values currently cached.
+  final int entries;
+
+  /// Estimated size in bytes of the values currently cached.
+  final int bytes;
+
+  /// Maximum number of values that are cached.
+  final int maxEntries;
+
+  /// Maximum estimated size in bytes of the values that are cached.
+  final int maxBytes;
+}
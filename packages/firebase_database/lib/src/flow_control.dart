@@ -0,0 +1,57 @@
+// Copyright 2017, the Flutter project authors.  Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+
+part of firebase_database;
+
+/// Limits how fast events of a query are delivered to its listeners.
+///
+/// Flow control is applied on the platform side, so events that are dropped
+/// are never sent over the platform channel. The number of events dropped so
+/// far is available from [Event.droppedEvents].
+///
+/// Flow control is only supported on Android; observing a query with flow
+/// control fails on iOS.
+///
+/// See [Query.withFlowControl].
+class FlowControl {
+  const FlowControl._(this._conflate, this._interval, this._maxQueueSize);
+
+  /// Delivers at most one event per [interval], dropping all but the latest
+  /// of the events that arrive in between.
+  ///
+  /// Only the latest value is relevant for value events, so this can only be
+  /// used with [Query.onValue].
+  ///
+  /// The interval defaults to one frame at 60 frames per second.
+  const FlowControl.latest(
+      {Duration interval: const Duration(milliseconds: 16)})
+      : this._(true, interval, 1);
+
+  /// Delivers at most [maxEventsPerSecond] events per second.
+  ///
+  /// Events that arrive faster are queued. Once [maxQueueSize] events are
+  /// queued, the oldest queued event is dropped for every new one.
+  factory FlowControl.throttle(int maxEventsPerSecond,
+      {int maxQueueSize: 100}) {
+    assert(maxEventsPerSecond > 0 && maxEventsPerSecond <= 1000000);
+    assert(maxQueueSize > 0);
+    return new FlowControl._(
+      false,
+      new Duration(microseconds: 1000000 ~/ maxEventsPerSecond),
+      maxQueueSize,
+    );
+  }
+
+  final bool _conflate;
+  final Duration _interval;
+  final int _maxQueueSize;
+
+  Map<String, dynamic> _toMap() {
+    return <String, dynamic>{
+      'conflate': _conflate,
+      'intervalMicros': _interval.inMicroseconds,
+      'maxQueueSize': _maxQueueSize,
+    };
+  }
+}
@@ -9,9 +9,17 @@ class Query {
   Query._(
       {@required FirebaseDatabase database,
       @required List<String> pathComponents,
-      Map<String, dynamic> parameters})
+      Map<String, dynamic> parameters,
+      FlowControl flowControl,
+      bool childIndices: false,
+      Map<String, dynamic> shallow,
+      bool dedicatedChannel: false})
       : _database = database,
         _pathComponents = pathComponents,
+        _flowControl = flowControl,
+        _childIndices = childIndices,
+        _shallow = shallow,
+        _dedicatedChannel = dedicatedChannel,
         _parameters = parameters ??
             new Map<String, dynamic>.unmodifiable(<String, dynamic>{}),
         assert(database != null);
@@ -19,6 +27,10 @@ class Query {
   final FirebaseDatabase _database;
   final List<String> _pathComponents;
   final Map<String, dynamic> _parameters;
+  final FlowControl _flowControl;
+  final bool _childIndices;
+  final Map<String, dynamic> _shallow;
+  final bool _dedicatedChannel;
 
   /// Slash-delimited path representing the database location of this query.
   String get path => _pathComponents.join('/');
@@ -30,6 +42,10 @@ class Query {
       parameters: new Map<String, dynamic>.unmodifiable(
         new Map<String, dynamic>.from(_parameters)..addAll(parameters),
       ),
+      flowControl: _flowControl,
+      childIndices: _childIndices,
+      shallow: _shallow,
+      dedicatedChannel: _dedicatedChannel,
     );
   }
 
@@ -40,28 +56,63 @@ class Query {
       });
   }
 
-  Stream<Event> _observe(_EventType eventType) {
+  Stream<Event> _observe(_EventType eventType, {int deltaResyncInterval}) {
+    assert(_flowControl == null ||
+        !_flowControl._conflate ||
+        eventType == _EventType.value);
+    assert(_shallow == null || eventType == _EventType.value,
+        'Shallow queries can only be observed with onValue.');
+    assert(!_dedicatedChannel ||
+        (_flowControl == null && deltaResyncInterval == null));
     Future<int> _handle;
+    StreamSubscription<dynamic> channelSubscription;
     // It's fine to let the StreamController be garbage collected once all the
     // subscribers have cancelled; this analyzer warning is safe to ignore.
     StreamController<Event> controller; // ignore: close_sinks
     controller = new StreamController<Event>.broadcast(
       onListen: () {
-        _handle = _database._channel.invokeMethod(
-          'Query#observe',
-          <String, dynamic>{
-            'path': path,
-            'parameters': _parameters,
-            'eventType': eventType.toString(),
-          },
-        );
+        final Map<String, dynamic> arguments = <String, dynamic>{
+          'path': path,
+          'parameters': _parameters,
+          'eventType': eventType.toString(),
+          'isolateToken': FirebaseDatabase._isolateToken,
+        };
+        if (deltaResyncInterval != null) {
+          arguments['deltaResyncInterval'] = deltaResyncInterval;
+        }
+        if (_flowControl != null) {
+          arguments['flowControl'] = _flowControl._toMap();
+        }
+        if (_childIndices && eventType != _EventType.value) {
+          arguments['childIndices'] = true;
+        }
+        if (_shallow != null) {
+          arguments['shallow'] = _shallow;
+        }
+        if (_dedicatedChannel) {
+          arguments['dedicatedChannel'] = true;
+        }
+        _handle = _database._invokeMethod('Query#observe', arguments);
         _handle.then((int handle) {
+          // Events also arrive over the shared channel from platforms without
+          // dedicated channels.
           FirebaseDatabase._observers[handle] = controller;
-        });
+          if (_dedicatedChannel) {
+            channelSubscription = new EventChannel(
+              'plugins.flutter.io/firebase_database/query/$handle',
+            ).receiveBroadcastStream().listen((dynamic event) {
+              controller.add(new Event._compact(event));
+            });
+          }
+          if (deltaResyncInterval != null) {
+            FirebaseDatabase._deltaValues[handle] = null;
+          }
+        }).catchError(controller.addError);
       },
       onCancel: () {
         _handle.then((int handle) async {
-          await _database._channel.invokeMethod(
+          await channelSubscription?.cancel();
+          await _database._invokeMethod(
             'Query#removeObserver',
             <String, dynamic>{
               'path': path,
@@ -70,14 +121,44 @@ class Query {
             },
           );
           FirebaseDatabase._observers.remove(handle);
+          FirebaseDatabase._deltaValues.remove(handle);
+        }, onError: (dynamic error) {
+          // Nothing was observed, so there is nothing to remove.
         });
       },
     );
     return controller.stream;
   }
 
-  /// Listens for a single value event and then stops listening.
-  Future<DataSnapshot> once() async => (await onValue.first).snapshot;
+  /// Reads the current value of this query once.
+  ///
+  /// If [timeout] is given and the value can't be read in time, for example
+  /// while offline with no cached data, the returned [Future] completes with a
+  /// [PlatformException] with code `timeout`.
+  ///
+  /// If [cacheFirst] is true and this query is already observed with
+  /// [onValue], the latest value delivered to that observer is returned
+  /// without reading it again. Otherwise, if the read cache is enabled with
+  /// [FirebaseDatabase.setReadCacheSettings] and holds a value for this query,
+  /// that value is returned right away with its [DataSnapshot.cacheAge], and
+  /// the query is read again in the background to refresh the cache. This is
+  /// only supported on Android; other platforms always read the value.
+  Future<DataSnapshot> once({Duration timeout, bool cacheFirst: false}) async {
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'path': path,
+      'parameters': _parameters,
+      'cacheFirst': cacheFirst,
+    };
+    if (timeout != null) {
+      arguments['timeoutMillis'] = timeout.inMilliseconds;
+    }
+    if (_shallow != null) {
+      arguments['shallow'] = _shallow;
+    }
+    final Map<String, dynamic> snapshot =
+        await _database._invokeMethod('Query#once', arguments);
+    return new DataSnapshot._(snapshot);
+  }
 
   /// Fires when children are added.
   Stream<Event> get onChildAdded => _observe(_EventType.childAdded);
@@ -94,6 +175,196 @@ class Query {
   /// Fires when the data at this location is updated. `previousChildKey` is null.
   Stream<Event> get onValue => _observe(_EventType.value);
 
+  /// Fires when the data at this location is updated, like [onValue].
+  ///
+  /// Rather than sending the whole value on every change, the platform side
+  /// keeps track of the last value it delivered and only sends the paths that
+  /// were changed, added or removed since. The full value is rebuilt here, so
+  /// listeners receive complete snapshots as with [onValue]. Every
+  /// [resyncInterval] events the full value is sent again.
+  ///
+  /// This is most useful for large nodes where only small parts change at a
+  /// time.
+  Stream<Event> onValueDeltas({int resyncInterval: 50}) {
+    assert(resyncInterval > 0, 'resyncInterval must be greater than 0.');
+    return _observe(_EventType.value, deltaResyncInterval: resyncInterval);
+  }
+
+  /// Fires when the data at this location is updated, like [onValue], but
+  /// delivers each snapshot as a sequence of chunks.
+  ///
+  /// Every snapshot starts with a [SnapshotChunkType.start] chunk, followed by
+  /// chunks of at most [chunkSize] children and a [SnapshotChunkType.end]
+  /// chunk. Snapshots are never converted or sent as a whole, so this can be
+  /// used for locations with many children that are too large for [onValue].
+  Stream<SnapshotChunk> onValueChunks({int chunkSize: 500}) {
+    assert(chunkSize > 0, 'chunkSize must be greater than 0.');
+    assert(_flowControl == null, 'Chunked snapshots are not flow controlled.');
+    assert(_shallow == null, 'Chunked snapshots are never shallow.');
+    Future<int> _handle;
+    // It's fine to let the StreamController be garbage collected once all the
+    // subscribers have cancelled; this analyzer warning is safe to ignore.
+    StreamController<SnapshotChunk> controller; // ignore: close_sinks
+    controller = new StreamController<SnapshotChunk>.broadcast(
+      onListen: () {
+        FirebaseDatabase._listenForSnapshotChunks();
+        _handle = _database._invokeMethod(
+          'Query#observe',
+          <String, dynamic>{
+            'path': path,
+            'parameters': _parameters,
+            'isolateToken': FirebaseDatabase._isolateToken,
+            'eventType': _EventType.value.toString(),
+            'chunkSize': chunkSize,
+          },
+        );
+        _handle.then((int handle) {
+          FirebaseDatabase._chunkObservers[handle] = controller;
+        });
+      },
+      onCancel: () {
+        _handle.then((int handle) async {
+          await _database._invokeMethod(
+            'Query#removeObserver',
+            <String, dynamic>{
+              'path': path,
+              'parameters': _parameters,
+              'handle': handle,
+            },
+          );
+          FirebaseDatabase._chunkObservers.remove(handle);
+        });
+      },
+    );
+    return controller.stream;
+  }
+
+  /// Fires with the count of the children of this query, and the sum,
+  /// average, minimum and maximum of their [field], whenever they change.
+  ///
+  /// If [field] is null, the values of the children themselves are
+  /// aggregated. The aggregates are maintained on the platform side from child
+  /// events, so only the aggregates are sent rather than the children.
+  Stream<Aggregate> onAggregate({String field}) {
+    Future<int> _handle;
+    // It's fine to let the StreamController be garbage collected once all the
+    // subscribers have cancelled; this analyzer warning is safe to ignore.
+    StreamController<Aggregate> controller; // ignore: close_sinks
+    controller = new StreamController<Aggregate>.broadcast(
+      onListen: () {
+        _handle = _database._invokeMethod(
+          'Query#observe',
+          <String, dynamic>{
+            'path': path,
+            'parameters': _parameters,
+            'isolateToken': FirebaseDatabase._isolateToken,
+            'eventType': 'aggregate',
+            'aggregate': <String, dynamic>{'field': field},
+          },
+        );
+        _handle.then((int handle) {
+          FirebaseDatabase._aggregateObservers[handle] = controller;
+        });
+      },
+      onCancel: () {
+        _handle.then((int handle) async {
+          await _database._invokeMethod(
+            'Query#removeObserver',
+            <String, dynamic>{
+              'path': path,
+              'parameters': _parameters,
+              'handle': handle,
+            },
+          );
+          FirebaseDatabase._aggregateObservers.remove(handle);
+        });
+      },
+    );
+    return controller.stream;
+  }
+
+  /// Create a query whose events are delivered subject to [flowControl].
+  ///
+  /// This is useful for locations that change faster than listeners can
+  /// handle, for example to rebuild a widget at most once per frame.
+  ///
+  /// Flow control is only supported on Android. On iOS, observing the query
+  /// fails with a [PlatformException] whose code is `unsupported`.
+  Query withFlowControl(FlowControl flowControl) {
+    return new Query._(
+      database: _database,
+      pathComponents: _pathComponents,
+      parameters: _parameters,
+      flowControl: flowControl,
+      childIndices: _childIndices,
+      shallow: _shallow,
+      dedicatedChannel: _dedicatedChannel,
+    );
+  }
+
+  /// Create a query whose child events carry the positions of the child they
+  /// affect, in [Event.oldIndex] and [Event.newIndex].
+  ///
+  /// The positions are tracked on the platform side, so lists that mirror the
+  /// children of the query can be updated without searching for each child.
+  /// This is only supported on Android.
+  Query withChildIndices() {
+    return new Query._(
+      database: _database,
+      pathComponents: _pathComponents,
+      parameters: _parameters,
+      flowControl: _flowControl,
+      childIndices: true,
+      shallow: _shallow,
+      dedicatedChannel: _dedicatedChannel,
+    );
+  }
+
+  /// Create a query whose values only describe the children of its location,
+  /// for [onValue] and [once].
+  ///
+  /// The value of a snapshot is then a map from the key of each child to
+  /// `true`, to the child's number of children if [childCounts] is true, or
+  /// to the value of the child's [field] if given. Nothing else below the
+  /// children is converted or sent, which makes listing the children of a
+  /// large location cheap. Fields with children of their own are sent as
+  /// null. Locations without children have their plain value.
+  Query shallow({bool childCounts: false, String field}) {
+    assert(!childCounts || field == null,
+        'Either child counts or a field can be selected, not both.');
+    return new Query._(
+      database: _database,
+      pathComponents: _pathComponents,
+      parameters: _parameters,
+      flowControl: _flowControl,
+      childIndices: _childIndices,
+      shallow: <String, dynamic>{'childCounts': childCounts, 'field': field},
+      dedicatedChannel: _dedicatedChannel,
+    );
+  }
+
+  /// Create a query whose [onValue] and child events are each delivered over
+  /// a platform channel of their own, rather than the channel shared by all
+  /// queries.
+  ///
+  /// Events are then sent as compact lists instead of maps keyed by handle,
+  /// which makes delivering them cheaper for queries with frequent events.
+  /// Such events are not batched per frame by
+  /// [FirebaseDatabase.setEventBatchingEnabled]. This can't be combined with
+  /// [withFlowControl] or [onValueDeltas]; observing such a query fails with
+  /// an `invalid_query` error.
+  Query withDedicatedChannel() {
+    return new Query._(
+      database: _database,
+      pathComponents: _pathComponents,
+      parameters: _parameters,
+      flowControl: _flowControl,
+      childIndices: _childIndices,
+      shallow: _shallow,
+      dedicatedChannel: true,
+    );
+  }
+
   /// Create a query constrained to only return child nodes with a value greater
   /// than or equal to the given value, using the given orderBy directive or
   /// priority as default, and optionally only child nodes with a key greater
@@ -189,14 +460,20 @@ class Query {
   /// automatically be downloaded and kept in sync, even when no listeners are
   /// attached for that location. Additionally, while a location is kept synced,
   /// it will not be evicted from the persistent disk cache.
-  Future<Null> keepSynced(bool value) {
-    return _database._channel.invokeMethod(
-      'Query#keepSynced',
-      <String, dynamic>{
-        'path': path,
-        'parameters': _parameters,
-        'value': value
-      },
-    );
+  ///
+  /// If a limit is set with [FirebaseDatabase.setMaxSyncedQueries], queries
+  /// beyond the limit are no longer kept synced, starting with the lowest
+  /// [priority] and, among those, the query that was synced, observed or read
+  /// least recently.
+  Future<Null> keepSynced(bool value, {int priority}) {
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'path': path,
+      'parameters': _parameters,
+      'value': value
+    };
+    if (priority != null) {
+      arguments['priority'] = priority;
+    }
+    return _database._invokeMethod('Query#keepSynced', arguments);
   }
 }
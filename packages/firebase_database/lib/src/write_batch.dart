@@ -0,0 +1,67 @@
+// Copyright 2017, the Flutter project authors.  Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+
+part of firebase_database;
+
+/// A group of writes to arbitrary locations that is written atomically.
+///
+/// All operations are sent to the platform side in a single call when the
+/// batch is committed, and are written with a single multi-path update, so
+/// either all of them succeed or none of them do.
+///
+/// If operations in the batch overlap, later operations take precedence over
+/// earlier ones. The root location can't be written with a batch.
+class WriteBatch {
+  WriteBatch._(this._database);
+
+  final FirebaseDatabase _database;
+  final List<Map<String, dynamic>> _operations = <Map<String, dynamic>>[];
+  bool _committed = false;
+
+  /// Writes [value] to the location of [reference] with the specified
+  /// [priority] if applicable, like [DatabaseReference.set].
+  void set(DatabaseReference reference, dynamic value, {dynamic priority}) {
+    assert(!_committed, 'This batch has already been committed.');
+    _operations.add(<String, dynamic>{
+      'type': 'set',
+      'path': reference.path,
+      'value': value,
+      'priority': priority,
+    });
+  }
+
+  /// Updates the children of the location of [reference] with [value], like
+  /// [DatabaseReference.update].
+  void update(DatabaseReference reference, Map<String, dynamic> value) {
+    assert(!_committed, 'This batch has already been committed.');
+    _operations.add(<String, dynamic>{
+      'type': 'update',
+      'path': reference.path,
+      'value': value,
+    });
+  }
+
+  /// Removes the data at the location of [reference], like
+  /// [DatabaseReference.remove].
+  void remove(DatabaseReference reference) {
+    assert(!_committed, 'This batch has already been committed.');
+    _operations.add(<String, dynamic>{
+      'type': 'remove',
+      'path': reference.path,
+    });
+  }
+
+  /// Writes all operations in this batch atomically.
+  ///
+  /// The returned [Future] completes once the write has been committed by
+  /// the Firebase Database servers, or with an error if it was rejected.
+  Future<Null> commit() {
+    assert(!_committed, 'This batch has already been committed.');
+    _committed = true;
+    return _database._invokeMethod(
+      'FirebaseDatabase#commitBatch',
+      <String, dynamic>{'operations': _operations},
+    );
+  }
+}
@@ -3,6 +3,7 @@
 // found in the LICENSE file.
 
 import 'dart:async';
+import 'dart:typed_data';
 
 import 'package:firebase_database/firebase_database.dart';
 import 'package:flutter/services.dart';
@@ -28,6 +29,78 @@ void main() {
             return true;
           case 'FirebaseDatabase#setPersistenceCacheSizeBytes':
             return true;
+          case 'FirebaseDatabase#getQueryCacheStats':
+            return <String, dynamic>{
+              'hits': 7,
+              'misses': 3,
+              'size': 3,
+              'maxSize': 100,
+            };
+          case 'Query#once':
+            return <String, dynamic>{
+              'key': 'foo',
+              'value': <String, dynamic>{'bar': 'baz'},
+            };
+          case 'FirebaseDatabase#getSyncStats':
+            return <String, dynamic>{
+              'syncedQueries': 2,
+              'maxSyncedQueries': 10,
+              'evictions': 1,
+              'receivedBytes': 4096,
+              'bytesPerSecond': 512.0,
+              'syncedValueBytes': 1024,
+              'cachePressure': 0.25,
+            };
+          case 'FirebaseDatabase#getReadCacheStats':
+            return <String, dynamic>{
+              'hits': 4,
+              'misses': 2,
+              'evictions': 1,
+              'entries': 3,
+              'bytes': 2048,
+              'maxEntries': 100,
+              'maxBytes': 10485760,
+            };
+          case 'FirebaseDatabase#listActiveObservers':
+            return <Map<String, dynamic>>[
+              <String, dynamic>{
+                'handle': 3,
+                'query': '|/foo|orderByChild=sbar',
+                'eventType': '_EventType.value',
+                'ageMillis': 1500,
+                'eventCount': 4,
+                'bytesDelivered': 512,
+                'listenerCount': 2,
+              },
+            ];
+          case 'DatabaseReference#set':
+            // Simulates a coalesced write superseded by a later one.
+            final bool stale = methodCall.arguments['value'] == 'stale';
+            return stale ? 'coalesced' : null;
+          case 'DatabaseReference#exportToFile':
+            return <String, dynamic>{
+              'file': '/data/files/${methodCall.arguments['file']}',
+              'bytes': 120,
+            };
+          case 'DatabaseReference#importFromFile':
+            await BinaryMessages.handlePlatformMessage(
+              channel.name,
+              channel.codec.encodeMethodCall(
+                new MethodCall('ImportProgress', <String, dynamic>{
+                  'importKey': methodCall.arguments['importKey'],
+                  'writtenValues': 2,
+                  'bytesRead': 64,
+                  'totalBytes': 120,
+                }),
+              ),
+              (_) {},
+            );
+            return 2;
+          case 'DatabaseReference#runTransactionOperation':
+            return <String, dynamic>{
+              'committed': true,
+              'snapshot': <String, dynamic>{'key': 'likes', 'value': 43},
+            };
           case 'DatabaseReference#runTransaction':
             Map<String, dynamic> updatedValue;
             Future<Null> simulateEvent(
@@ -55,14 +128,25 @@ void main() {
                   'value': <String, dynamic>{'fakeKey': 'fakeValue'},
                 }));
 
-            return <String, dynamic>{
+            final Map<String, dynamic> completion = <String, dynamic>{
               'error': null,
               'committed': true,
               'snapshot': <String, dynamic>{
                 'key': 'fakeKey',
                 'value': updatedValue,
-              }
+              },
+              'metrics': <String, dynamic>{
+                'attempts': 1,
+                'dartTimeMillis': 12,
+                'abortReason': null,
+              },
             };
+            if (methodCall.arguments['chunkSize'] != null) {
+              // The snapshot is streamed in chunks instead.
+              completion.remove('snapshot');
+              completion['chunkHandle'] = 42;
+            }
+            return completion;
           default:
             return null;
         }
@@ -76,8 +160,14 @@ void main() {
       expect(
         log,
         equals(<MethodCall>[
-          const MethodCall('FirebaseDatabase#setPersistenceEnabled', false),
-          const MethodCall('FirebaseDatabase#setPersistenceEnabled', true),
+          const MethodCall(
+            'FirebaseDatabase#setPersistenceEnabled',
+            const <String, dynamic>{'enabled': false},
+          ),
+          const MethodCall(
+            'FirebaseDatabase#setPersistenceEnabled',
+            const <String, dynamic>{'enabled': true},
+          ),
         ]),
       );
     });
@@ -87,11 +177,125 @@ void main() {
       expect(
         log,
         equals(<MethodCall>[
-          const MethodCall('FirebaseDatabase#setPersistenceCacheSizeBytes', 42),
+          const MethodCall(
+            'FirebaseDatabase#setPersistenceCacheSizeBytes',
+            const <String, dynamic>{'cacheSize': 42},
+          ),
+        ]),
+      );
+    });
+
+    test('named instance', () async {
+      final FirebaseDatabase shard = new FirebaseDatabase(
+        appName: 'other',
+        databaseURL: 'https://shard-1.firebaseio.com',
+      );
+      expect(
+        new FirebaseDatabase(
+          appName: 'other',
+          databaseURL: 'https://shard-1.firebaseio.com',
+        ),
+        same(shard),
+      );
+      expect(new FirebaseDatabase(), same(database));
+      await shard.goOnline();
+      await shard.reference().child('foo').set('bar');
+      expect(
+        log,
+        equals(<MethodCall>[
+          const MethodCall(
+            'FirebaseDatabase#goOnline',
+            const <String, dynamic>{
+              'app': 'other',
+              'databaseURL': 'https://shard-1.firebaseio.com',
+            },
+          ),
+          const MethodCall(
+            'DatabaseReference#set',
+            const <String, dynamic>{
+              'path': 'foo',
+              'value': 'bar',
+              'priority': null,
+              'app': 'other',
+              'databaseURL': 'https://shard-1.firebaseio.com',
+            },
+          ),
+        ]),
+      );
+    });
+
+    test('setShardRoutes', () async {
+      await database.setShardRoutes(<String, String>{
+        'chats': 'https://shard-1.firebaseio.com',
+      });
+      expect(
+        log,
+        equals(<MethodCall>[
+          const MethodCall(
+            'FirebaseDatabase#setShardRoutes',
+            const <String, dynamic>{
+              'routes': const <String, String>{
+                'chats': 'https://shard-1.firebaseio.com',
+              },
+            },
+          ),
         ]),
       );
     });
 
+    test('onConnectionHealth', () async {
+      const EventChannel connectionChannel = const EventChannel(
+        'plugins.flutter.io/firebase_database_connection',
+      );
+      final List<dynamic> listenArguments = <dynamic>[];
+      BinaryMessages.setMockMessageHandler(
+        connectionChannel.name,
+        (ByteData message) async {
+          final MethodCall call =
+              connectionChannel.codec.decodeMethodCall(message);
+          if (call.method == 'listen') listenArguments.add(call.arguments);
+          return connectionChannel.codec.encodeSuccessEnvelope(null);
+        },
+      );
+      final AsyncQueue<ConnectionHealth> healths =
+          new AsyncQueue<ConnectionHealth>();
+      final StreamSubscription<ConnectionHealth> subscription = database
+          .onConnectionHealth(
+            probePath: 'probes/device',
+            probeInterval: const Duration(seconds: 10),
+          )
+          .listen(healths.add);
+      await new Future<Null>.delayed(const Duration(seconds: 0));
+
+      await BinaryMessages.handlePlatformMessage(
+        connectionChannel.name,
+        connectionChannel.codec.encodeSuccessEnvelope(<String, dynamic>{
+          'connected': true,
+          'serverTimeOffsetMillis': -25,
+          'probeLatencyMillis': 80,
+          'writeLatencyMillis': null,
+          'outstandingWrites': 2,
+        }),
+        (_) {},
+      );
+      final ConnectionHealth health = await healths.remove();
+      expect(health.connected, true);
+      expect(health.serverTimeOffset, const Duration(milliseconds: -25));
+      expect(health.probeLatency, const Duration(milliseconds: 80));
+      expect(health.writeLatency, isNull);
+      expect(health.outstandingWrites, 2);
+      expect(listenArguments, <dynamic>[
+        <String, dynamic>{
+          'app': null,
+          'databaseURL': null,
+          'probePath': 'probes/device',
+          'probeIntervalMillis': 10000,
+        },
+      ]);
+
+      subscription.cancel();
+    });
+
     test('goOnline', () async {
       await database.goOnline();
       expect(
@@ -122,6 +326,114 @@ void main() {
       );
     });
 
+    test('setEventBatchingEnabled', () async {
+      await database.setEventBatchingEnabled(true, maxBatchSize: 100);
+      await database.setEventBatchingEnabled(false);
+      expect(
+        log,
+        equals(<MethodCall>[
+          new MethodCall(
+            'FirebaseDatabase#setEventBatchingEnabled',
+            <String, dynamic>{'enabled': true, 'maxBatchSize': 100},
+          ),
+          new MethodCall(
+            'FirebaseDatabase#setEventBatchingEnabled',
+            <String, dynamic>{'enabled': false, 'maxBatchSize': 500},
+          ),
+        ]),
+      );
+    });
+
+    test('getQueryCacheStats', () async {
+      final QueryCacheStats stats = await database.getQueryCacheStats();
+      expect(stats.hits, 7);
+      expect(stats.misses, 3);
+      expect(stats.size, 3);
+      expect(stats.maxSize, 100);
+      expect(
+        log,
+        equals(<MethodCall>[
+          const MethodCall('FirebaseDatabase#getQueryCacheStats'),
+        ]),
+      );
+    });
+
+    test('setReadCacheSettings', () async {
+      await database.setReadCacheSettings(
+        maxEntries: 20,
+        timeToLive: const Duration(seconds: 30),
+      );
+      expect(
+        log,
+        equals(<MethodCall>[
+          new MethodCall(
+            'FirebaseDatabase#setReadCacheSettings',
+            <String, dynamic>{
+              'maxEntries': 20,
+              'maxBytes': 10 * 1024 * 1024,
+              'timeToLiveMillis': 30000,
+            },
+          ),
+        ]),
+      );
+    });
+
+    test('getReadCacheStats', () async {
+      final ReadCacheStats stats = await database.getReadCacheStats();
+      expect(stats.hits, 4);
+      expect(stats.misses, 2);
+      expect(stats.evictions, 1);
+      expect(stats.entries, 3);
+      expect(stats.bytes, 2048);
+      expect(stats.maxEntries, 100);
+      expect(stats.maxBytes, 10485760);
+    });
+
+    test('setMaxSyncedQueries', () async {
+      await database.setMaxSyncedQueries(10);
+      expect(
+        log,
+        equals(<MethodCall>[
+          const MethodCall('FirebaseDatabase#setMaxSyncedQueries', 10),
+        ]),
+      );
+    });
+
+    test('setWriteCoalescingInterval', () async {
+      await database
+          .setWriteCoalescingInterval(const Duration(milliseconds: 50));
+      expect(
+        log,
+        equals(<MethodCall>[
+          const MethodCall('FirebaseDatabase#setWriteCoalescingInterval', 50),
+        ]),
+      );
+    });
+
+    test('listActiveObservers', () async {
+      final List<ActiveObserver> observers =
+          await database.listActiveObservers();
+      expect(observers, hasLength(1));
+      expect(observers[0].handle, 3);
+      expect(observers[0].query, '|/foo|orderByChild=sbar');
+      expect(observers[0].eventType, 'value');
+      expect(observers[0].age, const Duration(milliseconds: 1500));
+      expect(observers[0].eventCount, 4);
+      expect(observers[0].bytesDelivered, 512);
+      expect(observers[0].listenerCount, 2);
+    });
+
+    test('getSyncStats', () async {
+      final SyncStats stats = await database.getSyncStats();
+      expect(stats.syncedQueries, 2);
+      expect(stats.maxSyncedQueries, 10);
+      expect(stats.evictions, 1);
+      expect(stats.receivedBytes, 4096);
+      expect(stats.bytesPerSecond, 512.0);
+      expect(stats.syncedValueBytes, 1024);
+      expect(stats.cachePressure, 0.25);
+    });
+
     group('$DatabaseReference', () {
       test('set', () async {
         final dynamic value = <String, dynamic>{'hello': 'world'};
@@ -150,6 +462,34 @@ void main() {
           ]),
         );
       });
+      test('setCoalesced', () async {
+        final DatabaseReference reference = database.reference().child('foo');
+        expect(await reference.setCoalesced('stale'), WriteStatus.coalesced);
+        expect(await reference.setCoalesced('fresh'), WriteStatus.written);
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'DatabaseReference#set',
+              <String, dynamic>{
+                'path': 'foo',
+                'value': 'stale',
+                'priority': null,
+                'coalesce': true,
+              },
+            ),
+            new MethodCall(
+              'DatabaseReference#set',
+              <String, dynamic>{
+                'path': 'foo',
+                'value': 'fresh',
+                'priority': null,
+                'coalesce': true,
+              },
+            ),
+          ]),
+        );
+      });
       test('update', () async {
         final dynamic value = <String, dynamic>{'hello': 'world'};
         await database.reference().child("foo").update(value);
@@ -203,6 +543,10 @@ void main() {
         expect(transactionResult.committed, equals(true));
         expect(transactionResult.dataSnapshot.value,
             equals(<String, dynamic>{'fakeKey': 'updated fakeValue'}));
+        expect(transactionResult.metrics.attempts, 1);
+        expect(transactionResult.metrics.timeInDart,
+            const Duration(milliseconds: 12));
+        expect(transactionResult.metrics.abortReason, isNull);
         expect(
           database.reference().child('foo').runTransaction(
                 (MutableData mutableData) {},
@@ -211,6 +555,205 @@ void main() {
           throwsA(const isInstanceOf<AssertionError>()),
         );
       });
+
+      test('runTransaction with chunks', () async {
+        const EventChannel snapshotChannel = const EventChannel(
+          'plugins.flutter.io/firebase_database_snapshots',
+        );
+        BinaryMessages.setMockMessageHandler(
+          snapshotChannel.name,
+          (_) async => snapshotChannel.codec.encodeSuccessEnvelope(null),
+        );
+        Future<Null> simulateChunk(Map<String, dynamic> chunk) async {
+          await BinaryMessages.handlePlatformMessage(
+            snapshotChannel.name,
+            snapshotChannel.codec.encodeSuccessEnvelope(chunk),
+            (_) {},
+          );
+        }
+
+        final TransactionResult transactionResult = await database
+            .reference()
+            .child('foo')
+            .runTransaction((MutableData mutableData) async => mutableData,
+                chunkSize: 2);
+        expect(log.single.arguments['chunkSize'], 2);
+        expect(transactionResult.committed, isTrue);
+        expect(transactionResult.dataSnapshot, isNull);
+
+        await simulateChunk(<String, dynamic>{
+          'handle': 42,
+          'type': 'start',
+          'key': 'foo',
+          'childCount': 1,
+        });
+        await simulateChunk(<String, dynamic>{
+          'handle': 42,
+          'type': 'children',
+          'children': <Map<String, dynamic>>[
+            <String, dynamic>{'key': 'fakeKey', 'value': 'fakeValue'},
+          ],
+        });
+        await simulateChunk(<String, dynamic>{'handle': 42, 'type': 'end'});
+
+        final List<SnapshotChunk> chunks =
+            await transactionResult.dataSnapshotChunks.toList();
+        expect(chunks.map((SnapshotChunk chunk) => chunk.type), <dynamic>[
+          SnapshotChunkType.start,
+          SnapshotChunkType.children,
+          SnapshotChunkType.end,
+        ]);
+        expect(chunks[1].children.single.value, 'fakeValue');
+      });
+
+      test('exportToFile', () async {
+        final String file =
+            await database.reference().child('foo').exportToFile('foo.json');
+        expect(file, '/data/files/foo.json');
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'DatabaseReference#exportToFile',
+              <String, dynamic>{'path': 'foo', 'file': 'foo.json'},
+            ),
+          ]),
+        );
+      });
+
+      test('importFromFile', () async {
+        final List<ImportProgress> progress = await database
+            .reference()
+            .child('foo')
+            .importFromFile('foo.json', batchSize: 2)
+            .toList();
+        expect(progress, hasLength(1));
+        expect(progress.single.writtenValues, 2);
+        expect(progress.single.bytesRead, 64);
+        expect(progress.single.totalBytes, 120);
+        expect(log.single.method, 'DatabaseReference#importFromFile');
+        expect(log.single.arguments['path'], 'foo');
+        expect(log.single.arguments['file'], 'foo.json');
+        expect(log.single.arguments['batchSize'], 2);
+      });
+
+      test('runTransactionOperation', () async {
+        final TransactionResult transactionResult = await database
+            .reference()
+            .child('likes')
+            .runTransactionOperation(
+                new TransactionOperation.increment(1, max: 100));
+        await database
+            .reference()
+            .child('stock')
+            .runTransactionOperation(
+                new TransactionOperation.decrement(2, min: 0));
+        await database
+            .reference()
+            .child('state')
+            .runTransactionOperation(
+                new TransactionOperation.compareAndSet('idle', 'busy'));
+        await database.reference().child('lock').runTransactionOperation(
+              new TransactionOperation.compareAndSet(
+                <String, dynamic>{'owner': 'a', 'version': 3},
+                <String, dynamic>{'owner': 'b', 'version': 4},
+              ),
+            );
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'DatabaseReference#runTransactionOperation',
+              <String, dynamic>{
+                'path': 'likes',
+                'operation': <String, dynamic>{
+                  'type': 'increment',
+                  'delta': 1,
+                  'min': null,
+                  'max': 100,
+                },
+              },
+            ),
+            new MethodCall(
+              'DatabaseReference#runTransactionOperation',
+              <String, dynamic>{
+                'path': 'stock',
+                'operation': <String, dynamic>{
+                  'type': 'increment',
+                  'delta': -2,
+                  'min': 0,
+                  'max': null,
+                },
+              },
+            ),
+            new MethodCall(
+              'DatabaseReference#runTransactionOperation',
+              <String, dynamic>{
+                'path': 'state',
+                'operation': <String, dynamic>{
+                  'type': 'compareAndSet',
+                  'expected': 'idle',
+                  'value': 'busy',
+                },
+              },
+            ),
+            new MethodCall(
+              'DatabaseReference#runTransactionOperation',
+              <String, dynamic>{
+                'path': 'lock',
+                'operation': <String, dynamic>{
+                  'type': 'compareAndSet',
+                  'expected': <String, dynamic>{'owner': 'a', 'version': 3},
+                  'value': <String, dynamic>{'owner': 'b', 'version': 4},
+                },
+              },
+            ),
+          ]),
+        );
+        expect(transactionResult.committed, isTrue);
+        expect(transactionResult.error, isNull);
+        expect(transactionResult.dataSnapshot.value, 43);
+        expect(transactionResult.metrics, isNull);
+      });
+    });
+
+    group('$WriteBatch', () {
+      test('commit', () async {
+        final DatabaseReference posts = database.reference().child('posts');
+        final WriteBatch batch = database.batch();
+        batch.set(posts.child('p1'), 'hello', priority: 1);
+        batch.update(database.reference().child('users/u1'),
+            <String, dynamic>{'lastPost': 'p1'});
+        batch.remove(posts.child('p0'));
+        await batch.commit();
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'FirebaseDatabase#commitBatch',
+              <String, dynamic>{
+                'operations': <Map<String, dynamic>>[
+                  <String, dynamic>{
+                    'type': 'set',
+                    'path': 'posts/p1',
+                    'value': 'hello',
+                    'priority': 1,
+                  },
+                  <String, dynamic>{
+                    'type': 'update',
+                    'path': 'users/u1',
+                    'value': <String, dynamic>{'lastPost': 'p1'},
+                  },
+                  <String, dynamic>{
+                    'type': 'remove',
+                    'path': 'posts/p0',
+                  },
+                ],
+              },
+            ),
+          ]),
+        );
+      });
     });
 
     group('$Query', () {
@@ -233,6 +776,24 @@ void main() {
           ]),
         );
       });
+      test('keepSynced with priority', () async {
+        final Query query = database.reference().child('foo');
+        await query.keepSynced(true, priority: 2);
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'Query#keepSynced',
+              <String, dynamic>{
+                'path': 'foo',
+                'parameters': <String, dynamic>{},
+                'value': true,
+                'priority': 2,
+              },
+            ),
+          ]),
+        );
+      });
       test('keepSynced, complex query', () async {
         final int startAt = 42;
         final String path = 'foo';
@@ -315,6 +876,7 @@ void main() {
               <String, dynamic>{
                 'path': path,
                 'parameters': <String, dynamic>{},
+                'isolateToken': FirebaseDatabase.isolateToken,
                 'eventType': '_EventType.value'
               },
             ),
@@ -329,6 +891,652 @@ void main() {
           ]),
         );
       });
+      group('shared observers', () {
+        final String path = 'shared';
+        Future<Null> simulateEvent(int handle, String value) async {
+          await BinaryMessages.handlePlatformMessage(
+            channel.name,
+            channel.codec.encodeMethodCall(
+              new MethodCall('Event', <String, dynamic>{
+                'handle': handle,
+                'snapshot': <String, dynamic>{
+                  'key': path,
+                  'value': value,
+                },
+              }),
+            ),
+            (_) {},
+          );
+        }
+
+        MethodCall observe() {
+          return new MethodCall(
+            'Query#observe',
+            <String, dynamic>{
+              'path': path,
+              'parameters': <String, dynamic>{
+                'orderBy': 'child',
+                'orderByChildKey': 'score',
+                'limitToFirst': 10,
+              },
+              'isolateToken': FirebaseDatabase.isolateToken,
+              'eventType': '_EventType.value'
+            },
+          );
+        }
+
+        MethodCall removeObserver(int handle) {
+          return new MethodCall(
+            'Query#removeObserver',
+            <String, dynamic>{
+              'path': path,
+              'parameters': <String, dynamic>{
+                'orderBy': 'child',
+                'orderByChildKey': 'score',
+                'limitToFirst': 10,
+              },
+              'handle': handle,
+            },
+          );
+        }
+
+        test('identical queries share one native observer', () async {
+          mockHandleId = 110;
+          // Built in a different order, but observed with the same key.
+          final Query query1 = database
+              .reference()
+              .child(path)
+              .orderByChild('score')
+              .limitToFirst(10);
+          final Query query2 = database
+              .reference()
+              .child(path)
+              .limitToFirst(10)
+              .orderByChild('score');
+          final Stream<Event> stream = query1.onValue;
+          final AsyncQueue<Event> events1 = new AsyncQueue<Event>();
+          final AsyncQueue<Event> events2 = new AsyncQueue<Event>();
+          final StreamSubscription<Event> subscription1 =
+              stream.listen(events1.add);
+          final StreamSubscription<Event> subscription2 =
+              stream.listen(events2.add);
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+
+          // Listeners of one stream share its handle.
+          expect(log, equals(<MethodCall>[observe()]));
+          await simulateEvent(110, '1');
+          expect((await events1.remove()).snapshot.value, '1');
+          expect((await events2.remove()).snapshot.value, '1');
+
+          // Equal arguments let the platform share its listener between
+          // the handles of identical queries.
+          final StreamSubscription<Event> subscription3 =
+              query2.onValue.listen((_) {});
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+          expect(log, equals(<MethodCall>[observe(), observe()]));
+
+          subscription1.cancel();
+          subscription2.cancel();
+          subscription3.cancel();
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+        });
+
+        test('cancelling one subscription keeps the observer', () async {
+          mockHandleId = 120;
+          final Stream<Event> stream = database
+              .reference()
+              .child(path)
+              .orderByChild('score')
+              .limitToFirst(10)
+              .onValue;
+          final AsyncQueue<Event> events = new AsyncQueue<Event>();
+          final StreamSubscription<Event> subscription1 = stream.listen((_) {
+            fail('Cancelled subscriptions receive no events');
+          });
+          final StreamSubscription<Event> subscription2 =
+              stream.listen(events.add);
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+
+          subscription1.cancel();
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+          expect(log, equals(<MethodCall>[observe()]));
+
+          await simulateEvent(120, '1');
+          expect((await events.remove()).snapshot.value, '1');
+
+          subscription2.cancel();
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+        });
+
+        test('the last cancel removes the observer', () async {
+          mockHandleId = 130;
+          final Stream<Event> stream = database
+              .reference()
+              .child(path)
+              .orderByChild('score')
+              .limitToFirst(10)
+              .onValue;
+          final StreamSubscription<Event> subscription1 =
+              stream.listen((_) {});
+          final StreamSubscription<Event> subscription2 =
+              stream.listen((_) {});
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+
+          subscription1.cancel();
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+          subscription2.cancel();
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+
+          expect(
+            log,
+            equals(<MethodCall>[observe(), removeObserver(130)]),
+          );
+        });
+
+        test('a late listener gets the current value replayed', () async {
+          mockHandleId = 140;
+          final Query query = database
+              .reference()
+              .child(path)
+              .orderByChild('score')
+              .limitToFirst(10);
+          final AsyncQueue<Event> events1 = new AsyncQueue<Event>();
+          final AsyncQueue<Event> events2 = new AsyncQueue<Event>();
+          final StreamSubscription<Event> subscription1 =
+              query.onValue.listen(events1.add);
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+          await simulateEvent(140, '1');
+          expect((await events1.remove()).snapshot.value, '1');
+
+          final StreamSubscription<Event> subscription2 =
+              query.onValue.listen(events2.add);
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+
+          // The platform replays the current value to the new handle only.
+          await simulateEvent(141, '1');
+          expect((await events2.remove()).snapshot.value, '1');
+          await simulateEvent(140, '2');
+          await simulateEvent(141, '2');
+          expect((await events1.remove()).snapshot.value, '2');
+          expect((await events2.remove()).snapshot.value, '2');
+
+          subscription1.cancel();
+          subscription2.cancel();
+          await new Future<Null>.delayed(const Duration(seconds: 0));
+          expect(
+            log,
+            equals(<MethodCall>[
+              observe(),
+              observe(),
+              removeObserver(140),
+              removeObserver(141),
+            ]),
+          );
+        });
+      });
+      test('observing value deltas', () async {
+        mockHandleId = 89;
+        final String path = 'foo';
+        final Query query = database.reference().child(path);
+        Future<Null> simulateEvent(Map<String, dynamic> event) async {
+          await BinaryMessages.handlePlatformMessage(
+            channel.name,
+            channel.codec.encodeMethodCall(new MethodCall('Event', event)),
+            (_) {},
+          );
+        }
+
+        final AsyncQueue<Event> events = new AsyncQueue<Event>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<Event> subscription =
+            query.onValueDeltas(resyncInterval: 10).listen(events.add);
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        await simulateEvent(<String, dynamic>{
+          'handle': 89,
+          'snapshot': <String, dynamic>{
+            'key': path,
+            'value': <String, dynamic>{
+              'a': <String, dynamic>{'x': 1, 'y': 2},
+              'b': 'unchanged',
+            },
+          },
+        });
+        await simulateEvent(<String, dynamic>{
+          'handle': 89,
+          'snapshot': <String, dynamic>{'key': path},
+          'changes': <Map<String, dynamic>>[
+            <String, dynamic>{
+              'path': <String>['a', 'x'],
+              'value': 3,
+            },
+            <String, dynamic>{
+              'path': <String>['a', 'y'],
+              'value': null,
+            },
+            <String, dynamic>{
+              'path': <String>['c', 'z'],
+              'value': true,
+            },
+          ],
+        });
+        final Event event1 = await events.remove();
+        final Event event2 = await events.remove();
+        expect(event1.snapshot.value, <String, dynamic>{
+          'a': <String, dynamic>{'x': 1, 'y': 2},
+          'b': 'unchanged',
+        });
+        expect(event2.snapshot.key, path);
+        expect(event2.snapshot.value, <String, dynamic>{
+          'a': <String, dynamic>{'x': 3},
+          'b': 'unchanged',
+          'c': <String, dynamic>{'z': true},
+        });
+
+        subscription.cancel();
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        expect(
+          log.first,
+          new MethodCall(
+            'Query#observe',
+            <String, dynamic>{
+              'path': path,
+              'parameters': <String, dynamic>{},
+              'isolateToken': FirebaseDatabase.isolateToken,
+              'eventType': '_EventType.value',
+              'deltaResyncInterval': 10,
+            },
+          ),
+        );
+      });
+      test('observing batched events', () async {
+        mockHandleId = 88;
+        final String path = 'foo';
+        final Query query = database.reference().child(path);
+        Future<Null> simulateEvents(List<String> keys) async {
+          await BinaryMessages.handlePlatformMessage(
+            channel.name,
+            channel.codec.encodeMethodCall(
+              new MethodCall(
+                'Events',
+                keys.map((String key) {
+                  return <String, dynamic>{
+                    'handle': 88,
+                    'snapshot': <String, dynamic>{
+                      'key': key,
+                      'value': 'value of $key',
+                    },
+                    'previousSiblingKey': null,
+                  };
+                }).toList(),
+              ),
+            ),
+            (_) {},
+          );
+        }
+
+        final AsyncQueue<Event> events = new AsyncQueue<Event>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<Event> subscription =
+            query.onChildAdded.listen(events.add);
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        await simulateEvents(<String>['a', 'b', 'c']);
+        final Event event1 = await events.remove();
+        final Event event2 = await events.remove();
+        final Event event3 = await events.remove();
+        expect(event1.snapshot.key, 'a');
+        expect(event2.snapshot.key, 'b');
+        expect(event3.snapshot.key, 'c');
+        expect(event3.snapshot.value, 'value of c');
+
+        subscription.cancel();
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+      });
+      test('once', () async {
+        final Query query = database.reference().child('foo');
+        final DataSnapshot snapshot = await query.once(
+          timeout: const Duration(seconds: 5),
+          cacheFirst: true,
+        );
+        expect(snapshot.key, 'foo');
+        expect(snapshot.value, <String, dynamic>{'bar': 'baz'});
+        expect(snapshot.cacheAge, isNull);
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'Query#once',
+              <String, dynamic>{
+                'path': 'foo',
+                'parameters': <String, dynamic>{},
+                'cacheFirst': true,
+                'timeoutMillis': 5000,
+              },
+            ),
+          ]),
+        );
+      });
+      test('once, shallow', () async {
+        final Query query =
+            database.reference().child('foo').shallow(field: 'title');
+        await query.once();
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'Query#once',
+              <String, dynamic>{
+                'path': 'foo',
+                'parameters': <String, dynamic>{},
+                'cacheFirst': false,
+                'shallow': <String, dynamic>{
+                  'childCounts': false,
+                  'field': 'title',
+                },
+              },
+            ),
+          ]),
+        );
+      });
+      test('observing value chunks', () async {
+        mockHandleId = 91;
+        const EventChannel snapshotChannel = const EventChannel(
+          'plugins.flutter.io/firebase_database_snapshots',
+        );
+        BinaryMessages.setMockMessageHandler(
+          snapshotChannel.name,
+          (_) async => snapshotChannel.codec.encodeSuccessEnvelope(null),
+        );
+        Future<Null> simulateChunk(Map<String, dynamic> chunk) async {
+          await BinaryMessages.handlePlatformMessage(
+            snapshotChannel.name,
+            snapshotChannel.codec.encodeSuccessEnvelope(chunk),
+            (_) {},
+          );
+        }
+
+        final String path = 'archive';
+        final Query query = database.reference().child(path);
+        final AsyncQueue<SnapshotChunk> chunks =
+            new AsyncQueue<SnapshotChunk>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<SnapshotChunk> subscription =
+            query.onValueChunks(chunkSize: 2).listen(chunks.add);
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        await simulateChunk(<String, dynamic>{
+          'handle': 91,
+          'type': 'start',
+          'key': path,
+          'childCount': 2,
+        });
+        await simulateChunk(<String, dynamic>{
+          'handle': 91,
+          'type': 'children',
+          'children': <Map<String, dynamic>>[
+            <String, dynamic>{'key': 'a', 'value': 1},
+            <String, dynamic>{'key': 'b', 'value': 2},
+          ],
+        });
+        await simulateChunk(<String, dynamic>{'handle': 91, 'type': 'end'});
+
+        final SnapshotChunk start = await chunks.remove();
+        expect(start.type, SnapshotChunkType.start);
+        expect(start.key, path);
+        expect(start.childCount, 2);
+        final SnapshotChunk children = await chunks.remove();
+        expect(children.type, SnapshotChunkType.children);
+        expect(children.children.map((DataSnapshot child) => child.key),
+            <String>['a', 'b']);
+        expect(children.children.last.value, 2);
+        final SnapshotChunk end = await chunks.remove();
+        expect(end.type, SnapshotChunkType.end);
+
+        subscription.cancel();
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        expect(
+          log.first,
+          new MethodCall(
+            'Query#observe',
+            <String, dynamic>{
+              'path': path,
+              'parameters': <String, dynamic>{},
+              'isolateToken': FirebaseDatabase.isolateToken,
+              'eventType': '_EventType.value',
+              'chunkSize': 2,
+            },
+          ),
+        );
+      });
+      test('observing with child indices', () async {
+        mockHandleId = 92;
+        final String path = 'foo';
+        final Query query = database.reference().child(path).withChildIndices();
+        final AsyncQueue<Event> events = new AsyncQueue<Event>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<Event> subscription =
+            query.onChildMoved.listen(events.add);
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        await BinaryMessages.handlePlatformMessage(
+          channel.name,
+          channel.codec.encodeMethodCall(
+            new MethodCall('Event', <String, dynamic>{
+              'handle': 92,
+              'snapshot': <String, dynamic>{'key': 'c', 'value': 3},
+              'previousSiblingKey': 'a',
+              'oldIndex': 2,
+              'newIndex': 1,
+            }),
+          ),
+          (_) {},
+        );
+        final Event event = await events.remove();
+        expect(event.oldIndex, 2);
+        expect(event.newIndex, 1);
+
+        subscription.cancel();
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        expect(
+          log.first,
+          new MethodCall(
+            'Query#observe',
+            <String, dynamic>{
+              'path': path,
+              'parameters': <String, dynamic>{},
+              'isolateToken': FirebaseDatabase.isolateToken,
+              'eventType': '_EventType.childMoved',
+              'childIndices': true,
+            },
+          ),
+        );
+      });
+      test('observing aggregates', () async {
+        mockHandleId = 93;
+        final String path = 'scores';
+        final Query query = database.reference().child(path);
+        final AsyncQueue<Aggregate> aggregates = new AsyncQueue<Aggregate>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<Aggregate> subscription =
+            query.onAggregate(field: 'points').listen(aggregates.add);
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        await BinaryMessages.handlePlatformMessage(
+          channel.name,
+          channel.codec.encodeMethodCall(
+            new MethodCall('Event', <String, dynamic>{
+              'handle': 93,
+              'aggregate': <String, dynamic>{
+                'count': 3,
+                'numericCount': 2,
+                'sum': 30,
+                'average': 15.0,
+                'min': 10,
+                'max': 20,
+              },
+            }),
+          ),
+          (_) {},
+        );
+        final Aggregate aggregate = await aggregates.remove();
+        expect(aggregate.count, 3);
+        expect(aggregate.numericCount, 2);
+        expect(aggregate.sum, 30);
+        expect(aggregate.average, 15.0);
+        expect(aggregate.min, 10);
+        expect(aggregate.max, 20);
+
+        subscription.cancel();
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'Query#observe',
+              <String, dynamic>{
+                'path': path,
+                'parameters': <String, dynamic>{},
+                'isolateToken': FirebaseDatabase.isolateToken,
+                'eventType': 'aggregate',
+                'aggregate': <String, dynamic>{'field': 'points'},
+              },
+            ),
+            new MethodCall(
+              'Query#removeObserver',
+              <String, dynamic>{
+                'path': path,
+                'parameters': <String, dynamic>{},
+                'handle': 93,
+              },
+            ),
+          ]),
+        );
+      });
+      test('observing over a dedicated channel', () async {
+        mockHandleId = 94;
+        final String path = 'foo';
+        const EventChannel queryChannel = const EventChannel(
+          'plugins.flutter.io/firebase_database/query/94',
+        );
+        final List<String> channelCalls = <String>[];
+        BinaryMessages.setMockMessageHandler(
+          queryChannel.name,
+          (ByteData message) async {
+            final MethodCall call =
+                queryChannel.codec.decodeMethodCall(message);
+            channelCalls.add(call.method);
+            return queryChannel.codec.encodeSuccessEnvelope(null);
+          },
+        );
+        final Query query =
+            database.reference().child(path).withDedicatedChannel();
+        final AsyncQueue<Event> events = new AsyncQueue<Event>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<Event> subscription =
+            query.onChildAdded.listen(events.add);
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        await BinaryMessages.handlePlatformMessage(
+          queryChannel.name,
+          queryChannel.codec.encodeSuccessEnvelope(<dynamic>['b', 2, 'a']),
+          (_) {},
+        );
+        final Event event = await events.remove();
+        expect(event.snapshot.key, 'b');
+        expect(event.snapshot.value, 2);
+        expect(event.previousSiblingKey, 'a');
+        expect(event.oldIndex, isNull);
+
+        subscription.cancel();
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        expect(channelCalls, <String>['listen', 'cancel']);
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'Query#observe',
+              <String, dynamic>{
+                'path': path,
+                'parameters': <String, dynamic>{},
+                'isolateToken': FirebaseDatabase.isolateToken,
+                'eventType': '_EventType.childAdded',
+                'dedicatedChannel': true,
+              },
+            ),
+            new MethodCall(
+              'Query#removeObserver',
+              <String, dynamic>{
+                'path': path,
+                'parameters': <String, dynamic>{},
+                'handle': 94,
+              },
+            ),
+          ]),
+        );
+      });
+      test('observing with flow control', () async {
+        mockHandleId = 90;
+        final String path = 'foo';
+        final Query query = database
+            .reference()
+            .child(path)
+            .withFlowControl(new FlowControl.throttle(20, maxQueueSize: 5));
+        final AsyncQueue<Event> events = new AsyncQueue<Event>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<Event> subscription =
+            query.onChildChanged.listen(events.add);
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        await BinaryMessages.handlePlatformMessage(
+          channel.name,
+          channel.codec.encodeMethodCall(
+            new MethodCall('Event', <String, dynamic>{
+              'handle': 90,
+              'snapshot': <String, dynamic>{'key': 'a', 'value': 1},
+              'previousSiblingKey': null,
+              'droppedEvents': 3,
+            }),
+          ),
+          (_) {},
+        );
+        final Event event = await events.remove();
+        expect(event.snapshot.key, 'a');
+        expect(event.droppedEvents, 3);
+
+        subscription.cancel();
+        await new Future<Null>.delayed(const Duration(seconds: 0));
+
+        expect(
+          log.first,
+          new MethodCall(
+            'Query#observe',
+            <String, dynamic>{
+              'path': path,
+              'parameters': <String, dynamic>{},
+              'isolateToken': FirebaseDatabase.isolateToken,
+              'eventType': '_EventType.childChanged',
+              'flowControl': <String, dynamic>{
+                'conflate': false,
+                'intervalMicros': 50000,
+                'maxQueueSize': 5,
+              },
+            },
+          ),
+        );
+      });
     });
   });
 }
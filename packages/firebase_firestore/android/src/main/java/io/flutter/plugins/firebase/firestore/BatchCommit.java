@@ -0,0 +1,103 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.firestore;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Commits the set, update and delete operations of a write batch with {@link WriteBatch}, replying
+ * once the server has acknowledged the writes.
+ *
+ * <p>Firestore limits the number of operations in a batch. If chunked, the operations are
+ * committed as consecutive batches of at most that many operations, each one once the previous
+ * one was acknowledged; each batch is atomic, but the operations as a whole are not. If a batch
+ * fails, the error details hold the number of operations that were committed.
+ */
+final class BatchCommit implements OnCompleteListener<Void> {
+  // The maximum number of writes in a single Firestore batch.
+  static final int MAX_BATCH_SIZE = 500;
+
+  private final FirebaseFirestore firestore;
+  private final List<Map<String, Object>> operations;
+  private final int batchSize;
+  private final Result result;
+  private int committedOperations = 0;
+  private int pendingOperations = 0;
+
+  BatchCommit(
+      FirebaseFirestore firestore,
+      List<Map<String, Object>> operations,
+      boolean chunked,
+      Result result) {
+    this.firestore = firestore;
+    this.operations = operations;
+    this.batchSize = chunked ? MAX_BATCH_SIZE : Integer.MAX_VALUE;
+    this.result = result;
+  }
+
+  /** Builds and commits the next batch. Throws if an operation is invalid. */
+  void commitNext() {
+    WriteBatch batch = firestore.batch();
+    int end = (int) Math.min((long) committedOperations + batchSize, operations.size());
+    for (Map<String, Object> operation : operations.subList(committedOperations, end)) {
+      DocumentReference reference = firestore.document((String) operation.get("path"));
+      String type = (String) operation.get("type");
+      switch (type) {
+        case "set":
+          if (Boolean.TRUE.equals(operation.get("merge"))) {
+            batch.set(reference, operation.get("data"), SetOptions.merge());
+          } else {
+            batch.set(reference, operation.get("data"));
+          }
+          break;
+        case "update":
+          {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> data = (Map<String, Object>) operation.get("data");
+            batch.update(reference, data);
+            break;
+          }
+        case "delete":
+          batch.delete(reference);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown batch operation: " + type);
+      }
+    }
+    pendingOperations = end - committedOperations;
+    batch.commit().addOnCompleteListener(this);
+  }
+
+  @Override
+  public void onComplete(Task<Void> task) {
+    if (!task.isSuccessful()) {
+      Map<String, Object> details = new HashMap<>();
+      details.put("committedOperations", committedOperations);
+      result.error("batch_failed", task.getException().getMessage(), details);
+      return;
+    }
+    committedOperations += pendingOperations;
+    if (committedOperations == operations.size()) {
+      result.success(null);
+      return;
+    }
+    try {
+      commitNext();
+    } catch (IllegalArgumentException e) {
+      Map<String, Object> details = new HashMap<>();
+      details.put("committedOperations", committedOperations);
+      result.error("invalid_batch", e.getMessage(), details);
+    }
+  }
+}
@@ -4,7 +4,15 @@
 
 package io.flutter.plugins.firebase.firestore;
 
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.util.SparseArray;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentReference;
@@ -30,6 +38,9 @@ public class FirestorePlugin implements MethodCallHandler {
 
   public static final String TAG = "FirestorePlugin";
   private final MethodChannel channel;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Converts snapshots off the main thread.
+  private final SnapshotPipeline snapshotPipeline = new SnapshotPipeline(mainHandler);
 
   // Handles are ints used as indexes into the sparse array of active observers
   private int nextHandle = 0;
@@ -40,7 +51,63 @@ public class FirestorePlugin implements MethodCallHandler {
   public static void registerWith(PluginRegistry.Registrar registrar) {
     final MethodChannel channel =
         new MethodChannel(registrar.messenger(), "plugins.flutter.io/firebase_firestore");
-    channel.setMethodCallHandler(new FirestorePlugin(channel));
+    FirestorePlugin instance = new FirestorePlugin(channel);
+    channel.setMethodCallHandler(instance);
+    final Activity activity = registrar.activity();
+    if (activity != null) {
+      activity
+          .getApplication()
+          .registerActivityLifecycleCallbacks(instance.new ActivityObserver(activity));
+    }
+  }
+
+  // Removes all listeners and stops the snapshot conversion thread when the activity hosting the
+  // Flutter view is destroyed, since nothing on the Dart side can remove them anymore.
+  private class ActivityObserver implements Application.ActivityLifecycleCallbacks {
+    private final Activity activity;
+
+    ActivityObserver(Activity activity) {
+      this.activity = activity;
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+    @Override
+    public void onActivityStarted(Activity activity) {}
+
+    @Override
+    public void onActivityResumed(Activity activity) {}
+
+    @Override
+    public void onActivityPaused(Activity activity) {}
+
+    @Override
+    public void onActivityStopped(Activity activity) {}
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+      if (activity == this.activity) {
+        removeAllListeners();
+        snapshotPipeline.shutdown();
+        activity.getApplication().unregisterActivityLifecycleCallbacks(this);
+      }
+    }
+  }
+
+  private void removeAllListeners() {
+    for (int i = 0; i < listenerRegistrations.size(); i++) {
+      listenerRegistrations.valueAt(i).remove();
+    }
+    listenerRegistrations.clear();
+    for (int i = 0; i < observers.size(); i++) {
+      observers.valueAt(i).cancel();
+    }
+    observers.clear();
+    documentObservers.clear();
   }
 
   private FirestorePlugin(MethodChannel channel) {
@@ -57,8 +124,71 @@ public class FirestorePlugin implements MethodCallHandler {
     return FirebaseFirestore.getInstance().document(path);
   }
 
+  // Builds the query at the path of the arguments, filtered, ordered, limited and bounded by its
+  // parameters so that only matching documents are downloaded.
   private Query getQuery(Map<String, Object> arguments) {
-    return getCollectionReference(arguments);
+    Query query = getCollectionReference(arguments);
+    @SuppressWarnings("unchecked")
+    Map<String, Object> parameters = (Map<String, Object>) arguments.get("parameters");
+    if (parameters == null) return query;
+    @SuppressWarnings("unchecked")
+    List<List<Object>> conditions = (List<List<Object>>) parameters.get("where");
+    if (conditions != null) {
+      for (List<Object> condition : conditions) {
+        String fieldName = (String) condition.get(0);
+        String operator = (String) condition.get(1);
+        Object value = condition.get(2);
+        switch (operator) {
+          case "==":
+            query = query.whereEqualTo(fieldName, value);
+            break;
+          case "<":
+            query = query.whereLessThan(fieldName, value);
+            break;
+          case "<=":
+            query = query.whereLessThanOrEqualTo(fieldName, value);
+            break;
+          case ">":
+            query = query.whereGreaterThan(fieldName, value);
+            break;
+          case ">=":
+            query = query.whereGreaterThanOrEqualTo(fieldName, value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown where operator " + operator);
+        }
+      }
+    }
+    @SuppressWarnings("unchecked")
+    List<List<Object>> orders = (List<List<Object>>) parameters.get("orderBy");
+    if (orders != null) {
+      for (List<Object> order : orders) {
+        String fieldName = (String) order.get(0);
+        boolean descending = (Boolean) order.get(1);
+        query =
+            query.orderBy(
+                fieldName, descending ? Query.Direction.DESCENDING : Query.Direction.ASCENDING);
+      }
+    }
+    @SuppressWarnings("unchecked")
+    List<Object> startAfter = (List<Object>) parameters.get("startAfter");
+    if (startAfter != null) query = query.startAfter(startAfter.toArray());
+    @SuppressWarnings("unchecked")
+    List<Object> endBefore = (List<Object>) parameters.get("endBefore");
+    if (endBefore != null) query = query.endBefore(endBefore.toArray());
+    Object limit = parameters.get("limit");
+    if (limit != null) query = query.limit(((Number) limit).longValue());
+    return query;
+  }
+
+  // Sends the error of a listener, such as a missing index or a denied permission, to the stream of
+  // its handle. The SDK raises no further events for the listener.
+  private void sendError(int handle, FirebaseFirestoreException e) {
+    Map<String, Object> arguments = new HashMap<>();
+    arguments.put("handle", handle);
+    arguments.put("code", e.getCode().name());
+    arguments.put("message", e.getMessage());
+    channel.invokeMethod("ListenerError", arguments);
   }
 
   private class DocumentObserver implements EventListener<DocumentSnapshot> {
@@ -69,35 +199,112 @@ public class FirestorePlugin implements MethodCallHandler {
     }
 
     @Override
-    public void onEvent(DocumentSnapshot documentSnapshot, FirebaseFirestoreException e) {
-      Map<String, Object> arguments = new HashMap<>();
-      arguments.put("handle", handle);
-      if (documentSnapshot.exists()) {
-        arguments.put("data", documentSnapshot.getData());
-      } else {
-        arguments.put("data", null);
+    public void onEvent(final DocumentSnapshot documentSnapshot, FirebaseFirestoreException e) {
+      if (e != null) {
+        if (documentObservers.get(handle) == this) sendError(handle, e);
+        return;
       }
-      channel.invokeMethod("DocumentSnapshot", arguments);
+      snapshotPipeline.submit(
+          new SnapshotPipeline.Conversion<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> convert() {
+              Map<String, Object> arguments = new HashMap<>();
+              arguments.put("handle", handle);
+              arguments.put("documentID", documentSnapshot.getId());
+              if (documentSnapshot.exists()) {
+                arguments.put("data", documentSnapshot.getData());
+              } else {
+                arguments.put("data", null);
+              }
+              return arguments;
+            }
+
+            @Override
+            public void deliver(Map<String, Object> arguments) {
+              // The listener may have been removed while the snapshot was converted.
+              if (documentObservers.get(handle) != DocumentObserver.this) return;
+              channel.invokeMethod("DocumentSnapshot", arguments);
+            }
+
+            @Override
+            public void fail(RuntimeException e) {
+              Log.e(TAG, "Could not convert the document snapshot of handle " + handle, e);
+            }
+          });
     }
   }
 
-  private class EventObserver implements EventListener<QuerySnapshot> {
+  private class EventObserver implements EventListener<QuerySnapshot>, FlowControl.Sink {
     private int handle;
+    // Limits how fast snapshots are delivered, or null to deliver them right away.
+    private final FlowControl flowControl;
+    // Whether only the document changes of each snapshot are sent. Dart rebuilds the documents by
+    // applying the changes in order, starting from the first snapshot, whose documents are all
+    // added.
+    private final boolean changesOnly;
 
-    EventObserver(int handle) {
+    EventObserver(int handle, Map<String, Object> flowControl, boolean changesOnly) {
       this.handle = handle;
+      this.flowControl = FlowControl.fromArguments(flowControl, mainHandler, this);
+      this.changesOnly = changesOnly;
+    }
+
+    void cancel() {
+      if (flowControl != null) flowControl.cancel();
     }
 
     @Override
     public void onEvent(QuerySnapshot querySnapshot, FirebaseFirestoreException e) {
+      if (e != null) {
+        if (observers.get(handle) == this) sendError(handle, e);
+        return;
+      }
+      if (flowControl != null) {
+        flowControl.offer(querySnapshot);
+      } else {
+        deliver(querySnapshot, 0);
+      }
+    }
+
+    @Override
+    public void deliver(final QuerySnapshot querySnapshot, final int droppedSnapshots) {
+      snapshotPipeline.submit(
+          new SnapshotPipeline.Conversion<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> convert() {
+              Map<String, Object> arguments = createSnapshotMap(querySnapshot);
+              arguments.put("droppedEvents", droppedSnapshots);
+              return arguments;
+            }
+
+            @Override
+            public void deliver(Map<String, Object> arguments) {
+              // The listener may have been removed while the snapshot was converted.
+              if (observers.get(handle) != EventObserver.this) return;
+              channel.invokeMethod("QuerySnapshot", arguments);
+            }
+
+            @Override
+            public void fail(RuntimeException e) {
+              Log.e(TAG, "Could not convert the query snapshot of handle " + handle, e);
+            }
+          });
+    }
+
+    private Map<String, Object> createSnapshotMap(QuerySnapshot querySnapshot) {
       Map<String, Object> arguments = new HashMap<>();
       arguments.put("handle", handle);
 
-      List<Map<String, Object>> documents = new ArrayList<>();
-      for (DocumentSnapshot document : querySnapshot.getDocuments()) {
-        documents.add(document.getData());
+      if (!changesOnly) {
+        List<Map<String, Object>> documents = new ArrayList<>();
+        List<String> documentIDs = new ArrayList<>();
+        for (DocumentSnapshot document : querySnapshot.getDocuments()) {
+          documents.add(document.getData());
+          documentIDs.add(document.getId());
+        }
+        arguments.put("documents", documents);
+        arguments.put("documentIDs", documentIDs);
       }
-      arguments.put("documents", documents);
 
       List<Map<String, Object>> documentChanges = new ArrayList<>();
       for (DocumentChange documentChange : querySnapshot.getDocumentChanges()) {
@@ -117,12 +324,30 @@ public class FirestorePlugin implements MethodCallHandler {
         change.put("type", type);
         change.put("oldIndex", documentChange.getOldIndex());
         change.put("newIndex", documentChange.getNewIndex());
+        change.put("documentID", documentChange.getDocument().getId());
         change.put("document", documentChange.getDocument().getData());
         documentChanges.add(change);
       }
       arguments.put("documentChanges", documentChanges);
+      return arguments;
+    }
+  }
 
-      channel.invokeMethod("QuerySnapshot", arguments);
+  // Replies once the write was acknowledged by the server, or with its error.
+  private static class DefaultCompletionListener implements OnCompleteListener<Void> {
+    private final Result result;
+
+    DefaultCompletionListener(Result result) {
+      this.result = result;
+    }
+
+    @Override
+    public void onComplete(Task<Void> task) {
+      if (task.isSuccessful()) {
+        result.success(null);
+      } else {
+        result.error("write_failed", task.getException().getMessage(), null);
+      }
     }
   }
 
@@ -132,10 +357,22 @@ public class FirestorePlugin implements MethodCallHandler {
       case "Query#addSnapshotListener":
         {
           Map<String, Object> arguments = call.arguments();
+          Query query;
+          try {
+            query = getQuery(arguments);
+          } catch (IllegalArgumentException e) {
+            // The SDK rejects invalid combinations, such as range filters on different fields.
+            result.error("invalid_query", e.getMessage(), null);
+            break;
+          }
           int handle = nextHandle++;
-          EventObserver observer = new EventObserver(handle);
+          @SuppressWarnings("unchecked")
+          Map<String, Object> flowControl = (Map<String, Object>) arguments.get("flowControl");
+          EventObserver observer =
+              new EventObserver(
+                  handle, flowControl, Boolean.TRUE.equals(arguments.get("changesOnly")));
           observers.put(handle, observer);
-          listenerRegistrations.put(handle, getQuery(arguments).addSnapshotListener(observer));
+          listenerRegistrations.put(handle, query.addSnapshotListener(observer));
           result.success(handle);
           break;
         }
@@ -148,6 +385,7 @@ public class FirestorePlugin implements MethodCallHandler {
           listenerRegistrations.put(
               handle, getDocumentReference(arguments).addSnapshotListener(observer));
           result.success(handle);
+          break;
         }
       case "Query#removeListener":
         {
@@ -156,7 +394,10 @@ public class FirestorePlugin implements MethodCallHandler {
           int handle = (Integer) arguments.get("handle");
           listenerRegistrations.get(handle).remove();
           listenerRegistrations.remove(handle);
+          EventObserver observer = observers.get(handle);
+          if (observer != null) observer.cancel();
           observers.remove(handle);
+          documentObservers.remove(handle);
           result.success(null);
           break;
         }
@@ -164,8 +405,28 @@ public class FirestorePlugin implements MethodCallHandler {
         {
           Map<String, Object> arguments = call.arguments();
           DocumentReference documentReference = getDocumentReference(arguments);
-          documentReference.set(arguments.get("data"));
-          result.success(null);
+          documentReference
+              .set(arguments.get("data"))
+              .addOnCompleteListener(new DefaultCompletionListener(result));
+          break;
+        }
+      case "WriteBatch#commit":
+        {
+          Map<String, Object> arguments = call.arguments();
+          @SuppressWarnings("unchecked")
+          List<Map<String, Object>> operations =
+              (List<Map<String, Object>>) arguments.get("operations");
+          if (operations.isEmpty()) {
+            result.success(null);
+            break;
+          }
+          boolean chunked = Boolean.TRUE.equals(arguments.get("chunked"));
+          try {
+            new BatchCommit(FirebaseFirestore.getInstance(), operations, chunked, result)
+                .commitNext();
+          } catch (IllegalArgumentException e) {
+            result.error("invalid_batch", e.getMessage(), null);
+          }
           break;
         }
       default:
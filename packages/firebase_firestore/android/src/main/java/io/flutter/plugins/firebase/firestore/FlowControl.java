@@ -0,0 +1,100 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.firestore;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import com.google.firebase.firestore.QuerySnapshot;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Limits how fast the snapshots of one listener are delivered to Dart.
+ *
+ * <p>At most one snapshot is delivered per interval. Snapshots that arrive faster are either
+ * conflated, so that only the latest one is kept, or held in a bounded queue that drops its oldest
+ * snapshot when full. Every delivered snapshot carries the number of snapshots dropped so far.
+ *
+ * <p>Snapshots are held as they come from the SDK, so that the ones that are dropped are never
+ * converted for Dart.
+ */
+final class FlowControl {
+  interface Sink {
+    void deliver(QuerySnapshot snapshot, int droppedSnapshots);
+  }
+
+  private final Handler handler;
+  private final Sink sink;
+  private final boolean conflate;
+  private final long intervalMicros;
+  private final int maxQueueSize;
+
+  private final ArrayDeque<QuerySnapshot> queue = new ArrayDeque<>();
+  private long lastDeliveryTime = -1;
+  private boolean scheduled = false;
+  private int droppedSnapshots = 0;
+
+  private final Runnable drainCallback =
+      new Runnable() {
+        @Override
+        public void run() {
+          scheduled = false;
+          drain();
+        }
+      };
+
+  private FlowControl(
+      Handler handler, Sink sink, boolean conflate, long intervalMicros, int maxQueueSize) {
+    this.handler = handler;
+    this.sink = sink;
+    this.conflate = conflate;
+    this.intervalMicros = intervalMicros;
+    this.maxQueueSize = maxQueueSize;
+  }
+
+  /** Returns the flow control described by {@code arguments}, or null if there is none. */
+  static FlowControl fromArguments(Map<String, Object> arguments, Handler handler, Sink sink) {
+    if (arguments == null) return null;
+    return new FlowControl(
+        handler,
+        sink,
+        (Boolean) arguments.get("conflate"),
+        ((Number) arguments.get("intervalMicros")).longValue(),
+        (int) arguments.get("maxQueueSize"));
+  }
+
+  void offer(QuerySnapshot snapshot) {
+    if (conflate && !queue.isEmpty()) {
+      queue.clear();
+      droppedSnapshots++;
+    } else if (queue.size() >= maxQueueSize) {
+      queue.removeFirst();
+      droppedSnapshots++;
+    }
+    queue.addLast(snapshot);
+    drain();
+  }
+
+  /** Discards queued snapshots and stops further deliveries. */
+  void cancel() {
+    handler.removeCallbacks(drainCallback);
+    queue.clear();
+  }
+
+  private void drain() {
+    if (scheduled || queue.isEmpty()) return;
+    long now = SystemClock.elapsedRealtimeNanos() / 1000;
+    long wait = lastDeliveryTime < 0 ? 0 : lastDeliveryTime + intervalMicros - now;
+    if (wait > 0) {
+      scheduled = true;
+      // Rounded up, so that deliveries are never closer than the interval.
+      handler.postDelayed(drainCallback, (wait + 999) / 1000);
+      return;
+    }
+    lastDeliveryTime = now;
+    sink.deliver(queue.removeFirst(), droppedSnapshots);
+    drain();
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2017 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.firestore;
+
+import android.os.Handler;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Converts snapshots into values that can be sent to Dart on a background thread, and hands the
+ * results back on the main thread in the order the conversions were submitted.
+ */
+final class SnapshotPipeline {
+  interface Conversion<T> {
+    /** Called on the background thread. */
+    T convert();
+
+    /** Called on the main thread with the result of {@link #convert()}. */
+    void deliver(T result);
+
+    /**
+     * Called on the main thread instead of {@link #deliver(Object)} if {@link #convert()} threw, or
+     * if the conversion was submitted after the pipeline was shut down.
+     */
+    void fail(RuntimeException e);
+  }
+
+  private final Handler handler;
+  // A single thread, so that conversions complete in the order they were submitted.
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  SnapshotPipeline(Handler handler) {
+    this.handler = handler;
+  }
+
+  <T> void submit(final Conversion<T> conversion) {
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              final T result;
+              try {
+                result = conversion.convert();
+              } catch (RuntimeException e) {
+                postFailure(conversion, e);
+                return;
+              }
+              handler.post(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      conversion.deliver(result);
+                    }
+                  });
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // Shut down.
+      postFailure(conversion, e);
+    }
+  }
+
+  private void postFailure(final Conversion<?> conversion, final RuntimeException e) {
+    handler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            conversion.fail(e);
+          }
+        });
+  }
+
+  /**
+   * Lets the conversions already submitted finish, then stops the background thread. Conversions
+   * submitted afterwards fail.
+   */
+  void shutdown() {
+    executor.shutdown();
+  }
+}
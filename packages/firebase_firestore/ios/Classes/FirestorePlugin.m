@@ -20,10 +20,64 @@
 
 FIRQuery *getQuery(NSDictionary *arguments) {
   FIRQuery *query = [[FIRFirestore firestore] collectionWithPath:arguments[@"path"]];
-  // TODO(jackson): Implement query parameters
+  NSDictionary *parameters = arguments[@"parameters"];
+  NSArray *conditions = parameters[@"where"];
+  for (NSArray *condition in conditions) {
+    NSString *fieldName = condition[0];
+    NSString *op = condition[1];
+    id value = condition[2];
+    if ([op isEqualToString:@"=="]) {
+      query = [query queryWhereField:fieldName isEqualTo:value];
+    } else if ([op isEqualToString:@"<"]) {
+      query = [query queryWhereField:fieldName isLessThan:value];
+    } else if ([op isEqualToString:@"<="]) {
+      query = [query queryWhereField:fieldName isLessThanOrEqualTo:value];
+    } else if ([op isEqualToString:@">"]) {
+      query = [query queryWhereField:fieldName isGreaterThan:value];
+    } else if ([op isEqualToString:@">="]) {
+      query = [query queryWhereField:fieldName isGreaterThanOrEqualTo:value];
+    }
+  }
+  NSArray *orders = parameters[@"orderBy"];
+  for (NSArray *order in orders) {
+    query = [query queryOrderedByField:order[0] descending:[order[1] boolValue]];
+  }
+  NSArray *startAfter = parameters[@"startAfter"];
+  if (startAfter) query = [query queryStartingAfterValues:startAfter];
+  NSArray *endBefore = parameters[@"endBefore"];
+  if (endBefore) query = [query queryEndingBeforeValues:endBefore];
+  NSNumber *limit = parameters[@"limit"];
+  if (limit) query = [query queryLimitedTo:limit.integerValue];
   return query;
 }
 
+// Returns the name Android gives the code of a Firestore error, such as PERMISSION_DENIED, so that
+// Dart sees the same codes on both platforms.
+NSString *errorCodeName(NSError *error) {
+  static NSArray<NSString *> *names;
+  static dispatch_once_t onceToken;
+  dispatch_once(&onceToken, ^{
+    // Indexed by FIRFirestoreErrorCode.
+    names = @[
+      @"OK", @"CANCELLED", @"UNKNOWN", @"INVALID_ARGUMENT", @"DEADLINE_EXCEEDED", @"NOT_FOUND",
+      @"ALREADY_EXISTS", @"PERMISSION_DENIED", @"RESOURCE_EXHAUSTED", @"FAILED_PRECONDITION",
+      @"ABORTED", @"OUT_OF_RANGE", @"UNIMPLEMENTED", @"INTERNAL", @"UNAVAILABLE", @"DATA_LOSS",
+      @"UNAUTHENTICATED"
+    ];
+  });
+  if (![FIRFirestoreErrorDomain isEqualToString:error.domain] || error.code < 0 ||
+      error.code >= (NSInteger)names.count) {
+    return @"UNKNOWN";
+  }
+  return names[error.code];
+}
+
+// Added documents have no old index and removed documents no new index, which the SDK reports
+// as NSNotFound and Dart expects as -1.
+NSNumber *changeIndex(NSUInteger index) {
+  return index == NSNotFound ? @(-1) : [NSNumber numberWithUnsignedInteger:index];
+}
+
 @interface FirestorePlugin ()
 @property(nonatomic, retain) FlutterMethodChannel *channel;
 @end
@@ -54,6 +108,16 @@ FIRQuery *getQuery(NSDictionary *arguments) {
   return self;
 }
 
+// Sends the error of a listener to the stream of its handle.
+- (void)sendError:(NSError *)error forHandle:(NSNumber *)handle {
+  [self.channel invokeMethod:@"ListenerError"
+                   arguments:@{
+                     @"handle" : handle,
+                     @"code" : errorCodeName(error),
+                     @"message" : error.localizedDescription ?: [NSNull null],
+                   }];
+}
+
 - (void)handleMethodCall:(FlutterMethodCall *)call result:(FlutterResult)result {
   void (^defaultCompletionBlock)(NSError *) = ^(NSError *error) {
     result(error.flutterError);
@@ -62,14 +126,64 @@ FIRQuery *getQuery(NSDictionary *arguments) {
     NSString *path = call.arguments[@"path"];
     FIRDocumentReference *reference = [[FIRFirestore firestore] documentWithPath:path];
     [reference setData:call.arguments[@"data"] completion:defaultCompletionBlock];
+  } else if ([@"WriteBatch#commit" isEqualToString:call.method]) {
+    // Batches are committed as a whole; chunking is not supported here.
+    FIRWriteBatch *batch = [[FIRFirestore firestore] batch];
+    for (NSDictionary *operation in call.arguments[@"operations"]) {
+      FIRDocumentReference *reference =
+          [[FIRFirestore firestore] documentWithPath:operation[@"path"]];
+      NSString *type = operation[@"type"];
+      if ([@"set" isEqualToString:type]) {
+        if ([operation[@"merge"] boolValue]) {
+          [batch setData:operation[@"data"] forDocument:reference options:[FIRSetOptions merge]];
+        } else {
+          [batch setData:operation[@"data"] forDocument:reference];
+        }
+      } else if ([@"update" isEqualToString:type]) {
+        [batch updateData:operation[@"data"] forDocument:reference];
+      } else if ([@"delete" isEqualToString:type]) {
+        [batch deleteDocument:reference];
+      }
+    }
+    [batch commitWithCompletion:defaultCompletionBlock];
   } else if ([@"Query#addSnapshotListener" isEqualToString:call.method]) {
+    id flowControl = call.arguments[@"flowControl"];
+    if (flowControl && ![flowControl isEqual:[NSNull null]]) {
+      // Flow control is only implemented on Android. Failing keeps listeners from receiving
+      // snapshots at a rate they didn't ask for.
+      result([FlutterError errorWithCode:@"unsupported"
+                                 message:@"Flow control is not supported on iOS."
+                                 details:nil]);
+      return;
+    }
+    FIRQuery *query;
+    @try {
+      query = getQuery(call.arguments);
+    } @catch (NSException *exception) {
+      // The SDK rejects invalid combinations, such as range filters on different fields.
+      result([FlutterError errorWithCode:@"invalid_query" message:exception.reason details:nil]);
+      return;
+    }
     __block NSNumber *handle = [NSNumber numberWithInt:_nextListenerHandle++];
-    id<FIRListenerRegistration> listener = [getQuery(call.arguments)
+    // Only the document changes are sent if changesOnly; Dart rebuilds the documents from them.
+    BOOL changesOnly = [call.arguments[@"changesOnly"] isEqual:@YES];
+    id<FIRListenerRegistration> listener = [query
         addSnapshotListener:^(FIRQuerySnapshot *_Nullable snapshot, NSError *_Nullable error) {
-          if (error) result(error.flutterError);
-          NSMutableArray *documents = [NSMutableArray array];
-          for (FIRDocumentSnapshot *document in snapshot.documents) {
-            [documents addObject:document.data];
+          if (error) {
+            [self sendError:error forHandle:handle];
+            return;
+          }
+          NSMutableDictionary *arguments = [NSMutableDictionary dictionary];
+          arguments[@"handle"] = handle;
+          if (!changesOnly) {
+            NSMutableArray *documents = [NSMutableArray array];
+            NSMutableArray *documentIDs = [NSMutableArray array];
+            for (FIRDocumentSnapshot *document in snapshot.documents) {
+              [documents addObject:document.data];
+              [documentIDs addObject:document.documentID];
+            }
+            arguments[@"documents"] = documents;
+            arguments[@"documentIDs"] = documentIDs;
           }
           NSMutableArray *documentChanges = [NSMutableArray array];
           for (FIRDocumentChange *documentChange in snapshot.documentChanges) {
@@ -87,17 +201,14 @@ FIRQuery *getQuery(NSDictionary *arguments) {
             }
             [documentChanges addObject:@{
               @"type" : type,
+              @"documentID" : documentChange.document.documentID,
               @"document" : documentChange.document.data,
-              @"oldIndex" : [NSNumber numberWithUnsignedInteger:documentChange.oldIndex],
-              @"newIndex" : [NSNumber numberWithUnsignedInteger:documentChange.newIndex],
+              @"oldIndex" : changeIndex(documentChange.oldIndex),
+              @"newIndex" : changeIndex(documentChange.newIndex),
             }];
           }
-          [self.channel invokeMethod:@"QuerySnapshot"
-                           arguments:@{
-                             @"handle" : handle,
-                             @"documents" : documents,
-                             @"documentChanges" : documentChanges
-                           }];
+          arguments[@"documentChanges"] = documentChanges;
+          [self.channel invokeMethod:@"QuerySnapshot" arguments:arguments];
         }];
     _listeners[handle] = listener;
     result(handle);
@@ -107,10 +218,14 @@ FIRQuery *getQuery(NSDictionary *arguments) {
         [[FIRFirestore firestore] documentWithPath:call.arguments[@"path"]];
     id<FIRListenerRegistration> listener =
         [reference addSnapshotListener:^(FIRDocumentSnapshot *snapshot, NSError *_Nullable error) {
-          if (error) result(error.flutterError);
+          if (error) {
+            [self sendError:error forHandle:handle];
+            return;
+          }
           [self.channel invokeMethod:@"DocumentSnapshot"
                            arguments:@{
                              @"handle" : handle,
+                             @"documentID" : snapshot.documentID,
                              @"data" : snapshot.exists ? snapshot.data : [NSNull null],
                            }];
         }];
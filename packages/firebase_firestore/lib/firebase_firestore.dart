@@ -16,5 +16,7 @@ part 'src/document_change.dart';
 part 'src/document_snapshot.dart';
 part 'src/document_reference.dart';
 part 'src/firestore.dart';
+part 'src/flow_control.dart';
 part 'src/query.dart';
 part 'src/query_snapshot.dart';
+part 'src/write_batch.dart';
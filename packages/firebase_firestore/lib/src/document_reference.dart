@@ -22,6 +22,10 @@ class DocumentReference {
   /// Slash-delimited path representing the database location of this query.
   String get path => _pathComponents.join('/');
 
+  /// Writes [data] to the document, replacing any existing data.
+  ///
+  /// The returned [Future] completes once the write has been acknowledged by
+  /// the Firestore servers, or with an error if it was rejected.
   Future<Null> setData(Map<String, dynamic> data) {
     return Firestore.channel.invokeMethod(
       'DocumentReference#setData',
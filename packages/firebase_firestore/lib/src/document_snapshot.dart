@@ -13,7 +13,10 @@ class DocumentSnapshot {
   /// Contains all the data of this snapshot
   final Map<String, dynamic> data;
 
-  DocumentSnapshot._(this.data);
+  /// The ID of the document, or null if the platform didn't send it.
+  final String documentID;
+
+  DocumentSnapshot._(this.data, [this.documentID]);
 
   /// Reads individual values from the snapshot
   dynamic operator [](String key) => data[key];
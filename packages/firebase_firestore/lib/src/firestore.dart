@@ -19,16 +19,44 @@ class Firestore {
   static final Map<int, StreamController<DocumentSnapshot>> _documentObservers =
       <int, StreamController<DocumentSnapshot>>{};
 
+  // The documents of the last snapshot of each query listened to with
+  // [Query.withChangesOnly], which the changes of the next one apply to.
+  static final Map<int, List<DocumentSnapshot>> _changesOnlyDocuments =
+      <int, List<DocumentSnapshot>>{};
+
   Firestore._() {
     channel.setMethodCallHandler((MethodCall call) {
       if (call.method == 'QuerySnapshot') {
-        final QuerySnapshot snapshot = new QuerySnapshot._(call.arguments);
-        _queryObservers[call.arguments['handle']].add(snapshot);
+        final int handle = call.arguments['handle'];
+        QuerySnapshot snapshot;
+        if (call.arguments.containsKey('documents')) {
+          snapshot = new QuerySnapshot._(call.arguments);
+        } else {
+          snapshot = new QuerySnapshot._applyChanges(
+            _changesOnlyDocuments[handle] ?? const <DocumentSnapshot>[],
+            call.arguments,
+          );
+          _changesOnlyDocuments[handle] = snapshot.documents;
+        }
+        _queryObservers[handle].add(snapshot);
       } else if (call.method == 'DocumentSnapshot') {
         final DocumentSnapshot snapshot = new DocumentSnapshot._(
           call.arguments['data'],
+          call.arguments['documentID'],
         );
         _documentObservers[call.arguments['handle']].add(snapshot);
+      } else if (call.method == 'ListenerError') {
+        // Listeners raise no further snapshots after an error.
+        final int handle = call.arguments['handle'];
+        final PlatformException error = new PlatformException(
+          code: call.arguments['code'],
+          message: call.arguments['message'],
+        );
+        if (_queryObservers.containsKey(handle)) {
+          _queryObservers[handle].addError(error);
+        } else {
+          _documentObservers[handle]?.addError(error);
+        }
       }
     });
   }
@@ -44,6 +72,9 @@ class Firestore {
     return new CollectionReference._(this, path.split('/'));
   }
 
+  /// Creates a [WriteBatch] for writing several documents atomically.
+  WriteBatch batch() => new WriteBatch._();
+
   /// Gets a [DocumentReference] for the specified Firestore path.
   DocumentReference document(String path) {
     assert(path != null);
@@ -0,0 +1,57 @@
+// Copyright 2017, the Chromium project authors.  Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+
+part of firebase_firestore;
+
+/// Limits how fast snapshots of a query are delivered to its listeners.
+///
+/// Flow control is applied on the platform side, so snapshots that are dropped
+/// are never sent over the platform channel. The number of snapshots dropped
+/// so far is available from [QuerySnapshot.droppedSnapshots].
+///
+/// Flow control is only supported on Android; listening to a query with flow
+/// control fails on iOS.
+///
+/// See [Query.withFlowControl].
+class FlowControl {
+  const FlowControl._(this._conflate, this._interval, this._maxQueueSize);
+
+  /// Delivers at most one snapshot per [interval], dropping all but the latest
+  /// of the snapshots that arrive in between.
+  ///
+  /// The [QuerySnapshot.documentChanges] of dropped snapshots are lost, so
+  /// listeners should rely on [QuerySnapshot.documents].
+  ///
+  /// The interval defaults to one frame at 60 frames per second.
+  const FlowControl.latest(
+      {Duration interval: const Duration(milliseconds: 16)})
+      : this._(true, interval, 1);
+
+  /// Delivers at most [maxSnapshotsPerSecond] snapshots per second.
+  ///
+  /// Snapshots that arrive faster are queued. Once [maxQueueSize] snapshots
+  /// are queued, the oldest queued snapshot is dropped for every new one.
+  factory FlowControl.throttle(int maxSnapshotsPerSecond,
+      {int maxQueueSize: 100}) {
+    assert(maxSnapshotsPerSecond > 0 && maxSnapshotsPerSecond <= 1000000);
+    assert(maxQueueSize > 0);
+    return new FlowControl._(
+      false,
+      new Duration(microseconds: 1000000 ~/ maxSnapshotsPerSecond),
+      maxQueueSize,
+    );
+  }
+
+  final bool _conflate;
+  final Duration _interval;
+  final int _maxQueueSize;
+
+  Map<String, dynamic> _toMap() {
+    return <String, dynamic>{
+      'conflate': _conflate,
+      'intervalMicros': _interval.inMicroseconds,
+      'maxQueueSize': _maxQueueSize,
+    };
+  }
+}
@@ -9,9 +9,13 @@ class Query {
   Query._(
       {@required Firestore firestore,
       @required List<String> pathComponents,
-      Map<String, dynamic> parameters})
+      Map<String, dynamic> parameters,
+      FlowControl flowControl,
+      bool changesOnly: false})
       : _firestore = firestore,
         _pathComponents = pathComponents,
+        _flowControl = flowControl,
+        _changesOnly = changesOnly,
         _parameters = parameters ??
             new Map<String, dynamic>.unmodifiable(<String, dynamic>{}),
         assert(firestore != null),
@@ -20,6 +24,8 @@ class Query {
   final Firestore _firestore;
   final List<String> _pathComponents;
   final Map<String, dynamic> _parameters;
+  final FlowControl _flowControl;
+  final bool _changesOnly;
 
   /// A string containing the slash-separated path to this this Query
   /// (relative to the root of the database).
@@ -33,24 +39,40 @@ class Query {
   }
 
   /// Notifies of query results at this location
+  ///
+  /// Errors are delivered as [PlatformException]s. A query the platform
+  /// rejects fails with the code `invalid_query`, and a listener error with
+  /// the name of its Firestore error code, such as `PERMISSION_DENIED`.
   // TODO(jackson): Reduce code duplication with [DocumentReference]
   Stream<QuerySnapshot> get snapshots {
+    assert(!_changesOnly || _flowControl == null,
+        'Changes-only queries can\'t drop snapshots with flow control.');
     Future<int> _handle;
     // It's fine to let the StreamController be garbage collected once all the
     // subscribers have cancelled; this analyzer warning is safe to ignore.
     StreamController<QuerySnapshot> controller; // ignore: close_sinks
     controller = new StreamController<QuerySnapshot>.broadcast(
       onListen: () {
+        final Map<String, dynamic> arguments = <String, dynamic>{
+          'path': path,
+          'parameters': _parameters,
+        };
+        if (_flowControl != null) {
+          arguments['flowControl'] = _flowControl._toMap();
+        }
+        if (_changesOnly) {
+          arguments['changesOnly'] = true;
+        }
         _handle = Firestore.channel.invokeMethod(
           'Query#addSnapshotListener',
-          <String, dynamic>{
-            'path': path,
-            'parameters': _parameters,
-          },
+          arguments,
         );
         _handle.then((int handle) {
           Firestore._queryObservers[handle] = controller;
-        });
+          if (_changesOnly) {
+            Firestore._changesOnlyDocuments[handle] = <DocumentSnapshot>[];
+          }
+        }).catchError(controller.addError);
       },
       onCancel: () {
         _handle.then((int handle) async {
@@ -59,12 +81,121 @@ class Query {
             <String, dynamic>{'handle': handle},
           );
           Firestore._queryObservers.remove(handle);
+          Firestore._changesOnlyDocuments.remove(handle);
+        }, onError: (dynamic error) {
+          // Nothing was listened to, so there is nothing to remove.
         });
       },
     );
     return controller.stream;
   }
 
+  /// Creates a query whose snapshots are delivered subject to [flowControl].
+  ///
+  /// Flow control is only supported on Android. On iOS, listening to the
+  /// query's [snapshots] fails with a [PlatformException] whose code is
+  /// `unsupported`.
+  Query withFlowControl(FlowControl flowControl) {
+    return new Query._(
+      firestore: _firestore,
+      pathComponents: _pathComponents,
+      parameters: _parameters,
+      flowControl: flowControl,
+      changesOnly: _changesOnly,
+    );
+  }
+
+  /// Creates a query whose listeners are only sent the document changes of
+  /// each snapshot, rather than all of its documents as well.
+  ///
+  /// The documents of each [QuerySnapshot] are rebuilt here by applying the
+  /// changes to the documents of the previous snapshot, so listeners see the
+  /// same snapshots as without this option. The first snapshot adds all
+  /// documents. This saves converting and sending the whole result set on
+  /// every change of a large query. It can't be combined with
+  /// [withFlowControl], which may drop snapshots.
+  Query withChangesOnly() {
+    return new Query._(
+      firestore: _firestore,
+      pathComponents: _pathComponents,
+      parameters: _parameters,
+      changesOnly: true,
+    );
+  }
+
+  Query _copyWithParameters(Map<String, dynamic> parameters) {
+    return new Query._(
+      firestore: _firestore,
+      pathComponents: _pathComponents,
+      parameters: new Map<String, dynamic>.unmodifiable(
+        new Map<String, dynamic>.from(_parameters)..addAll(parameters),
+      ),
+      flowControl: _flowControl,
+      changesOnly: _changesOnly,
+    );
+  }
+
+  /// Creates a query with additional filters on the value of [field].
+  ///
+  /// Each given condition is added. Filters are applied by Firestore, so
+  /// documents that don't match are never downloaded.
+  Query where(
+    String field, {
+    dynamic isEqualTo,
+    dynamic isLessThan,
+    dynamic isLessThanOrEqualTo,
+    dynamic isGreaterThan,
+    dynamic isGreaterThanOrEqualTo,
+  }) {
+    final List<List<dynamic>> conditions =
+        new List<List<dynamic>>.from(_parameters['where'] ?? <List<dynamic>>[]);
+    void addCondition(String operator, dynamic value) {
+      if (value != null) {
+        conditions.add(<dynamic>[field, operator, value]);
+      }
+    }
+
+    addCondition('==', isEqualTo);
+    addCondition('<', isLessThan);
+    addCondition('<=', isLessThanOrEqualTo);
+    addCondition('>', isGreaterThan);
+    addCondition('>=', isGreaterThanOrEqualTo);
+    return _copyWithParameters(<String, dynamic>{'where': conditions});
+  }
+
+  /// Creates a query whose documents are additionally sorted by [field].
+  Query orderBy(String field, {bool descending: false}) {
+    final List<List<dynamic>> orders = new List<List<dynamic>>.from(
+        _parameters['orderBy'] ?? <List<dynamic>>[]);
+    orders.add(<dynamic>[field, descending]);
+    return _copyWithParameters(<String, dynamic>{'orderBy': orders});
+  }
+
+  /// Creates a query that returns at most [length] documents.
+  Query limit(int length) {
+    assert(length > 0);
+    return _copyWithParameters(<String, dynamic>{'limit': length});
+  }
+
+  /// Creates a query that starts after the document whose fields in the
+  /// order of [orderBy] have the given [values].
+  ///
+  /// Passing the ordered fields of the last document of a page gives the next
+  /// page.
+  Query startAfter(List<dynamic> values) {
+    assert(values != null && values.isNotEmpty);
+    assert(!_parameters.containsKey('startAfter'));
+    return _copyWithParameters(<String, dynamic>{'startAfter': values});
+  }
+
+  /// Creates a query that ends before the document whose fields in the order
+  /// of [orderBy] have the given [values].
+  Query endBefore(List<dynamic> values) {
+    assert(values != null && values.isNotEmpty);
+    assert(!_parameters.containsKey('endBefore'));
+    return _copyWithParameters(<String, dynamic>{'endBefore': values});
+  }
+
   /// Obtains a CollectionReference corresponding to this query's location.
   CollectionReference reference() =>
       new CollectionReference._(_firestore, _pathComponents);
@@ -13,13 +13,44 @@ class QuerySnapshot {
   /// is the first snapshot, all documents will be in the list as Added changes.
   final List<DocumentChange> documentChanges;
 
-  QuerySnapshot._(Map<String, List<Map<String, dynamic>>> data)
+  /// The number of snapshots that were dropped by the query's [FlowControl]
+  /// before this one was delivered.
+  final int droppedSnapshots;
+
+  QuerySnapshot._(Map<String, dynamic> data)
       : documents = new List<DocumentSnapshot>.generate(
             data['documents'].length, (int index) {
-          return new DocumentSnapshot._(data['documents'][index]);
+          final List<String> documentIDs = data['documentIDs'];
+          return new DocumentSnapshot._(
+            data['documents'][index],
+            documentIDs != null ? documentIDs[index] : null,
+          );
         }),
-        documentChanges = new List<DocumentChange>.generate(
-            data['documentChanges'].length, (int index) {
-          return new DocumentChange._(data['documentChanges'][index]);
-        });
+        documentChanges = _createChanges(data),
+        droppedSnapshots = data['droppedEvents'] ?? 0;
+
+  /// Creates a snapshot of a query listened to with [Query.withChangesOnly],
+  /// whose documents are the [previousDocuments] with the changes in [data]
+  /// applied in order.
+  QuerySnapshot._applyChanges(
+      List<DocumentSnapshot> previousDocuments, Map<String, dynamic> data)
+      : documentChanges = _createChanges(data),
+        documents = new List<DocumentSnapshot>.from(previousDocuments),
+        droppedSnapshots = 0 {
+    for (DocumentChange change in documentChanges) {
+      if (change.oldIndex >= 0) {
+        documents.removeAt(change.oldIndex);
+      }
+      if (change.newIndex >= 0) {
+        documents.insert(change.newIndex, change.document);
+      }
+    }
+  }
+
+  static List<DocumentChange> _createChanges(Map<String, dynamic> data) {
+    return new List<DocumentChange>.generate(
+        data['documentChanges'].length, (int index) {
+      return new DocumentChange._(data['documentChanges'][index]);
+    });
+  }
 }
@@ -0,0 +1,73 @@
+// Copyright 2017, the Chromium project authors.  Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+
+part of firebase_firestore;
+
+/// A group of writes to documents that is committed atomically.
+///
+/// All operations are sent to the platform side in a single call when the
+/// batch is committed, and are written with a single Firestore batch, so
+/// either all of them succeed or none of them do.
+///
+/// Firestore limits a batch to 500 operations; see [commit] for writing more.
+class WriteBatch {
+  WriteBatch._();
+
+  final List<Map<String, dynamic>> _operations = <Map<String, dynamic>>[];
+  bool _committed = false;
+
+  /// Writes [data] to the document of [reference], like
+  /// [DocumentReference.setData].
+  ///
+  /// If [merge] is true, the fields of [data] are merged into an existing
+  /// document instead of replacing it.
+  void setData(DocumentReference reference, Map<String, dynamic> data,
+      {bool merge: false}) {
+    assert(!_committed, 'This batch has already been committed.');
+    _operations.add(<String, dynamic>{
+      'type': 'set',
+      'path': reference.path,
+      'data': data,
+      'merge': merge,
+    });
+  }
+
+  /// Updates the fields of the existing document of [reference] with [data].
+  void updateData(DocumentReference reference, Map<String, dynamic> data) {
+    assert(!_committed, 'This batch has already been committed.');
+    _operations.add(<String, dynamic>{
+      'type': 'update',
+      'path': reference.path,
+      'data': data,
+    });
+  }
+
+  /// Deletes the document of [reference].
+  void delete(DocumentReference reference) {
+    assert(!_committed, 'This batch has already been committed.');
+    _operations.add(<String, dynamic>{
+      'type': 'delete',
+      'path': reference.path,
+    });
+  }
+
+  /// Writes all operations in this batch atomically.
+  ///
+  /// The returned [Future] completes once the writes have been acknowledged
+  /// by the Firestore servers, or with an error if they were rejected.
+  ///
+  /// If [chunked] is true, batches with more operations than Firestore allows
+  /// are written as consecutive batches of at most 500 operations instead of
+  /// failing. Each of those is atomic, but the batch as a whole is not: if one
+  /// fails, the details of the error hold the number of operations that were
+  /// written. Chunking is only supported on Android.
+  Future<Null> commit({bool chunked: false}) {
+    assert(!_committed, 'This batch has already been committed.');
+    _committed = true;
+    return Firestore.channel.invokeMethod(
+      'WriteBatch#commit',
+      <String, dynamic>{'operations': _operations, 'chunked': chunked},
+    );
+  }
+}
@@ -32,6 +32,8 @@ void main() {
             return mockHandleId++;
           case 'DocumentReference#setData':
             return true;
+          case 'WriteBatch#commit':
+            return null;
           default:
             return null;
         }
@@ -65,6 +67,254 @@ void main() {
       });
     });
 
+    group('Query', () {
+      test('listen with query parameters', () async {
+        final StreamSubscription<QuerySnapshot> subscription =
+            collectionReference
+                .where('tag', isEqualTo: 'news')
+                .where('score', isGreaterThan: 10, isLessThanOrEqualTo: 50)
+                .orderBy('score', descending: true)
+                .startAfter(<dynamic>[40])
+                .endBefore(<dynamic>[20])
+                .limit(25)
+                .snapshots
+                .listen((QuerySnapshot querySnapshot) {});
+        subscription.cancel();
+        await new Future<Null>.delayed(Duration.ZERO);
+        expect(
+          log.first,
+          new MethodCall(
+            'Query#addSnapshotListener',
+            <String, dynamic>{
+              'path': 'foo',
+              'parameters': <String, dynamic>{
+                'where': <List<dynamic>>[
+                  <dynamic>['tag', '==', 'news'],
+                  <dynamic>['score', '<=', 50],
+                  <dynamic>['score', '>', 10],
+                ],
+                'orderBy': <List<dynamic>>[
+                  <dynamic>['score', true],
+                ],
+                'startAfter': <dynamic>[40],
+                'endBefore': <dynamic>[20],
+                'limit': 25,
+              },
+            },
+          ),
+        );
+      });
+
+      test('listen with flow control', () async {
+        const FlowControl flowControl = const FlowControl.latest(
+          interval: const Duration(milliseconds: 16),
+        );
+        final List<QuerySnapshot> snapshots = <QuerySnapshot>[];
+        final StreamSubscription<QuerySnapshot> subscription =
+            collectionReference
+                .withFlowControl(flowControl)
+                .snapshots
+                .listen(snapshots.add);
+        await new Future<Null>.delayed(Duration.ZERO);
+        await BinaryMessages.handlePlatformMessage(
+          channel.name,
+          channel.codec.encodeMethodCall(
+            new MethodCall('QuerySnapshot', <String, dynamic>{
+              'handle': 0,
+              'documents': <Map<String, dynamic>>[
+                <String, dynamic>{'bazKey': 'quxValue'},
+              ],
+              'documentChanges': <Map<String, dynamic>>[],
+              'droppedEvents': 2,
+            }),
+          ),
+          (_) {},
+        );
+        subscription.cancel();
+        await new Future<Null>.delayed(Duration.ZERO);
+        expect(snapshots, hasLength(1));
+        expect(snapshots.single.documents, hasLength(1));
+        expect(snapshots.single.droppedSnapshots, 2);
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'Query#addSnapshotListener',
+              <String, dynamic>{
+                'path': 'foo',
+                'parameters': <String, dynamic>{},
+                'flowControl': <String, dynamic>{
+                  'conflate': true,
+                  'intervalMicros': 16000,
+                  'maxQueueSize': 1,
+                },
+              },
+            ),
+            new MethodCall(
+              'Query#removeListener',
+              <String, dynamic>{'handle': 0},
+            ),
+          ]),
+        );
+      });
+
+      test('listen error', () async {
+        final List<Object> errors = <Object>[];
+        final StreamSubscription<QuerySnapshot> subscription =
+            collectionReference
+                .where('tag', isEqualTo: 'news')
+                .orderBy('score')
+                .snapshots
+                .listen((QuerySnapshot querySnapshot) {}, onError: errors.add);
+        await new Future<Null>.delayed(Duration.ZERO);
+        await BinaryMessages.handlePlatformMessage(
+          channel.name,
+          channel.codec.encodeMethodCall(
+            new MethodCall('ListenerError', <String, dynamic>{
+              'handle': 0,
+              'code': 'FAILED_PRECONDITION',
+              'message': 'The query requires an index.',
+            }),
+          ),
+          (_) {},
+        );
+        subscription.cancel();
+        await new Future<Null>.delayed(Duration.ZERO);
+        expect(errors, hasLength(1));
+        final PlatformException error = errors.single;
+        expect(error.code, 'FAILED_PRECONDITION');
+        expect(error.message, 'The query requires an index.');
+      });
+
+      test('listen with changes only', () async {
+        final List<QuerySnapshot> snapshots = <QuerySnapshot>[];
+        final StreamSubscription<QuerySnapshot> subscription =
+            collectionReference
+                .withChangesOnly()
+                .snapshots
+                .listen(snapshots.add);
+        await new Future<Null>.delayed(Duration.ZERO);
+        Future<Null> sendChanges(List<Map<String, dynamic>> changes) {
+          return BinaryMessages.handlePlatformMessage(
+            channel.name,
+            channel.codec.encodeMethodCall(
+              new MethodCall('QuerySnapshot', <String, dynamic>{
+                'handle': 0,
+                'documentChanges': changes,
+              }),
+            ),
+            (_) {},
+          );
+        }
+
+        await sendChanges(<Map<String, dynamic>>[
+          <String, dynamic>{
+            'type': 'DocumentChangeType.added',
+            'documentID': 'a',
+            'document': <String, dynamic>{'n': 1},
+            'oldIndex': -1,
+            'newIndex': 0,
+          },
+          <String, dynamic>{
+            'type': 'DocumentChangeType.added',
+            'documentID': 'b',
+            'document': <String, dynamic>{'n': 2},
+            'oldIndex': -1,
+            'newIndex': 1,
+          },
+        ]);
+        await sendChanges(<Map<String, dynamic>>[
+          <String, dynamic>{
+            'type': 'DocumentChangeType.modified',
+            'documentID': 'b',
+            'document': <String, dynamic>{'n': 0},
+            'oldIndex': 1,
+            'newIndex': 0,
+          },
+        ]);
+        subscription.cancel();
+        await new Future<Null>.delayed(Duration.ZERO);
+
+        expect(snapshots, hasLength(2));
+        expect(
+          snapshots[0].documents.map((DocumentSnapshot d) => d.documentID),
+          <String>['a', 'b'],
+        );
+        expect(
+          snapshots[1].documents.map((DocumentSnapshot d) => d.documentID),
+          <String>['b', 'a'],
+        );
+        expect(snapshots[1].documents[0]['n'], 0);
+        expect(snapshots[1].documentChanges.single.document.documentID, 'b');
+        expect(
+          log.first,
+          new MethodCall(
+            'Query#addSnapshotListener',
+            <String, dynamic>{
+              'path': 'foo',
+              'parameters': <String, dynamic>{},
+              'changesOnly': true,
+            },
+          ),
+        );
+      });
+    });
+
+    group('WriteBatch', () {
+      test('commit', () async {
+        final WriteBatch batch = firestore.batch();
+        batch.setData(
+          collectionReference.document('a'),
+          <String, dynamic>{'tag': 'news'},
+        );
+        batch.setData(
+          collectionReference.document('b'),
+          <String, dynamic>{'tag': 'news'},
+          merge: true,
+        );
+        batch.updateData(
+          collectionReference.document('c'),
+          <String, dynamic>{'tag': 'news'},
+        );
+        batch.delete(collectionReference.document('d'));
+        await batch.commit(chunked: true);
+        expect(
+          log,
+          equals(<MethodCall>[
+            new MethodCall(
+              'WriteBatch#commit',
+              <String, dynamic>{
+                'operations': <Map<String, dynamic>>[
+                  <String, dynamic>{
+                    'type': 'set',
+                    'path': 'foo/a',
+                    'data': <String, dynamic>{'tag': 'news'},
+                    'merge': false,
+                  },
+                  <String, dynamic>{
+                    'type': 'set',
+                    'path': 'foo/b',
+                    'data': <String, dynamic>{'tag': 'news'},
+                    'merge': true,
+                  },
+                  <String, dynamic>{
+                    'type': 'update',
+                    'path': 'foo/c',
+                    'data': <String, dynamic>{'tag': 'news'},
+                  },
+                  <String, dynamic>{
+                    'type': 'delete',
+                    'path': 'foo/d',
+                  },
+                ],
+                'chunked': true,
+              },
+            ),
+          ]),
+        );
+      });
+    });
+
     group('DocumentReference', () {
       test('listen', () async {
         final StreamSubscription<DocumentSnapshot> subscription =